@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * BufferPool pools direct ByteBuffers in power of 2 size classes. Each 
+ * thread has a small cache of free buffers in front of a shared pool.
+ * Virtual threads use only the shared pool.
+ * Buffers larger than the largest class are not pooled.
+ * <p>
+ * Buffers can be leased for an owner object. If the owner is collected 
+ * without releasing the lease, the buffers are returned to the pool and the
+ * leak is counted.
+ * <p>
+ * BufferPool is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class BufferPool extends JavaLogging
+{
+    private static final int MinShift = 12;
+    private static final int Classes = 6;
+    private static final int LocalMax = 4;
+    private final ConcurrentLinkedQueue<ByteBuffer>[] shared = new ConcurrentLinkedQueue[Classes];
+    private final ThreadLocal<ArrayDeque<ByteBuffer>[]> local = ThreadLocal.withInitial(BufferPool::createLocal);
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final Set<Lease> leases = ConcurrentHashMap.newKeySet();
+    private final AtomicLong sharedBytes = new AtomicLong();
+    private final AtomicLong outstandingBytes = new AtomicLong();
+    private final LongAdder allocations = new LongAdder();
+    private final LongAdder reuses = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private volatile long maxSize;
+    /**
+     * Creates BufferPool
+     * @param maxSize Max bytes kept in shared pool.
+     */
+    public BufferPool(long maxSize)
+    {
+        super(BufferPool.class);
+        this.maxSize = maxSize;
+        for (int ii=0;ii<Classes;ii++)
+        {
+            shared[ii] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    public void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+    /**
+     * Returns cleared direct buffer with at least size capacity. Limit is 
+     * set to size.
+     * @param size
+     * @return 
+     */
+    public ByteBuffer get(int size)
+    {
+        reclaim();
+        int cls = sizeClass(size);
+        ByteBuffer bb = null;
+        if (cls != -1)
+        {
+            ArrayDeque<ByteBuffer> deque = localDeque(cls);
+            if (deque != null)
+            {
+                bb = deque.pollFirst();
+            }
+            if (bb == null)
+            {
+                bb = shared[cls].poll();
+                if (bb != null)
+                {
+                    sharedBytes.addAndGet(-bb.capacity());
+                }
+            }
+        }
+        if (bb != null)
+        {
+            reuses.increment();
+        }
+        else
+        {
+            bb = ByteBuffer.allocateDirect(cls != -1 ? 1<<(cls+MinShift) : size);
+            allocations.increment();
+        }
+        outstandingBytes.addAndGet(bb.capacity());
+        bb.clear();
+        bb.limit(size);
+        return bb;
+    }
+    /**
+     * Returns buffer to pool. Buffer must not be used after release.
+     * @param bb 
+     */
+    public void release(ByteBuffer bb)
+    {
+        outstandingBytes.addAndGet(-bb.capacity());
+        int cls = sizeClass(bb.capacity());
+        if (cls == -1 || bb.capacity() != 1<<(cls+MinShift) || !bb.isDirect())
+        {
+            return;
+        }
+        ArrayDeque<ByteBuffer> deque = localDeque(cls);
+        if (deque != null && deque.size() < LocalMax)
+        {
+            deque.addFirst(bb);
+        }
+        else
+        {
+            if (sharedBytes.get() + bb.capacity() <= maxSize)
+            {
+                sharedBytes.addAndGet(bb.capacity());
+                shared[cls].add(bb);
+            }
+        }
+    }
+    /**
+     * Creates lease for owner.
+     * @param owner
+     * @return 
+     */
+    public Lease lease(Object owner)
+    {
+        reclaim();
+        Lease lease = new Lease(owner);
+        leases.add(lease);
+        return lease;
+    }
+    /**
+     * Returns buffers of collected owners which didn't release their lease.
+     */
+    private void reclaim()
+    {
+        Lease lease = (Lease) queue.poll();
+        while (lease != null)
+        {
+            leases.remove(lease);
+            if (lease.reclaim())
+            {
+                leaks.increment();
+                fine("buffer lease of %s was not released", lease.ownerClass);
+            }
+            lease = (Lease) queue.poll();
+        }
+    }
+
+    private static int sizeClass(int size)
+    {
+        int cls = size > 1<<MinShift ? 32 - Integer.numberOfLeadingZeros(size-1) - MinShift : 0;
+        return cls < Classes ? cls : -1;
+    }
+
+    /**
+     * Returns thread local deque or null in virtual thread. Virtual threads
+     * are not reused, so their buffers would be lost with the thread.
+     * @param cls
+     * @return 
+     */
+    private ArrayDeque<ByteBuffer> localDeque(int cls)
+    {
+        if (VirtualThreadExecutor.isVirtual(Thread.currentThread()))
+        {
+            return null;
+        }
+        return local.get()[cls];
+    }
+
+    private static ArrayDeque<ByteBuffer>[] createLocal()
+    {
+        ArrayDeque<ByteBuffer>[] arr = new ArrayDeque[Classes];
+        for (int ii=0;ii<Classes;ii++)
+        {
+            arr[ii] = new ArrayDeque<>();
+        }
+        return arr;
+    }
+    /**
+     * Returns bytes in shared pool.
+     * @return 
+     */
+    public long getPooledBytes()
+    {
+        return sharedBytes.get();
+    }
+    /**
+     * Returns bytes of buffers in use.
+     * @return 
+     */
+    public long getOutstandingBytes()
+    {
+        return outstandingBytes.get();
+    }
+
+    public long getAllocations()
+    {
+        return allocations.sum();
+    }
+
+    public long getReuses()
+    {
+        return reuses.sum();
+    }
+
+    public long getLeaks()
+    {
+        return leaks.sum();
+    }
+
+    public int getLeaseCount()
+    {
+        return leases.size();
+    }
+    /**
+     * Lease tracks buffers of one owner.
+     */
+    public class Lease extends PhantomReference<Object>
+    {
+        private final String ownerClass;
+        private final List<ByteBuffer> buffers = new ArrayList<>();
+        private boolean released;
+
+        private Lease(Object owner)
+        {
+            super(owner, queue);
+            this.ownerClass = owner.getClass().getSimpleName();
+        }
+        /**
+         * Returns buffer which is released with the lease.
+         * @param size
+         * @return 
+         */
+        public synchronized ByteBuffer get(int size)
+        {
+            if (released)
+            {
+                throw new IllegalStateException("lease released");
+            }
+            ByteBuffer bb = BufferPool.this.get(size);
+            buffers.add(bb);
+            return bb;
+        }
+        /**
+         * Returns all buffers to pool. Buffers must not be used after this.
+         */
+        public void release()
+        {
+            if (reclaim())
+            {
+                clear();
+                leases.remove(this);
+            }
+        }
+
+        private synchronized boolean reclaim()
+        {
+            if (released)
+            {
+                return false;
+            }
+            released = true;
+            buffers.forEach(BufferPool.this::release);
+            buffers.clear();
+            return true;
+        }
+    }
+}
@@ -19,43 +19,48 @@ package org.vesalainen.web.cache;
 import org.vesalainen.web.parser.HttpHeaderParser;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestException;
 import java.security.KeyManagementException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.Security;
 import java.time.Clock;
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Set;
-import java.util.WeakHashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import static java.util.logging.Level.INFO;
-import java.util.stream.Collectors;
 import javax.management.InstanceAlreadyExistsException;
 import javax.management.MBeanRegistrationException;
 import javax.management.MBeanServer;
@@ -68,8 +73,8 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.vesalainen.net.ssl.SSLServerSocketChannel;
 import org.vesalainen.net.ssl.SSLSocketChannel;
 import org.vesalainen.nio.file.attribute.ExternalFileAttributes;
+import org.vesalainen.nio.file.attribute.UserDefinedAttributes;
 import org.vesalainen.util.HexDump;
-import org.vesalainen.util.WeakList;
 import org.vesalainen.util.concurrent.StatisticsThreadPoolExecutor;
 import org.vesalainen.util.concurrent.TaggableThread;
 import org.vesalainen.util.logging.JavaLogging;
@@ -86,15 +91,35 @@ import org.vesalainen.net.ExceptionParser;
 public class Cache
 {
     private static StatisticsThreadPoolExecutor executor;
+    private static VirtualThreadExecutor virtualExecutor;
     private static ScheduledExecutorService scheduler;
     private static Clock clock;
     
     private static JavaLogging log;
-    private static Map<String,WeakList<CacheEntry>> cacheMap;
-    private static ReentrantLock lock;
-    private static Map<Future<Boolean>,Runner> requestMap;
+    private static CacheIndex index;
+    private static MetadataStore metadataStore;
+    private static HotCache hotCache;
+    private static SlabStore slabStore;
+    private static DedupStore dedupStore;
+    private static final BufferPool bufferPool = new BufferPool(Config.getBufferPoolSize());
+    private static final Cleaner cleaner = new Cleaner("CacheEntry Cleaner");
+    private static SelectorLoop[] selectorLoops = new SelectorLoop[0];
+    private static final OriginLimiter originLimiter = new OriginLimiter(Config::getOriginConnections);
+    private static DnsCache dnsCache;
+    private static final OriginConnector originConnector = new OriginConnector(Config::getConnectAttemptDelay, Config::getConnectTimeout, Config::getConnectFailureMemory, System::currentTimeMillis);
+    private static final OriginPool originPool = new OriginPool(ConnectionHandler::open, Config::getOriginPoolSize, Config::getOriginIdleTimeout, System::currentTimeMillis);
+    private static final InFlightRegistry<CacheEntry> inFlight = new InFlightRegistry<>(CacheEntry::isInFlight);
+    private static final long TimerTick = 100;
+    private static final int TimerWheelSize = 1024;
+    private static final long JournalFlushInterval = 1000;
+    private static final long IndexGcInterval = 60000;
+    private static TimerWheel timerWheel;
     private static BlockingQueue<Path> deleteQueue = new LinkedBlockingQueue<>();
+    private static List<Consumer<Path>> invalidationListeners = new CopyOnWriteArrayList<>();
+    private static ThreadLocal<Digester> digester = ThreadLocal.withInitial(Digester::new);
     private static SSLContext sslCtx;
+    private static SSLContext originSslCtx;
+    private static final TlsSessions tlsSessions = new TlsSessions(Config::getTlsSessionCacheSize, Config::getTlsSessionTimeout);
     private static KeyStoreManager keyStoreManager;
 
     static
@@ -110,23 +135,84 @@ public class Cache
             log = new JavaLogging(Cache.class);
             log.config("start executor");
             executor = new StatisticsThreadPoolExecutor(Config.getCorePoolSize(), Integer.MAX_VALUE, 1, TimeUnit.MINUTES, new SynchronousQueue(), Config.getStatisticsTimeSpan(), TimeUnit.SECONDS);
+            if (Config.ConnectionMode.Virtual.equals(Config.getConnectionMode()))
+            {
+                if (VirtualThreadExecutor.isSupported())
+                {
+                    log.config("start virtual thread executor");
+                    virtualExecutor = VirtualThreadExecutor.create();
+                }
+                else
+                {
+                    log.warning("virtual threads not supported in java %s using threads", System.getProperty("java.version"));
+                }
+            }
             MBeanServer platformMBeanServer = ManagementFactory.getPlatformMBeanServer();
             ObjectName objectName = new ObjectName("org.vesalainen.web.cache:type=ThreadStatistics");
             platformMBeanServer.registerMBean(new Statistics(), objectName);
+            bufferPool.setMaxSize(Config.getBufferPoolSize());
+            dnsCache = new DnsCache(InetAddress::getAllByName, Config.getDnsThreads(), Config::getDnsTtl, Config::getDnsNegativeTtl, System::currentTimeMillis);
             log.config("start scheduler");
             scheduler = Executors.newScheduledThreadPool(2);
             clock = Clock.systemUTC();
-            cacheMap = new WeakHashMap<>();
-            lock = new ReentrantLock();
-            requestMap = new ConcurrentHashMap<>();
+            log.config("open metadata");
+            metadataStore = new MetadataStore(Config.getMetadataFile().toPath(), Config.getCacheDir().toPath());
+            metadataStore.open();
+            if (Config.getSlabMaxEntrySize() > 0)
+            {
+                log.config("open slab store");
+                slabStore = new SlabStore(Config.getSlabDir().toPath(), Config.getCacheDir().toPath(), Config.getSlabSegmentSize());
+                slabStore.open();
+            }
+            log.config("build index");
+            index = new CacheIndex();
+            index.setStore(new IndexStore(Config.getCacheDir().toPath(), Config.getIndexFile().toPath()));
+            index.build(Config.getCacheDir().toPath(), metadataStore.isCreated());
+            addInvalidationListener(index::remove);
+            addInvalidationListener(metadataStore::remove);
+            hotCache = new HotCache(Config.getHotCacheSize(), Config.getHotCacheMaxEntrySize());
+            addInvalidationListener(hotCache::remove);
+            addInvalidationListener((p)->inFlight.removeIf((e)->p.equals(e.getPath())));
+            if (slabStore != null)
+            {
+                addInvalidationListener(slabStore::remove);
+            }
+            if (Config.isDeduplicate())
+            {
+                log.config("build dedup store");
+                dedupStore = new DedupStore();
+                index.forEach(Cache::addDedup);
+                addInvalidationListener(dedupStore::remove);
+            }
             Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHook()));
             log.config("start KeyStoreLoader");
-            keyStoreManager  = new KeyStoreManager(Config.getKeyStoreFile(), lock);
+            keyStoreManager  = new KeyStoreManager(Config.getKeyStoreFile());
+            TlsSessions.setSessionTickets(Config.isTlsSessionTickets());
             sslCtx = SSLContext.getInstance("TLSv1.2");
             sslCtx.init(new KeyManager[]{keyStoreManager}, null, null);
+            sslCtx = tlsSessions.wrap(sslCtx);
+            originSslCtx = SSLContext.getInstance("TLS");
+            originSslCtx.init(null, null, null);
+            tlsSessions.configure(originSslCtx);
             log.config("started keyStoreManager");
-            log.config("start EntryHandler");
-            scheduler.scheduleWithFixedDelay(new EntryHandler(), Config.getRestartInterval(), Config.getRestartInterval(), TimeUnit.MILLISECONDS);
+            log.config("start timer wheel");
+            timerWheel = new TimerWheel(TimerTick, TimerWheelSize, ()->clock.millis());
+            scheduler.scheduleWithFixedDelay(timerWheel::advance, TimerTick, TimerTick, TimeUnit.MILLISECONDS);
+            log.config("start origin pool eviction");
+            scheduler.scheduleWithFixedDelay(originPool::evict, Config.getOriginIdleTimeout(), Config.getOriginIdleTimeout(), TimeUnit.MILLISECONDS);
+            log.config("start dns cache eviction");
+            scheduler.scheduleWithFixedDelay(dnsCache::evict, Config.getDnsTtl(), Config.getDnsTtl(), TimeUnit.MILLISECONDS);
+            log.config("start journal flushing");
+            scheduler.scheduleWithFixedDelay(Cache::flushJournals, JournalFlushInterval, JournalFlushInterval, TimeUnit.MILLISECONDS);
+            log.config("start index gc");
+            scheduler.scheduleWithFixedDelay(Cache::gc, IndexGcInterval, IndexGcInterval, TimeUnit.MILLISECONDS);
+            log.config("start index snapshots");
+            scheduler.scheduleWithFixedDelay(index::snapshot, Config.getIndexSnapshotInterval(), Config.getIndexSnapshotInterval(), TimeUnit.MILLISECONDS);
+            if (slabStore != null)
+            {
+                log.config("start slab compaction");
+                scheduler.scheduleWithFixedDelay(slabStore::compact, Config.getSlabCompactionInterval(), Config.getSlabCompactionInterval(), TimeUnit.MILLISECONDS);
+            }
             log.config("start Remover");
             executor.submit(new Remover());
             log.config("start Deleter");
@@ -154,11 +240,29 @@ public class Cache
     {
         log.config("shutdownNow");
         executor.shutdownNow();
+        if (virtualExecutor != null)
+        {
+            virtualExecutor.shutdownNow();
+        }
     }
     
+    /**
+     * Releases entries which index keeps for stopped fetches.
+     */
     static void gc()
     {
-        cacheMap.clear();
+        index.gc();
+    }
+    /**
+     * Writes queued index journal records and slab tombstones.
+     */
+    private static void flushJournals()
+    {
+        index.flush();
+        if (slabStore != null)
+        {
+            slabStore.flush();
+        }
     }
 
     public static boolean tryCache(HttpHeaderParser request, ByteChannel userAgent) throws IOException, URISyntaxException
@@ -171,93 +275,59 @@ public class Cache
         {
             CacheEntry entry = null;
             CacheEntry stale = null;
-            lock.lock();
+            HotCache.Hot hot = null;
+            boolean exclusive = false;
+            String requestTarget = request.getRequestTarget();
+            byte[] digest = digest(requestTarget);
+            boolean staleExclusive = false;
+            List<Path> obsolete = new ArrayList<>();
+            List<CacheEntry> used = new ArrayList<>(2);
             try
             {
-                String requestTarget = request.getRequestTarget();
-                log.finer("tryCache %s from map", requestTarget);
-                WeakList<CacheEntry> weakList = cacheMap.get(requestTarget);
-                if (weakList == null)
-                {
-                    weakList = new WeakList<>();
-                    cacheMap.put(requestTarget, weakList);
-                }
-                weakList.lock();
+                ReentrantLock lock = index.getLock(digest);
+                lock.lock();
                 try
                 {
-                    // remove entries with no file.
-                    weakList.removeIf((CacheEntry e)->{return Files.notExists(e.getPath());});
-                    if (weakList.isEmpty() || weakList.isGarbageCollected())
+                    log.finer("tryCache %s from index", requestTarget);
+                    IndexEntry emptyVaryMapEntry = null;
+                    IndexEntry indexEntry = null;
+                    for (IndexEntry ie : selectVariants(index.get(digest), obsolete))
                     {
-                        String digest = getDigest(requestTarget);
-                        File dir2 = getDirectory2(digest);
-                        if (dir2.exists())
-                        {
-                            final WeakList<CacheEntry> fwl = weakList;
-                            Set<Path> paths = weakList.stream()
-                                    .map(CacheEntry::getPath)
-                                    .collect(Collectors.toSet());
-                            // re-create entries which are garbage collected.
-                            Files.find(dir2.toPath(), 1, (Path p, BasicFileAttributes u) ->
-                                    {
-                                        String fn = p.getFileName().toString();
-                                        return fn.startsWith(digest) && !fn.endsWith(".atr");
-                                    }) 
-                                    .filter((p)->{return !paths.contains(p);}).map((p)->{return new CacheEntry(false, p, request);})
-                                    .collect(Collectors.toCollection(()->{return fwl;}));
-                        }
-                    }
-                    Map<VaryMap, List<CacheEntry>> groupBy = weakList.stream().collect(Collectors.groupingBy((CacheEntry e)->{return e.getVaryMap();}));
-                    CacheEntry emptyVaryMapEntry = null;
-                    for (Entry<VaryMap, List<CacheEntry>> e : groupBy.entrySet())
-                    {
-                        List<CacheEntry> list = e.getValue();
-                        VaryMap varyMap = e.getKey();
-                        list.sort(null);
-                        log.fine("%s", e.getKey());
-                        if (log.isLoggable(Level.FINEST))
-                        {
-                            list.stream().forEach((c)->log.finest("order %s %d %s", c, c.refreshness(), c.getState()));
-                        }
+                        VaryMap varyMap = ie.getVaryMap();
                         if (varyMap.isEmpty())  // empty will match all
                         {
-                            emptyVaryMapEntry = list.get(0);
+                            emptyVaryMapEntry = ie;
                         }
                         else
                         {
                             if (varyMap.isMatch(request))
                             {
-                                entry = list.get(0);
-                            }
-                        }
-                        int size = list.size();
-                        for (int ii=1;ii<size;ii++)
-                        {
-                            CacheEntry ce = list.get(ii);
-                            log.fine("remove  old %s", ce);
-                            weakList.remove(ce);
-                            try
-                            {
-                                Files.deleteIfExists(ce.getPath());
-                            }
-                            catch (Exception ex)
-                            {
-                                log.log(Level.SEVERE, ex, "remove: %s", ex.getMessage());
+                                indexEntry = ie;
                             }
                         }
                     }
-                    if (entry == null)
+                    if (indexEntry == null)
                     {   // if not found but there was empty varyMap entry, use it
-                        entry = emptyVaryMapEntry;
+                        indexEntry = emptyVaryMapEntry;
                     }
-                    if (entry != null)
+                    if (indexEntry != null)
                     {
-                        if (entry.isStale())
+                        if (indexEntry.isStale(clock.millis()))
                         {
                             TaggableThread.tag("Connection Type", "Stale");
-                            log.finer("stale entry %s", entry);
-                            stale = entry;
-                            entry = weakList.stream().filter((x)->{return x.isRefreshing(request);}).findAny().orElse(null);
+                            log.finer("stale entry %s", indexEntry);
+                            CacheEntry shared = indexEntry.getEntry();
+                            stale = open(indexEntry, request);
+                            staleExclusive = stale != null && stale != shared && stale != indexEntry.getEntry();
+                            if (stale != null && !staleExclusive && !use(stale, used))
+                            {
+                                continue;
+                            }
+                            entry = inFlight.get(digest, indexEntry.getVaryMap());
+                            if (entry != null && !use(entry, used))
+                            {
+                                entry = null;
+                            }
                             if (entry != null)
                             {
                                 log.fine("found running refresh entry %s", entry);
@@ -265,72 +335,464 @@ public class Cache
                         }
                         else
                         {
-                            if (entry.matchRequest(request))
+                            if (!request.isRefreshAttempt())
+                            {
+                                hot = hotCache.get(indexEntry.getPath(), requestTarget);
+                            }
+                            if (hot != null)
                             {
-                                TaggableThread.tag("Connection Type", "Hit");
-                                log.info("cache hit %s", entry);
+                                TaggableThread.tag("Connection Type", "Hot");
+                                log.info("hot cache hit %s", indexEntry);
                             }
                             else
                             {
-                                entry = null;
+                                CacheEntry shared = indexEntry.getEntry();
+                                entry = open(indexEntry, request);
+                                if (entry != null)
+                                {
+                                    exclusive = entry != shared && entry != indexEntry.getEntry();
+                                    if (!exclusive && !use(entry, used))
+                                    {
+                                        continue;
+                                    }
+                                }
+                                if (entry != null && entry.matchRequest(request))
+                                {
+                                    TaggableThread.tag("Connection Type", "Hit");
+                                    log.info("cache hit %s", entry);
+                                    if (!exclusive)
+                                    {
+                                        inFlight.attached();
+                                    }
+                                }
+                                else
+                                {
+                                    if (exclusive)
+                                    {
+                                        entry.release();
+                                        exclusive = false;
+                                    }
+                                    entry = null;
+                                }
                             }
                         }
                     }
-                    if (entry == null)
+                    if (entry == null && hot == null)
                     {
-                        if (entry == null || !entry.matchRequest(request))
+                        VaryMap variant = stale != null ? indexEntry.getVaryMap() : VaryMap.Empty;
+                        CacheEntry st = stale;
+                        try
                         {
-                            TaggableThread.tag("Connection Type", "New");
-                            log.finer("new entry for %s", requestTarget);
-                            entry = new CacheEntry(true, createUniqueFile(requestTarget), request, stale);
-                            weakList.add(entry);
+                            entry = inFlight.getOrCreate(digest, variant, ()->createEntry(digest, variant, request, st));
+                            if (!use(entry, used))
+                            {
+                                continue;
+                            }
+                            if (!entry.matchRequest(request))
+                            {   // in-flight fetch turned out to be other variant
+                                entry = createEntry(digest, null, request, stale);
+                                use(entry, used);
+                            }
                         }
-                        else
+                        catch (UncheckedIOException ex)
                         {
-                            log.finer("couldn't start another refresh %s", requestTarget);
+                            throw ex.getCause();
                         }
                     }
                 }
                 finally
                 {
-                    weakList.unlock();
+                    lock.unlock();
+                    obsolete.forEach(Cache::queueDelete);
+                }
+                index.checkFilter();
+                if (hot != null)
+                {
+                    hot.send(userAgent);
+                    touch(hot);
+                    TaggableThread.tag("Cache State", State.Full);
+                    return true;
+                }
+                State state = null;
+                if (stale == null)
+                {
+                    log.info("start new request %s", entry);
+                    try
+                    {
+                        state = entry.readFromCache(request, userAgent);
+                    }
+                    finally
+                    {
+                        if (exclusive)
+                        {
+                            entry.release();
+                        }
+                    }
+                    log.finer("end new request %s %s", state, entry);
+                }
+                else
+                {
+                    log.finer("try to refresh %s timeout=%d", entry, Config.getRefreshTimeout());
+                    state = entry.readFromCache(request, userAgent, Config.getRefreshTimeout());
+                    log.finer("refresh attempt resulted %s %s", state, entry);
+                }
+                TaggableThread.tag("Cache State", state);
+                switch (state)
+                {
+                    case Full:
+                    case NotCached:
+                    case Error:
+                    case UserAgentGaveUp:
+                        return true;
+                    case NoMatch:
+                        continue;
+                    case Timeout:
+                    case NotModified:
+                        TaggableThread.tag("Connection Type", "Stale");
+                        log.info("using stale %s", stale);
+                        stale.readFromCache(request, userAgent);
+                        return true;
+                    default:
+                        throw new IllegalArgumentException(state+" unexpected");
                 }
             }
             finally
             {
-                lock.unlock();
+                if (staleExclusive)
+                {
+                    stale.release();
+                }
+                used.forEach(CacheEntry::unuse);
             }
-            State state = null;
-            if (stale == null)
+        }
+    }
+    /**
+     * Reserves shared entry for request and adds it to used.
+     * @param entry
+     * @param used
+     * @return False if entry has released its buffers and must not be used.
+     */
+    private static boolean use(CacheEntry entry, List<CacheEntry> used)
+    {
+        if (entry.use())
+        {
+            used.add(entry);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the most fresh entry of each variant. Paths of older entries 
+     * of a variant are added to obsolete unless they are fetching. Caller
+     * queues them for deletion after releasing index lock.
+     * @param list
+     * @param obsolete
+     * @return 
+     */
+    private static List<IndexEntry> selectVariants(List<IndexEntry> list, List<Path> obsolete)
+    {
+        int size = list.size();
+        if (size < 2)
+        {
+            return list;
+        }
+        List<IndexEntry> best = new ArrayList<>(size);
+        List<IndexEntry> old = new ArrayList<>();
+        for (IndexEntry ie : list)
+        {
+            int idx = indexOfVariant(best, ie.getVaryMap());
+            if (idx == -1)
             {
-                log.info("start new request %s", entry);
-                state = entry.readFromCache(request, userAgent);
-                log.finer("end new request %s %s", state, entry);
+                best.add(ie);
             }
             else
             {
-                log.finer("try to refresh %s timeout=%d", entry, Config.getRefreshTimeout());
-                state = entry.readFromCache(request, userAgent, Config.getRefreshTimeout());
-                log.finer("refresh attempt resulted %s %s", state, entry);
+                IndexEntry other = best.get(idx);
+                if (ie.compareTo(other) < 0)
+                {
+                    best.set(idx, ie);
+                    old.add(other);
+                }
+                else
+                {
+                    old.add(ie);
+                }
+            }
+        }
+        for (IndexEntry ie : old)
+        {
+            if (ie.getEntry() == null && ie.markObsolete())
+            {
+                log.fine("remove  old %s", ie);
+                obsolete.add(ie.getPath());
             }
-            TaggableThread.tag("Cache State", state);
-            switch (state)
+        }
+        return best;
+    }
+    private static int indexOfVariant(List<IndexEntry> list, VaryMap varyMap)
+    {
+        int size = list.size();
+        for (int ii=0;ii<size;ii++)
+        {
+            if (list.get(ii).getVaryMap().equals(varyMap))
             {
-                case Full:
-                case NotCached:
-                case Error:
-                    return true;
-                case NoMatch:
-                    continue;
-                case Timeout:
-                case NotModified:
-                    TaggableThread.tag("Connection Type", "Stale");
-                    log.info("using stale %s", stale);
-                    stale.readFromCache(request, userAgent);
-                    return true;
-                default:
-                    throw new IllegalArgumentException(state+" unexpected");
+                return ii;
+            }
+        }
+        return -1;
+    }
+    /**
+     * Creates new fetching entry.
+     * @param digest
+     * @param variant Variant of in-flight registration or null if not 
+     * registered.
+     * @param request
+     * @param stale
+     * @return 
+     */
+    private static CacheEntry createEntry(byte[] digest, VaryMap variant, HttpHeaderParser request, CacheEntry stale)
+    {
+        try
+        {
+            TaggableThread.tag("Connection Type", "New");
+            log.finer("new entry for %s", request.getRequestTarget());
+            CacheEntry entry = new CacheEntry(true, createUniqueFile(digest), request, stale);
+            if (variant != null)
+            {
+                entry.setInFlight(digest, variant);
             }
+            index.add(digest, entry);
+            return entry;
+        }
+        catch (IOException ex)
+        {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    /**
+     * Opens indexed entry. Returns null and removes index entry if file 
+     * was deleted without notification.
+     * @param indexEntry
+     * @param request
+     * @return 
+     */
+    private static CacheEntry open(IndexEntry indexEntry, HttpHeaderParser request)
+    {
+        try
+        {
+            return indexEntry.open(request);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            if (ex.getCause() instanceof NoSuchFileException)
+            {
+                log.warning("%s deleted without notification", indexEntry.getPath());
+                index.remove(indexEntry);
+                return null;
+            }
+            throw ex;
+        }
+    }
+
+    static CacheIndex getIndex()
+    {
+        return index;
+    }
+
+    static MetadataStore getMetadataStore()
+    {
+        return metadataStore;
+    }
+
+    static HotCache getHotCache()
+    {
+        return hotCache;
+    }
+
+    static SlabStore getSlabStore()
+    {
+        return slabStore;
+    }
+    /**
+     * Returns slab slot for path or null if content is in file.
+     * @param path
+     * @return 
+     */
+    static SlabStore.Slot getSlot(Path path)
+    {
+        SlabStore ss = slabStore;
+        return ss != null ? ss.get(path) : null;
+    }
+    /**
+     * Updates access time of hot entry's file or slab slot, because hot hits
+     * don't open the file. Otherwise Remover would see the most popular 
+     * files as coldest. Updated at most twice in removal interval.
+     * @param hot 
+     */
+    private static void touch(HotCache.Hot hot)
+    {
+        long now = clock.millis();
+        if (hot.touch(now, Config.getRemovalInterval()/2))
+        {
+            Path path = hot.getPath();
+            try
+            {
+                BasicFileAttributeView view = getSlot(path);
+                if (view == null)
+                {
+                    view = Files.getFileAttributeView(path, BasicFileAttributeView.class);
+                }
+                view.setTimes(null, FileTime.fromMillis(now), null);
+            }
+            catch (IOException ex)
+            {
+                log.finer("touch %s: %s", path, ex.getMessage());
+            }
+        }
+    }
+    static BufferPool getBufferPool()
+    {
+        return bufferPool;
+    }
+
+    static Cleaner getCleaner()
+    {
+        return cleaner;
+    }
+
+    static OriginLimiter getOriginLimiter()
+    {
+        return originLimiter;
+    }
+
+    static OriginPool getOriginPool()
+    {
+        return originPool;
+    }
+
+    static DnsCache getDnsCache()
+    {
+        return dnsCache;
+    }
+
+    static OriginConnector getOriginConnector()
+    {
+        return originConnector;
+    }
+
+    static TlsSessions getTlsSessions()
+    {
+        return tlsSessions;
+    }
+    /**
+     * Returns client context for origin connections. Its session cache
+     * resumes sessions by host and port. Use TlsSessions.forPeer to create
+     * engines.
+     * @return 
+     */
+    static SSLContext getOriginSslContext()
+    {
+        return originSslCtx;
+    }
+
+    static InFlightRegistry<CacheEntry> getInFlight()
+    {
+        return inFlight;
+    }
+    /**
+     * Returns number of connections waiting for request header in selector
+     * loops.
+     * @return 
+     */
+    static int getSelectorConnections()
+    {
+        int count = 0;
+        for (SelectorLoop loop : selectorLoops)
+        {
+            count += loop.getConnections();
+        }
+        return count;
+    }
+
+    static DedupStore getDedupStore()
+    {
+        return dedupStore;
+    }
+    /**
+     * Replaces file with hard link to file with same content.
+     * @param path
+     * @param digest
+     * @param size 
+     */
+    static void dedup(Path path, byte[] digest, long size)
+    {
+        DedupStore ds = dedupStore;
+        if (ds != null && isDedupSize(size))
+        {
+            ds.link(path, digest, size);
+        }
+    }
+
+    private static void addDedup(IndexEntry ie)
+    {
+        try
+        {
+            if (State.Full.equals(ie.getState()) && isDedupSize(ie.getSize()) && getSlot(ie.getPath()) == null)
+            {
+                UserDefinedAttributes attrs = metadataStore.get(ie.getPath());
+                if (attrs != null && attrs.has(SHA1))
+                {
+                    dedupStore.add(ie.getPath(), attrs.get(SHA1), ie.getSize());
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            log.fine("dedup %s: %s", ie.getPath(), ex.getMessage());
+        }
+    }
+    /**
+     * Files packed to slab are not deduplicated.
+     */
+    private static boolean isDedupSize(long size)
+    {
+        return size > 0 && (slabStore == null || size > Config.getSlabMaxEntrySize());
+    }
+    /**
+     * Moves content of small full file to slab store and deletes the file.
+     * @param ie 
+     */
+    static void pack(IndexEntry ie)
+    {
+        SlabStore ss = slabStore;
+        if (ss == null || ie.getSize() > Config.getSlabMaxEntrySize() || ss.contains(ie.getPath()))
+        {
+            return;
+        }
+        Path path = ie.getPath();
+        try
+        {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ))
+            {
+                ss.put(path, attrs.creationTime().toMillis(), fc);
+            }
+        }
+        catch (IOException ex)
+        {
+            log.fine("pack %s: %s", path, ex.getMessage());
+            return;
+        }
+        try
+        {
+            Files.delete(path);
+            log.finer("packed %s", path);
+        }
+        catch (IOException ex)
+        {
+            log.fine("pack delete %s: %s", path, ex.getMessage());
+            ss.remove(path);
         }
     }
 
@@ -343,6 +805,28 @@ public class Cache
     {
         return executor;
     }
+    /**
+     * Returns executor for client connections, origin fetches and virtual
+     * circuits. In virtual mode tasks run in virtual threads.
+     * @return 
+     */
+    public static ExecutorService getWorkerExecutor()
+    {
+        return virtualExecutor != null ? virtualExecutor : executor;
+    }
+    /**
+     * Returns number of running worker tasks.
+     * @return 
+     */
+    static int getActiveWorkers()
+    {
+        return virtualExecutor != null ? virtualExecutor.getActiveCount() : executor.getActiveCount();
+    }
+
+    static TimerWheel getTimerWheel()
+    {
+        return timerWheel;
+    }
 
     public static ScheduledExecutorService getScheduler()
     {
@@ -351,20 +835,32 @@ public class Cache
 
     public static void submit(Runner entry)
     {
-        lock.lock();
-        try
-        {
-            Future<Boolean> future = executor.submit(entry);
-            requestMap.put(future, entry);
-        }
-        finally
-        {
-            lock.unlock();
-        }
+        RunnerTask task = new RunnerTask(entry);
+        task.watch(Math.min(Config.getMaxIdle() + 1, Config.getRestartInterval()));
+        getWorkerExecutor().execute(task);
+    }
+
+    /**
+     * Adds listener which is notified when file is about to be deleted.
+     * Listener is called before file is actually deleted.
+     * @param listener 
+     */
+    public static void addInvalidationListener(Consumer<Path> listener)
+    {
+        invalidationListeners.add(listener);
     }
 
+    public static void removeInvalidationListener(Consumer<Path> listener)
+    {
+        invalidationListeners.remove(listener);
+    }
+    /**
+     * Publishes invalidation and queues path for deletion.
+     * @param path 
+     */
     public static void queueDelete(Path path)
     {
+        invalidationListeners.forEach((l)->l.accept(path));
         try
         {
             deleteQueue.put(path);
@@ -374,44 +870,62 @@ public class Cache
             throw new IllegalArgumentException(ex);
         }
     }
-    public static String getDigest(CharSequence seq)
+    /**
+     * Returns SHA-1 digest of request target. Returned array is thread local
+     * and is overwritten by next call from same thread.
+     * @param seq
+     * @return 
+     */
+    public static byte[] digest(CharSequence seq)
     {
-        try
-        {
-            MessageDigest sha1 = MessageDigest.getInstance("SHA-1", "BC");
-            int len = seq.length();
-            for (int ii=0;ii<len;ii++)
-            {
-                sha1.update((byte) seq.charAt(ii));
-            }
-            byte[] digest = sha1.digest();
-            StringBuilder sb  = new StringBuilder();
-            for (int ii=0;ii<digest.length;ii++)
-            {
-                sb.append(Integer.toHexString(digest[ii]&0xff));
-            }
-            return sb.toString();
-        }
-        catch (NoSuchAlgorithmException | NoSuchProviderException ex)
+        return digester.get().digest(seq);
+    }
+    /**
+     * Returns SHA-1 digest of request target bytes. Returned array is thread 
+     * local and is overwritten by next call from same thread.
+     * @param buf
+     * @param offset
+     * @param length
+     * @return 
+     */
+    public static byte[] digest(byte[] buf, int offset, int length)
+    {
+        return digester.get().digest(buf, offset, length);
+    }
+    /**
+     * Returns digest as zero padded hex string.
+     * @param digest
+     * @return 
+     */
+    public static String toHex(byte[] digest)
+    {
+        StringBuilder sb  = new StringBuilder();
+        for (int ii=0;ii<digest.length;ii++)
         {
-            throw new IllegalArgumentException(ex);
+            sb.append(Character.forDigit((digest[ii]>>4)&0xf, 16));
+            sb.append(Character.forDigit(digest[ii]&0xf, 16));
         }
+        return sb.toString();
     }
 
-    public static File getDirectory2(String digest)
+    public static File getDirectory2(byte[] digest)
     {
-        File dir1 = new File(Config.getCacheDir(), Integer.toHexString(digest.charAt(0)&0xff));
-        return new File(dir1, Integer.toHexString(digest.charAt(1)&0xff));
+        File dir1 = new File(Config.getCacheDir(), String.format("%02x", digest[0]&0xff));
+        return new File(dir1, String.format("%02x", digest[1]&0xff));
     }
 
-    public static File createUniqueFile(String requestTarget) throws IOException
+    public static File createUniqueFile(byte[] digest) throws IOException
     {
-        String digest = getDigest(requestTarget);
+        String hex = toHex(digest);
         File dir2 = getDirectory2(digest);
         dir2.mkdirs();
         for (int ii=0;ii<1000;ii++)
         {
-            File file = new File(dir2, digest + Integer.toHexString(ii));
+            File file = new File(dir2, hex + '-' + Integer.toHexString(ii));
+            if (slabStore != null && slabStore.contains(file.toPath()))
+            {
+                continue;
+            }
             try
             {
                 if (file.createNewFile())
@@ -450,6 +964,19 @@ public class Cache
             log.config("started HttpSocketServer on port %d", Config.getHttpCachePort());
             ServerSocketChannel serverSocket = ServerSocketChannel.open();
             serverSocket.bind(new InetSocketAddress(Config.getHttpCachePort()));
+            SelectorLoop[] loops = new SelectorLoop[0];
+            if (Config.ConnectionMode.Selector.equals(Config.getConnectionMode()))
+            {
+                loops = new SelectorLoop[Config.getSelectorLoops()];
+                for (int ii=0;ii<loops.length;ii++)
+                {
+                    loops[ii] = new SelectorLoop(Scheme.HTTP);
+                    executor.submit(loops[ii]);
+                }
+                log.config("started %d selector loops", loops.length);
+            }
+            selectorLoops = loops;
+            int next = 0;
             while (true)
             {
                 try
@@ -465,8 +992,16 @@ public class Cache
                         return null;
                     }
                     log.finer("http accept: %s", socketChannel);
-                    ConnectionHandler connection = new ConnectionHandler(Scheme.HTTP, socketChannel);
-                    executor.submit(connection);
+                    if (loops.length > 0)
+                    {
+                        loops[next].register(socketChannel);
+                        next = (next+1) % loops.length;
+                    }
+                    else
+                    {
+                        ConnectionHandler connection = new ConnectionHandler(Scheme.HTTP, socketChannel);
+                        getWorkerExecutor().submit(connection);
+                    }
                 }
                 catch (Exception ex)
                 {
@@ -513,6 +1048,7 @@ public class Cache
                     request.parseRequest();
                     log.fine("https proxy received from user: %s\n%s", socketChannel, request);
                     keyStoreManager.setServerName(request.getHost());   // in case client doesn't use sni
+                    keyStoreManager.prepare(KeyStoreManager.makeWildcard(request.getHost()));
                     bb.position(request.getHeaderSize());
                     ByteBuffer wrap = ByteBuffer.wrap(ConnectResponse);
                     log.debug(()->HexDump.remainingToHex(wrap));
@@ -521,7 +1057,7 @@ public class Cache
                     sslSocketChannel.setHostFilter(Config::needsVirtualCircuit);
                     sslSocketChannel.addSNIObserver(keyStoreManager.getSNIConsumer());
                     ConnectionHandler connection = new ConnectionHandler(Scheme.HTTPS, sslSocketChannel);
-                    executor.submit(connection);
+                    getWorkerExecutor().submit(connection);
                 }
                 catch (Exception ex)
                 {
@@ -556,7 +1092,7 @@ public class Cache
                     sslSocketChannel.addSNIObserver(keyStoreManager.getSNIConsumer());
                     log.finer("https accept: %s", sslSocketChannel);
                     ConnectionHandler connection = new ConnectionHandler(Scheme.HTTPS, sslSocketChannel);
-                    executor.submit(connection);
+                    getWorkerExecutor().submit(connection);
                 }
                 catch (Exception ex)
                 {
@@ -565,76 +1101,132 @@ public class Cache
             }
         }
     }
-    private class EntryHandler implements Runnable
+    /**
+     * Runs Runner and handles its completion as soon as it has finished. 
+     * Idle check is scheduled in timer wheel.
+     */
+    private static class RunnerTask extends FutureTask<Boolean>
     {
+        private final Runner runner;
+        private volatile TimerWheel.Timeout idleCheck;
+        private volatile boolean abandoned;
+
+        public RunnerTask(Runner runner)
+        {
+            super(runner);
+            this.runner = runner;
+        }
+        /**
+         * Completion is handled after callable has returned, also when
+         * cancelled. Otherwise restart could run concurrently with 
+         * cancelled run.
+         */
         @Override
         public void run()
         {
             try
             {
-                Iterator<Entry<Future<Boolean>,Runner>> iterator1 = requestMap.entrySet().iterator();
-                while (iterator1.hasNext())
+                super.run();
+            }
+            finally
+            {
+                completed();
+            }
+        }
+
+        private void watch(long delay)
+        {
+            idleCheck = timerWheel.schedule(delay, this::checkIdle);
+        }
+        
+        private void checkIdle()
+        {
+            if (isDone())
+            {
+                return;
+            }
+            if (getActiveWorkers() > Config.getThreadThreshold() && !runner.hasClients())
+            {
+                abandoned = true;
+                cancel(true);
+                log.fine("cancelled and removed because no one is waiting %s", runner);
+                return;
+            }
+            long idle = runner.idle();
+            if (idle > Config.getMaxIdle())
+            {
+                cancel(true); // will be restarted
+                log.fine("cancelled because exceeds max idle time %s", runner);
+            }
+            else
+            {
+                watch(Math.min(Config.getMaxIdle() - idle + 1, Config.getRestartInterval()));
+            }
+        }
+        
+        private void completed()
+        {
+            TimerWheel.Timeout timeout = idleCheck;
+            if (timeout != null)
+            {
+                timeout.cancel();
+            }
+            if (abandoned)
+            {
+                runner.releaseAll();
+                return;
+            }
+            boolean success = false;
+            if (!isCancelled())
+            {
+                try
                 {
-                    Entry<Future<Boolean>,Runner> e = iterator1.next();
-                    Future<Boolean> f = e.getKey();
-                    Runner runner = e.getValue();
-                    if (f.isDone())
-                    {
-                        iterator1.remove();
-                        Boolean success = f.get();
-                        if (!success)
-                        {
-                            if (runner.getStartCount() > Config.getMaxRestartCount())
-                            {
-                                log.info("%s restarted more times than allowed %d", runner, Config.getMaxRestartCount());
-                                runner.releaseAll();
-                            }
-                            else
-                            {
-                                if (runner.needsStart())
-                                {
-                                    log.fine("restart %s", runner);
-                                    submit(runner);
-                                }
-                                else
-                                {
-                                    log.fine("not restarted (because no one is waiting?) %s", runner);
-                                    runner.releaseAll();
-                                }
-                            }
-                        }
-                        else
-                        {
-                            log.fine("success %s", runner);
-                        }
-                    }
-                    else
-                    {
-                        if (executor.getActiveCount() > Config.getThreadThreshold() && !runner.hasClients())
-                        {
-                            f.cancel(true);
-                            iterator1.remove();
-                            log.fine("cancelled and removed because no one is waiting %s", runner);
-                        }
-                        else
-                        {
-                            if (runner.idle() > Config.getMaxIdle())
-                            {
-                                f.cancel(true); // will be restarted
-                                log.fine("cancelled because exceeds max idle time %s", runner);
-                            }
-                        }
-                    }
-                    Thread.sleep(Config.getRestartInterval());
+                    success = get();
+                }
+                catch (InterruptedException | ExecutionException ex)
+                {
+                    log.log(Level.SEVERE, ex, "%s", ex.getMessage());
                 }
             }
-            catch (InterruptedException | ExecutionException ex)
+            if (!success)
             {
-                log.log(Level.SEVERE, ex, "%s", ex.getMessage());
+                if (runner.getStartCount() > Config.getMaxRestartCount())
+                {
+                    log.info("%s restarted more times than allowed %d", runner, Config.getMaxRestartCount());
+                    runner.releaseAll();
+                }
+                else
+                {
+                    timerWheel.schedule(Config.getRestartInterval(), this::restart);
+                }
+            }
+            else
+            {
+                log.fine("success %s", runner);
+            }
+        }
+        
+        private void restart()
+        {
+            if (runner.needsStart())
+            {
+                log.fine("restart %s", runner);
+                try
+                {
+                    submit(runner);
+                }
+                catch (RejectedExecutionException ex)
+                {
+                    log.fine("not restarted because executor is shut down %s", runner);
+                    runner.releaseAll();
+                }
+            }
+            else
+            {
+                log.fine("not restarted (because no one is waiting?) %s", runner);
+                runner.releaseAll();
             }
-            log.debug("%s", executor);
         }
-
     }
     private class Deleter implements Callable<Void>
     {
@@ -648,17 +1240,9 @@ public class Cache
                 try
                 {
                     Path path = deleteQueue.take();
-                    lock.lock();
-                    try
-                    {
-                        boolean success = Files.deleteIfExists(path);
-                        log.fine("deleted %s success=%b", path, success);
-                        Files.deleteIfExists(ExternalFileAttributes.getAttributePath(path));
-                    }
-                    finally
-                    {
-                        lock.unlock();
-                    }
+                    boolean success = Files.deleteIfExists(path);
+                    log.fine("deleted %s success=%b", path, success);
+                    Files.deleteIfExists(ExternalFileAttributes.getAttributePath(path));
                 }
                 catch (IOException ex)
                 {
@@ -667,25 +1251,70 @@ public class Cache
             }
         }
     }
-    private class ShutdownHook implements Runnable
+    private static class Digester
     {
+        private final MessageDigest sha1;
+        private final byte[] digest = new byte[DigestTable.DigestLength];
+        private byte[] buf = new byte[256];
 
-        @Override
-        public void run()
+        public Digester()
         {
-            log.config("waiting to shutdown");
-            lock.lock();
             try
             {
-                log.config("starting shutdown");
-                scheduler.shutdownNow();
-                executor.shutdownNow();
-                log.config("shutdown ready");
+                sha1 = MessageDigest.getInstance("SHA-1");
             }
-            finally
+            catch (NoSuchAlgorithmException ex)
+            {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        
+        public byte[] digest(CharSequence seq)
+        {
+            int len = seq.length();
+            if (buf.length < len)
+            {
+                buf = new byte[len];
+            }
+            for (int ii=0;ii<len;ii++)
+            {
+                buf[ii] = (byte) seq.charAt(ii);
+            }
+            return digest(buf, 0, len);
+        }
+        
+        public byte[] digest(byte[] b, int offset, int length)
+        {
+            try
+            {
+                sha1.update(b, offset, length);
+                sha1.digest(digest, 0, digest.length);
+                return digest;
+            }
+            catch (DigestException ex)
+            {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+    }
+    private class ShutdownHook implements Runnable
+    {
+
+        @Override
+        public void run()
+        {
+            log.config("starting shutdown");
+            scheduler.shutdownNow();
+            executor.shutdownNow();
+            if (virtualExecutor != null)
             {
-                lock.unlock();
+                virtualExecutor.shutdownNow();
             }
+            log.config("write index snapshot");
+            flushJournals();
+            index.snapshot();
+            metadataStore.force();
+            log.config("shutdown ready");
         }
         
     }
@@ -55,7 +55,9 @@ public class CacheConstants
     public static final CharSequence Host = CharSequences.getConstant("Host", OP);
     public static final CharSequence Connection = CharSequences.getConstant("Connection", OP);
     public static final CharSequence ProxyConnection = CharSequences.getConstant("Proxy-Connection", OP);
+    public static final CharSequence KeepAlive = CharSequences.getConstant("Keep-Alive", OP);
     public static final CharSequence ContentLength = CharSequences.getConstant("Content-Length", OP);
+    public static final CharSequence TransferEncoding = CharSequences.getConstant("Transfer-Encoding", OP);
     public static final CharSequence ContentRange = CharSequences.getConstant("Content-Range", OP);
     public static final CharSequence Vary = CharSequences.getConstant("Vary", OP);
     public static final CharSequence LastModified = CharSequences.getConstant("Last-Modified", OP);
@@ -71,10 +73,12 @@ public class CacheConstants
     public static final CharSequence Bytes = CharSequences.getConstant("bytes", OP);
     
     public static final byte[] Resp200 = "HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.US_ASCII);
-    public static final CharSequence[] Resp200Excl = new CharSequence[] {ContentRange};
+    public static final CharSequence[] HopByHop = new CharSequence[] {Connection, ProxyConnection, KeepAlive};
+    public static final CharSequence[] Resp200Excl = new CharSequence[] {ContentRange, Connection, ProxyConnection, KeepAlive};
     public static final byte[] Resp304 = "HTTP/1.1 304 Not Modified\r\n".getBytes(StandardCharsets.US_ASCII);
     public static final CharSequence[] Resp304Incl = new CharSequence[] {CacheControl, ContentLocation, Date, ETag, Expires, Vary};
     
     public static final byte[] ConnectResponse = "HTTP/1.1 200 OK\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    public static final byte[] ServiceUnavailableResponse = "HTTP/1.1 503 Service Unavailable\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
 
 }
@@ -19,11 +19,14 @@ package org.vesalainen.web.cache;
 import org.vesalainen.web.parser.HttpHeaderParser;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.FileChannel;
 import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import static java.nio.file.LinkOption.*;
 import java.nio.file.Path;
 import static java.nio.file.StandardOpenOption.*;
@@ -38,17 +41,23 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
 import org.vesalainen.lang.Primitives;
 import org.vesalainen.nio.ByteBufferCharSequence;
+import org.vesalainen.nio.channels.ChannelHelper;
 import org.vesalainen.nio.file.attribute.ExternalFileAttributes;
 import org.vesalainen.nio.file.attribute.UserDefinedAttributes;
 import org.vesalainen.nio.file.attribute.UserDefinedFileAttributes;
 import org.vesalainen.regex.SyntaxErrorException;
 import org.vesalainen.time.SimpleMutableDateTime;
+import org.vesalainen.util.CharSequences;
 import org.vesalainen.util.concurrent.TaggableThread;
 import org.vesalainen.util.concurrent.WaiterList;
 import org.vesalainen.util.logging.JavaLogging;
@@ -65,18 +74,36 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     private boolean heuristic;
 
     public enum State {UserAgentGaveUp, Timeout, NoMatch, Error, NotCached, NotModified, New, Partial, Full};
+    private enum Progress {Waiting, Header, Received, NotModified};
     private State state;
+    private static final AtomicInteger openFiles = new AtomicInteger();
     private final Path path;
-    private FileChannel fileChannel;
+    private final FileHandle file;
+    private final Cleaner.Cleanable cleanable;
     private ByteBuffer bb;
     private ByteBuffer responseBuffer;
     private HttpHeaderParser response;
     private HttpHeaderParser request;
     private String requestTarget;
-    private WaiterList<Receiver> receiverList;
+    private final Collection<Receiver> receivers = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock progressLock = new ReentrantLock();
+    private final Condition progressed = progressLock.newCondition();
+    private Progress progress = Progress.Waiting;
+    private ByteBuffer progressHeader;
+    private boolean progressDelimited;
+    private long committed;
+    private int releases;
     private WaiterList<Object> fullWaiters;
     private long contentLength;
+    private OriginPool.Connection origin;
     private ByteChannel originServer;
+    private long originExpected;
+    private long originRead;
+    private boolean originKeepAlive;
+    private OriginLimiter.Permit permit;
+    private byte[] inFlightDigest;
+    private VaryMap inFlightVariant;
+    private volatile boolean inFlight;
     private BasicFileAttributeView basicAttr;
     private UserDefinedAttributes userAttr;
     private CacheEntry staleEntry;
@@ -87,6 +114,13 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     private boolean initial;
     private byte[] staleDigest;
     private long active;
+    private IndexEntry indexEntry;
+    private MessageDigest sha1;
+    private long digested;
+    private BufferPool.Lease lease;
+    private int users;
+    private boolean ended;
+    private boolean leaseReleased;
 
     public CacheEntry(boolean original, Path path, HttpHeaderParser request)
     {
@@ -100,16 +134,20 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         {
             this.initial = initial;
             this.path = file.toPath();
-            basicAttr = Files.getFileAttributeView(path, BasicFileAttributeView.class, NOFOLLOW_LINKS);
-            if (initial || ExternalFileAttributes.exists(path))
+            SlabStore.Slot slot = null;
+            if (!initial)
             {
-                userAttr = new ExternalFileAttributes(path);
+                slot = Cache.getSlot(path);
+            }
+            if (slot != null)
+            {
+                basicAttr = slot;
             }
             else
             {
-                finest("load user defined attrs %s initial=%b, exists=%b", path, initial, ExternalFileAttributes.exists(path));
-                userAttr = new UserDefinedFileAttributes(path, BufferSize, NOFOLLOW_LINKS);
+                basicAttr = Files.getFileAttributeView(path, BasicFileAttributeView.class, NOFOLLOW_LINKS);
             }
+            userAttr = attributes(path, initial);
             this.request = request;
             this.requestTarget = request.getRequestTarget();
             finest("%s: %s", requestTarget, userAttr);
@@ -118,13 +156,26 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
             {
                 this.staleDigest = stale.getDigest();
             }
-            fileChannel = FileChannel.open(path, READ, WRITE);
-            receiverList = new WaiterList<>();
+            this.file = new FileHandle(path, slot);
+            this.cleanable = Cache.getCleaner().register(this, this.file);
+            if (slot != null)
+            {
+                setLastAccessTime();
+            }
             fullWaiters = new WaiterList<>();
-            bb = ByteBuffer.allocateDirect(BufferSize);
-            responseBuffer = ByteBuffer.allocateDirect(BufferSize);
+            lease = Cache.getBufferPool().lease(this);
+            bb = lease.get(BufferSize);
+            responseBuffer = lease.get(BufferSize);
             response = HttpHeaderParser.getInstance(Scheme.HTTP, responseBuffer);
+            if (initial)
+            {
+                this.request = request.copyRequest(lease.get(BufferSize));
+            }
             refresh();
+            if (!initial && !State.Full.equals(state))
+            {
+                this.request = request.copyRequest(lease.get(BufferSize));
+            }
         }
         catch (IOException ex)
         {
@@ -132,17 +183,80 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         }
     }
 
-    @Override
-    protected void finalize() throws Throwable
+    /**
+     * Returns attributes for cache file. Attributes are kept in metadata 
+     * store. Existing external attributes or user defined attributes are 
+     * migrated to metadata store.
+     * @param path
+     * @param initial
+     * @return
+     * @throws IOException 
+     */
+    static UserDefinedAttributes attributes(Path path, boolean initial) throws IOException
+    {
+        MetadataStore store = Cache.getMetadataStore();
+        if (store == null)
+        {
+            return legacyAttributes(path, initial);
+        }
+        UserDefinedAttributes attrs = store.get(path);
+        if (attrs != null)
+        {
+            return attrs;
+        }
+        if (initial)
+        {
+            return store.create(path);
+        }
+        UserDefinedAttributes legacy = legacyAttributes(path, initial);
+        if (!legacy.has(XOrigRequestTarget))
+        {
+            return legacy;
+        }
+        try
+        {
+            return store.migrate(path, legacy);
+        }
+        catch (IOException ex)
+        {
+            Cache.log().warning("migrate %s: %s", path, ex.getMessage());
+            return legacy;
+        }
+    }
+    private static UserDefinedAttributes legacyAttributes(Path path, boolean initial) throws IOException
     {
-        super.finalize();
-        if (originServer != null)
+        if (initial || ExternalFileAttributes.exists(path))
         {
-            originServer.close();
+            return new ExternalFileAttributes(path);
         }
-        if (fileChannel != null)
+        else
         {
-            fileChannel.close();
+            Cache.log().finest("load user defined attrs %s initial=%b, exists=%b", path, initial, ExternalFileAttributes.exists(path));
+            return new UserDefinedFileAttributes(path, BufferSize, NOFOLLOW_LINKS);
+        }
+    }
+    /**
+     * Returns the time original response was received.
+     * @param userAttr
+     * @return
+     * @throws IOException 
+     */
+    static long origMillis(UserDefinedAttributes userAttr) throws IOException
+    {
+        if (userAttr.has(XOrigMillis))
+        {
+            return userAttr.getLong(XOrigMillis);
+        }
+        else
+        {
+            if (userAttr.has(LastNotModified))
+            {
+                return userAttr.getLong(LastNotModified);
+            }
+            else
+            {
+                return Cache.getClock().millis();
+            }
         }
     }
 
@@ -157,24 +271,30 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
             case Error:
             case NotModified:
             case NotCached:
+                req.setPersistent(false);   // nothing was sent
                 return state;
+        }
+        file.open();
+        try
+        {
+            return read(req, userAgent, timeoutMillis);
+        }
+        finally
+        {
+            file.close();
+        }
+    }
+    private State read(HttpHeaderParser req, ByteChannel userAgent, long timeoutMillis) throws IOException
+    {
+        switch (state)
+        {
             case Full:
                 return sendFullResponse(req, userAgent);
             default:
                 ensureRunning();
                 if (timeoutMillis == Long.MAX_VALUE)
                 {
-                    Receiver receiver = new Receiver(req, userAgent, Thread.currentThread());
-                    receiver.update();
-                    switch (receiverList.wait(receiver, timeoutMillis, TimeUnit.MILLISECONDS))
-                    {
-                        case Release:
-                            return state;
-                        case Interrupt:
-                            return State.NoMatch;
-                        default:
-                            throw new IllegalStateException();
-                    }
+                    return receive(req, userAgent);
                 }
                 else
                 {
@@ -194,22 +314,205 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
                 }
         }
     }
+    /**
+     * Delivers response of running fetch to user agent in current thread.
+     * Receiver follows committed length of the file, so fetch doesn't wait
+     * for slow user agents.
+     * @param req
+     * @param userAgent
+     * @return
+     * @throws IOException 
+     */
+    private State receive(HttpHeaderParser req, ByteChannel userAgent) throws IOException
+    {
+        Receiver receiver = new Receiver(req, userAgent);
+        int generation;
+        progressLock.lock();
+        try
+        {
+            generation = releases;
+            receivers.add(receiver);
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
+        try
+        {
+            while (true)
+            {
+                Progress p;
+                ByteBuffer header;
+                boolean delimited;
+                long end;
+                boolean released;
+                progressLock.lock();
+                try
+                {
+                    while (
+                            releases == generation && 
+                            !isFinished() &&
+                            progress == receiver.seen && 
+                            (!receiver.streaming() || committed <= receiver.position)
+                            )
+                    {
+                        progressed.await();
+                    }
+                    p = progress;
+                    header = progressHeader;
+                    delimited = progressDelimited;
+                    end = committed;
+                    released = releases != generation || isFinished();
+                }
+                finally
+                {
+                    progressLock.unlock();
+                }
+                if (p != receiver.seen && !receiver.header(p, header, delimited))
+                {
+                    return State.NoMatch;
+                }
+                receiver.transfer(end);
+                if (released)
+                {
+                    if (Progress.Header.equals(receiver.seen) && !State.Full.equals(state))
+                    {
+                        req.setPersistent(false);   // content is not complete
+                    }
+                    return state;
+                }
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            throw new InterruptedIOException(requestTarget);
+        }
+        catch (IOException ex)
+        {
+            log(Level.FINER, ex, "gave up? %s", requestTarget);
+            req.setPersistent(false);
+            return State.UserAgentGaveUp;
+        }
+        finally
+        {
+            receivers.remove(receiver);
+        }
+    }
+    /**
+     * Returns true if fetch has ended and everything is published. This 
+     * catches receivers which came after releaseAll.
+     * @return 
+     */
+    private boolean isFinished()
+    {
+        if (running)
+        {
+            return false;
+        }
+        switch (state)
+        {
+            case Full:
+            case NotCached:
+            case NotModified:
+            case Error:
+                return true;
+            default:
+                return false;
+        }
+    }
+    /**
+     * Publishes response progress to receivers. Header is built here once
+     * and receivers only write it.
+     * @param p
+     * @throws IOException 
+     */
+    private void publish(Progress p) throws IOException
+    {
+        if (p == progress)
+        {
+            return;
+        }
+        ResponseBuilder builder;
+        boolean delimited;
+        switch (p)
+        {
+            case Header:
+                builder = headerBuilder(200);
+                delimited = isDelimited();
+                break;
+            case Received:
+                builder = receivedHeaderBuilder();
+                delimited = isDelimited();
+                break;
+            case NotModified:
+                builder = headerBuilder(304);
+                delimited = true;
+                break;
+            default:
+                throw new UnsupportedOperationException(p+" not supported");
+        }
+        fine("publish to %d receivers\n%s", receivers.size(), builder.getString());
+        ByteBuffer header = ByteBuffer.allocate(bb.remaining());
+        header.put(bb);
+        header.flip();
+        progressLock.lock();
+        try
+        {
+            progress = p;
+            progressHeader = header;
+            progressDelimited = delimited;
+            progressed.signalAll();
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
+    }
+    /**
+     * Signals receivers that file content is written up to length.
+     * @param length 
+     */
+    private void commit(long length)
+    {
+        progressLock.lock();
+        try
+        {
+            committed = length;
+            progressed.signalAll();
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
+    }
     @Override
     public Boolean call() throws Exception
     {
         active();
-        running = true;
+        progressLock.lock();
+        try
+        {
+            running = true;
+            ended = false;
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
         startCount++;
         fine("%d start with new thread %s", startCount, this);
+        boolean opened = false;
         try
         {
+            file.open();
+            opened = true;
             if (startTransfer())
             {
                 transferFrom();
             }
             if (contentLength == Integer.MAX_VALUE)
             {
-                contentLength = fileChannel.size();
+                contentLength = file.channel().size();
                 fine("missing Content-Length set as file length %d", contentLength);
             }
             updateState();
@@ -253,6 +556,7 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
                         {
                             updateNotModifiedCount();
                         }
+                        Cache.dedup(path, digest, file.channel().size());
                         staleEntry  = null;
                         finest("release full-waiters %s", this);
                         return true;
@@ -262,21 +566,47 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
                         releaseAll();
                     }
                 default:
-                    finest("keep full-waiters %d / %d %s", receiverList.size(), fullWaiters.size(), state);
+                    finest("keep full-waiters %d / %d %s", receivers.size(), fullWaiters.size(), state);
                     return false;
             }
         }
         catch (Exception ex)
         {
             log(ExceptionParser.brokenConnection(INFO, ex), ex, "%s", ex.getMessage());
+            originKeepAlive = false;
+            unregister();
             return false;
         }
         finally
         {
-            running = false;
-            if (originServer != null)
+            progressLock.lock();
+            try
+            {
+                running = false;
+                progressed.signalAll();
+            }
+            finally
+            {
+                progressLock.unlock();
+            }
+            if (origin != null)
             {
-                originServer.close();
+                releaseOrigin();
+            }
+            if (permit != null)
+            {
+                permit.release();
+                permit = null;
+            }
+            updateIndex();
+            if (!State.New.equals(state) && !State.Partial.equals(state))
+            {
+                unregister();
+                end();
+            }
+            if (opened)
+            {
+                file.close();
             }
         }
     }
@@ -302,17 +632,122 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     public void releaseAll()
     {
         fine("release all waiters");
-        receiverList.releaseAll();
+        unregister();
+        progressLock.lock();
+        try
+        {
+            releases++;
+            progressed.signalAll();
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
         fullWaiters.releaseAll();
+        end();
     }
     
-    private void deleteFile() throws IOException
+    /**
+     * Returns buffers to pool and closes file. Called when entry was created
+     * only for serving one request. Entry must not be used after this. 
+     * File of other entries is closed when entry is collected.
+     */
+    void release()
     {
-        if (fileChannel != null)
+        progressLock.lock();
+        try
+        {
+            leaseReleased = true;
+        }
+        finally
         {
-            fileChannel.close();
-            fileChannel = null;
+            progressLock.unlock();
         }
+        lease.release();
+        cleanable.clean();
+    }
+    /**
+     * Reserves shared entry for one request. Buffers are not released while
+     * entry is used.
+     * @return False if buffers are already released. Entry must not be used.
+     */
+    boolean use()
+    {
+        progressLock.lock();
+        try
+        {
+            if (leaseReleased)
+            {
+                return false;
+            }
+            users++;
+            return true;
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
+    }
+    /**
+     * Ends reservation made by use.
+     */
+    void unuse()
+    {
+        progressLock.lock();
+        try
+        {
+            users--;
+            releaseLease();
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
+    }
+    /**
+     * Marks fetch ended or given up.
+     */
+    private void end()
+    {
+        progressLock.lock();
+        try
+        {
+            ended = true;
+            releaseLease();
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
+    }
+    /**
+     * Returns buffers to pool when fetch has ended and no request uses
+     * entry. Called while holding progressLock.
+     */
+    private void releaseLease()
+    {
+        if (ended && !running && users == 0 && !leaseReleased)
+        {
+            leaseReleased = true;
+            lease.release();
+            if (indexEntry != null)
+            {
+                indexEntry.clear(this);
+            }
+        }
+    }
+    /**
+     * Returns number of cache files currently open.
+     * @return 
+     */
+    static int getOpenFiles()
+    {
+        return openFiles.get();
+    }
+    
+    private void deleteFile() throws IOException
+    {
+        file.delete();
         fine("enqueued for deletion %s", path);
         Cache.queueDelete(path);
     }
@@ -341,16 +776,28 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
 
     private void transferFrom() throws IOException
     {
-        long quitTime = 0;
         int maxTransferSize = Config.getMaxTransferSize();
-        long currentSize = fileChannel.size();
-        ByteBuffer buffer = ByteBuffer.allocateDirect(maxTransferSize);
+        long currentSize = file.channel().size();
+        BufferPool bufferPool = Cache.getBufferPool();
+        ByteBuffer buffer = bufferPool.get(maxTransferSize);
+        try
+        {
+            transferFrom(buffer, currentSize);
+        }
+        finally
+        {
+            bufferPool.release(buffer);
+        }
+    }
+    private void transferFrom(ByteBuffer buffer, long currentSize) throws IOException
+    {
+        long quitTime = 0;
         buffer.flip();
         while (currentSize < contentLength)
         {
             if (quitTime > 0 && Cache.getClock().millis() > quitTime)
             {
-                fine("giving up because all clients did so %s %d / %d rc=%d", requestTarget, currentSize, contentLength, receiverList.size());
+                fine("giving up because all clients did so %s %d / %d rc=%d", requestTarget, currentSize, contentLength, receivers.size());
                 return;
             }
             buffer.clear();
@@ -359,21 +806,19 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
             active();
             if (rc < 0)
             {
+                originKeepAlive = false;
                 finest("transferFrom:%s %d / %d rc=%d", requestTarget, currentSize, contentLength, rc);
                 return;
             }
+            originRead += rc;
             buffer.flip();
-            while (buffer.hasRemaining())
-            {
-                fileChannel.write(buffer, currentSize);
-            }
-            currentSize = fileChannel.size();
+            writeContent(buffer, currentSize);
+            currentSize = file.channel().size();
             if (quitTime == 0 && !hasClients())
             {
-                fine("no more clients %s %d / %d rc=%d", requestTarget, currentSize, contentLength, receiverList.size());
+                fine("no more clients %s %d / %d rc=%d", requestTarget, currentSize, contentLength, receivers.size());
                 quitTime = Cache.getClock().millis() + Config.getTimeoutAfterUserQuit();
             }
-            receiverList.stream().forEach(Receiver::update);
             debug("transferFrom:%s %d / %d", requestTarget, currentSize, contentLength);
         }
         finest("transferFrom:%s %d / %d ready", requestTarget, currentSize, contentLength);
@@ -383,28 +828,32 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     {
         fine("initialGet()");
         RequestBuilder builder = new RequestBuilder(bb, request, Connection, ProxyConnection, IfModifiedSince, IfNoneMatch, Range, IfRange);
-        builder.addHeader(Connection, "close");
         if (fetchHeader(builder))
         {
             if (response.getStatusCode() == 200)
             {
                 responseBuffer.position(response.getHeaderSize());
-                fileChannel.write(responseBuffer, 0);
+                writeContent(responseBuffer, 0);
                 updateState();
-                receiverList.stream().filter(Receiver::noMatch).forEach(Receiver::interrupt);
-                receiverList.stream().forEach(Receiver::header);
-                receiverList.stream().forEach(Receiver::update);
+                publish(Progress.Header);
                 return true;
             }
             else
             {
                 if (response.getStatusCode() < 500)
                 {
-                    receiverList.stream().forEach(Receiver::received);
+                    publish(Progress.Received);
                     fine("set to error because: %s", response);
                     state = State.Error;
                 }
-                return contentLength != Integer.MAX_VALUE;
+                if (contentLength != Integer.MAX_VALUE)
+                {
+                    // content already read must be written before reading the rest
+                    responseBuffer.position(response.getHeaderSize());
+                    writeContent(responseBuffer, 0);
+                    return true;
+                }
+                return false;
             }
         }
         return false;
@@ -414,12 +863,11 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     {
         fine("conditionalGet()");
         RequestBuilder builder = new RequestBuilder(bb, request, Connection, ProxyConnection);
-        builder.addHeader(Connection, "close");
         if (fetchHeader(builder))
         {
             if (response.getStatusCode() == 304)
             {
-                receiverList.stream().forEach(Receiver::notModified);
+                publish(Progress.NotModified);
                 updateNotModifiedCount();
                 state = State.NotModified;
                 return false;
@@ -428,18 +876,16 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
             if (response.getStatusCode() == 200)
             {
                 responseBuffer.position(response.getHeaderSize());
-                fileChannel.write(responseBuffer, 0);
+                writeContent(responseBuffer, 0);
                 updateState();
-                receiverList.stream().filter(Receiver::noMatch).forEach(Receiver::interrupt);
-                receiverList.stream().forEach(Receiver::header);
-                receiverList.stream().forEach(Receiver::update);
+                publish(Progress.Header);
                 return true;
             }
             else
             {
                 if (response.getStatusCode() < 500)
                 {
-                    receiverList.stream().forEach(Receiver::received);
+                    publish(Progress.Received);
                     fine("set to error because: %s", response);
                     state = State.Error;
                 }
@@ -452,7 +898,6 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     {
         fine("partialGet()");
         RequestBuilder builder = new RequestBuilder(bb, request, Connection, ProxyConnection, IfModifiedSince, IfNoneMatch, IfRange, Range);
-        builder.addHeader(Connection, "close");
         if (response.hasHeader(ETag) || response.hasHeader(LastModified))
         {
             if (response.acceptRanges())
@@ -467,7 +912,7 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
                     ByteBufferCharSequence lm = response.getHeader(LastModified);
                     builder.addHeader(IfRange, lm.toString());
                 }
-                long range = fileChannel.size();
+                long range = file.channel().size();
                 builder.addHeader(Range, "bytes="+range+"-");
             }
             else
@@ -494,17 +939,19 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
                 switch (statusCode)
                 {
                     case 200:
-                        fileChannel.truncate(0);
+                        file.channel().truncate(0);
                         originalContentSize = contentLength;    // might have changed
                         fine("content-length is now %d", contentLength);
                     case 206:   // note missing break!!!
                         responseBuffer.position(response.getHeaderSize());
-                        fileChannel.write(responseBuffer, fileChannel.size());
+                        long size = file.channel().size();
+                        updateDigest(size);
+                        writeContent(responseBuffer, size);
                         updateState();
-                        receiverList.stream().forEach(Receiver::update);
+                        publish(Progress.Header);
                         return true;
                     default:
-                        receiverList.stream().forEach(Receiver::received);
+                        publish(Progress.Received);
                         fine("set to error because: %s", response);
                         state = State.Error;
                         return false;
@@ -522,40 +969,124 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     {
         if (req.isRefreshAttempt())
         {
-            if (notModified(req))
-            {
-                sendHeader(userAgent, 304);
-                return state;
-            }
+            if (notModified(req))
+            {
+                sendHeader(userAgent, 304);
+                return state;
+            }
+        }
+        sendHeader(userAgent, 200);
+        sendAll(userAgent);
+        HotCache hotCache = Cache.getHotCache();
+        if (hotCache != null && !isStale())
+        {
+            hotCache.offer(path, requestTarget, bb, file.channel(), file.base(), contentSize());
+        }
+        return state;
+    }
+
+    private boolean fetchHeader(RequestBuilder builder) throws IOException
+    {
+        String host = request.getHost();
+        int port = request.getPort();
+        permit = Cache.getOriginLimiter().acquire(host);
+        OriginPool originPool = Cache.getOriginPool();
+        while (true)
+        {
+            origin = originPool.get(request.getScheme(), host, port);
+            if (origin == null)
+            {
+                return false;
+            }
+            originServer = origin.getChannel();
+            try
+            {
+                fine("send to origin %s", origin);
+                fine(()->{return builder.getString();});
+                builder.send(originServer);
+                active();
+                response.readHeader(originServer);
+                break;
+            }
+            catch (IOException ex)
+            {
+                if (!origin.isReused())
+                {
+                    throw ex;
+                }
+                fine("retry because pooled connection failed %s", ex.getMessage());
+                originPool.close(origin);
+                origin = null;
+                bb.rewind();
+            }
+        }
+        active();
+        originRead = responseBuffer.limit();
+        long millis = Cache.getClock().millis();
+        userAttr.setLong(XOrigMillis, millis);
+        parseResponse(millis);
+        originRead -= response.getHeaderSize();
+        setOriginFraming();
+        if (response.getStatusCode() != 206)    // partial response should not overwrite
+        {
+            ByteBufferCharSequence headerPart = response.getHeaderPart();
+            fine("store original header %s", this);
+            setAttribute(XOrigHdr, headerPart);
+        }
+        return true;
+    }
+    /**
+     * Origin connection can be reused if response is HTTP/1.1 without 
+     * Connection: close and its end is known from Content-Length.
+     */
+    private void setOriginFraming()
+    {
+        switch (response.getStatusCode())
+        {
+            case 204:
+            case 304:
+                originExpected = 0;
+                break;
+            default:
+                originExpected = response.getContentLength();
+                break;
+        }
+        originKeepAlive = 
+                originExpected != Integer.MAX_VALUE &&
+                CharSequences.equals("1.1", response.getVersion()) &&
+                !hasToken(response.getCommaSplittedHeader(Connection), "close");
+    }
+    /**
+     * Returns origin connection to pool if whole response was read. 
+     * Otherwise connection is closed.
+     */
+    private void releaseOrigin()
+    {
+        OriginPool originPool = Cache.getOriginPool();
+        if (originKeepAlive && originRead == originExpected)
+        {
+            originPool.release(origin);
+        }
+        else
+        {
+            fine("close origin %s read %d / %d", origin, originRead, originExpected);
+            originPool.close(origin);
         }
-        sendHeader(userAgent, 200);
-        sendAll(userAgent);
-        return state;
+        origin = null;
+        originServer = null;
+        originKeepAlive = false;
     }
-
-    private boolean fetchHeader(RequestBuilder builder) throws IOException
+    private static boolean hasToken(List<CharSequence> list, String token)
     {
-        String host = request.getHost();
-        int port = request.getPort();
-        originServer = ConnectionHandler.open(request.getScheme(), host, port);
-        if (originServer != null)
+        if (list != null)
         {
-            fine("send to origin");
-            fine(()->{return builder.getString();});
-            builder.send(originServer);
-            active();
-            response.readHeader(originServer);
-            active();
-            long millis = Cache.getClock().millis();
-            userAttr.setLong(XOrigMillis, millis);
-            parseResponse(millis);
-            if (response.getStatusCode() != 206)    // partial response should not overwrite
+            for (CharSequence cs : list)
             {
-                ByteBufferCharSequence headerPart = response.getHeaderPart();
-                fine("store original header %s", this);
-                setAttribute(XOrigHdr, headerPart);
+                if (token.equalsIgnoreCase(cs.toString()))
+                {
+                    return true;
+                }
             }
-            return true;
         }
         return false;
     }
@@ -615,6 +1146,91 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     {
         return path;
     }
+    /**
+     * Returns current size of cached content or 0 if file is deleted.
+     * @return
+     * @throws IOException 
+     */
+    public long getSize() throws IOException
+    {
+        try
+        {
+            return file.size();
+        }
+        catch (NoSuchFileException ex)
+        {
+            return 0;
+        }
+    }
+    /**
+     * Returns size of content in file or slab.
+     * @return
+     * @throws IOException 
+     */
+    private long contentSize() throws IOException
+    {
+        return file.size();
+    }
+
+    /**
+     * Sets key of in-flight registration. Registration is removed when 
+     * fetch ends.
+     * @param digest Copied
+     * @param variant 
+     */
+    void setInFlight(byte[] digest, VaryMap variant)
+    {
+        this.inFlightDigest = digest.clone();
+        this.inFlightVariant = variant;
+        this.inFlight = true;
+    }
+    /**
+     * Returns true if in-flight registration of this fetch is alive. False
+     * after fetch has ended or given up.
+     * @return 
+     */
+    boolean isInFlight()
+    {
+        return inFlight;
+    }
+    /**
+     * Removes in-flight registration so that next request starts new fetch.
+     */
+    private void unregister()
+    {
+        if (inFlight)
+        {
+            inFlight = false;
+            Cache.getInFlight().remove(inFlightDigest, inFlightVariant, this);
+        }
+    }
+
+    void setIndexEntry(IndexEntry indexEntry)
+    {
+        this.indexEntry = indexEntry;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+    /**
+     * Returns true if fetch is not running and entry is not used by any
+     * request.
+     * @return 
+     */
+    boolean isIdle()
+    {
+        progressLock.lock();
+        try
+        {
+            return !running && users == 0 && !hasClients();
+        }
+        finally
+        {
+            progressLock.unlock();
+        }
+    }
 
     public VaryMap getVaryMap()
     {
@@ -623,33 +1239,85 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     
     private byte[] storeDigest() throws IOException
     {
-        try
+        updateDigest(file.channel().size());
+        byte[] digest = sha1().digest();
+        digested = 0;
+        userAttr.set(SHA1, digest);
+        return digest;
+    }
+    /**
+     * Writes content to file. Digest is updated when content is appended
+     * in order.
+     * @param buffer
+     * @param position
+     * @throws IOException 
+     */
+    private void writeContent(ByteBuffer buffer, long position) throws IOException
+    {
+        MessageDigest md = sha1();
+        if (position < digested)
         {
-            MessageDigest sha1 = MessageDigest.getInstance(SHA1);
-            
-            long position = 0;
-            long size = fileChannel.size();
-            while (position < size)
-            {
-                bb.clear();
-                int rc = fileChannel.read(bb, position);
-                assert rc != -1;
-                position += rc;
-                bb.flip();
-                int lim = bb.limit();
-                for (int ii=bb.position();ii<lim;ii++)
-                {
-                    sha1.update(bb.get());
-                }
+            md.reset();
+            digested = 0;
+        }
+        if (position == digested)
+        {
+            md.update(buffer.duplicate());
+            digested += buffer.remaining();
+        }
+        while (buffer.hasRemaining())
+        {
+            position += file.channel().write(buffer, position);
+        }
+        commit(position);
+    }
+    /**
+     * Reads file content not yet digested up to size. This is needed only 
+     * when continuing partial file created by other entry.
+     * @param size
+     * @throws IOException 
+     */
+    private void updateDigest(long size) throws IOException
+    {
+        MessageDigest md = sha1();
+        if (digested > size)
+        {
+            md.reset();
+            digested = 0;
+        }
+        if (digested < size)
+        {
+            fine("digest read %d - %d", digested, size);
+        }
+        while (digested < size)
+        {
+            bb.clear();
+            bb.limit((int) Math.min(bb.capacity(), size - digested));
+            int rc = file.channel().read(bb, digested);
+            if (rc == -1)
+            {
+                throw new IOException(path+" shrinked");
             }
-            byte[] digest = sha1.digest();
-            userAttr.set(SHA1, digest);
-            return digest;
+            bb.flip();
+            md.update(bb);
+            digested += rc;
         }
-        catch (NoSuchAlgorithmException ex)
+    }
+
+    private MessageDigest sha1()
+    {
+        if (sha1 == null)
         {
-            throw new IllegalArgumentException(ex);
+            try
+            {
+                sha1 = MessageDigest.getInstance(SHA1);
+            }
+            catch (NoSuchAlgorithmException ex)
+            {
+                throw new IllegalArgumentException(ex);
+            }
         }
+        return sha1;
     }
 
     public byte[] getDigest() throws IOException
@@ -669,7 +1337,7 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         {
             return;
         }
-        long size = fileChannel.size();
+        long size = contentSize();
         if (userAttr.has(XOrigHdr))
         {
             if (size >= contentLength)
@@ -689,6 +1357,14 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         {
             throw new IllegalArgumentException(state+" but no requestTarget");
         }
+        updateIndex();
+    }
+    private void updateIndex()
+    {
+        if (indexEntry != null)
+        {
+            indexEntry.update(this);
+        }
     }
     private void refresh() throws IOException
     {
@@ -739,29 +1415,8 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     {
         try
         {
-            heuristic = false;
-            long freshnessLifetime = response.freshnessLifetime();
-            if (freshnessLifetime == -1)
-            {
-                if (userAttr.has(NotModifiedCount))
-                {
-                    heuristic = true;
-                    int notModifiedCount = userAttr.getInt(NotModifiedCount);
-                    long lastNotModified = userAttr.getLong(LastNotModified);
-                    long created = getCreated();
-                    long seconds = (lastNotModified - created) / 1000;
-                    finest("heuristic cnt=%d cr=%s lm=%s d=%d", notModifiedCount, created, lastNotModified, seconds);
-                    return seconds + notModifiedCount*seconds/10;
-                }
-                else
-                {
-                    return 0;
-                }
-            }
-            else
-            {
-                return freshnessLifetime;
-            }
+            heuristic = response.freshnessLifetime() == -1 && userAttr.has(NotModifiedCount);
+            return freshnessLifetime(response, userAttr, basicAttr);
         }
         catch (IOException ex)
         {
@@ -773,45 +1428,95 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     {
         try
         {
-            long ageValue = response.getNumericHeader(Age);
-            debug("ageValue=%d", ageValue);
-            ageValue = ageValue != -1 ? ageValue : 0;
-            SimpleMutableDateTime date = response.getDateHeader(Date);
-            debug("date=%s", date);
-            SimpleMutableDateTime responseTime = response.getTime();
-            debug("responseTime=%s", responseTime);
-            SimpleMutableDateTime requestTime = request.getTime();
-            debug("requestTime=%s", requestTime);
-            long apparentAge = 0;
-            if (date != null)
+            return currentAge(response, request, basicAttr);
+        }
+        catch (IOException ex)
+        {
+            throw new IllegalArgumentException(ex);
+        }
+    }
+    /**
+     * Returns freshness lifetime in seconds. If response doesn't have explicit
+     * lifetime a heuristic lifetime is calculated from not modified count.
+     * @param response
+     * @param userAttr
+     * @param basicAttr
+     * @return
+     * @throws IOException 
+     */
+    static long freshnessLifetime(HttpHeaderParser response, UserDefinedAttributes userAttr, BasicFileAttributeView basicAttr) throws IOException
+    {
+        long freshnessLifetime = response.freshnessLifetime();
+        if (freshnessLifetime == -1)
+        {
+            if (userAttr.has(NotModifiedCount))
             {
-                apparentAge = Math.max(0, responseTime.seconds() - date.seconds());
+                int notModifiedCount = userAttr.getInt(NotModifiedCount);
+                long lastNotModified = userAttr.getLong(LastNotModified);
+                long created = basicAttr.readAttributes().creationTime().toMillis();
+                long seconds = (lastNotModified - created) / 1000;
+                Cache.log().finest("heuristic cnt=%d cr=%s lm=%s d=%d", notModifiedCount, created, lastNotModified, seconds);
+                return seconds + notModifiedCount*seconds/10;
             }
             else
             {
-                long created = getCreated();
-                debug("created=%s", created);
-                apparentAge = Math.max(0, responseTime.seconds() - created/1000);
-            }
-            debug("apparentAge=%d", apparentAge);
-            long responseDelay = Math.max(0, responseTime.seconds() - requestTime.seconds());
-            debug("responseDelay=%d", responseDelay);
-            long correctedAgeValue = ageValue + responseDelay;
-            debug("correctedAgeValue=%d", correctedAgeValue);
-            long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
-            debug("correctedInitialAge=%d", correctedInitialAge);
-            SimpleMutableDateTime now = SimpleMutableDateTime.now(Cache.getClock());
-            debug("now=%s", now);
-            long residentTime = now.seconds() - responseTime.seconds();
-            debug("residentTime=%d", residentTime);
-            long currentAge = correctedInitialAge + residentTime;
-            debug("currentAge=%d", currentAge);
-            return currentAge;
+                return 0;
+            }
         }
-        catch (IOException ex)
+        else
         {
-            throw new IllegalArgumentException(ex);
+            return freshnessLifetime;
+        }
+    }
+    /**
+     * Returns current age in seconds.
+     * @param response
+     * @param request Request or null if request time is not known.
+     * @param basicAttr
+     * @return
+     * @throws IOException 
+     */
+    static long currentAge(HttpHeaderParser response, HttpHeaderParser request, BasicFileAttributeView basicAttr) throws IOException
+    {
+        JavaLogging log = Cache.log();
+        long ageValue = response.getNumericHeader(Age);
+        log.debug("ageValue=%d", ageValue);
+        ageValue = ageValue != -1 ? ageValue : 0;
+        SimpleMutableDateTime date = response.getDateHeader(Date);
+        log.debug("date=%s", date);
+        SimpleMutableDateTime responseTime = response.getTime();
+        log.debug("responseTime=%s", responseTime);
+        long apparentAge = 0;
+        if (date != null)
+        {
+            apparentAge = Math.max(0, responseTime.seconds() - date.seconds());
+        }
+        else
+        {
+            long created = basicAttr.readAttributes().creationTime().toMillis();
+            log.debug("created=%s", created);
+            apparentAge = Math.max(0, responseTime.seconds() - created/1000);
+        }
+        log.debug("apparentAge=%d", apparentAge);
+        long responseDelay = 0;
+        if (request != null)
+        {
+            SimpleMutableDateTime requestTime = request.getTime();
+            log.debug("requestTime=%s", requestTime);
+            responseDelay = Math.max(0, responseTime.seconds() - requestTime.seconds());
         }
+        log.debug("responseDelay=%d", responseDelay);
+        long correctedAgeValue = ageValue + responseDelay;
+        log.debug("correctedAgeValue=%d", correctedAgeValue);
+        long correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+        log.debug("correctedInitialAge=%d", correctedInitialAge);
+        SimpleMutableDateTime now = SimpleMutableDateTime.now(Cache.getClock());
+        log.debug("now=%s", now);
+        long residentTime = now.seconds() - responseTime.seconds();
+        log.debug("residentTime=%d", residentTime);
+        long currentAge = correctedInitialAge + residentTime;
+        log.debug("currentAge=%d", currentAge);
+        return currentAge;
     }
 
     public String getRequestTarget()
@@ -874,23 +1579,7 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
                 responseBuffer.clear();
                 userAttr.read(XOrigHdr, responseBuffer);
                 responseBuffer.flip();
-                long millis = 0;
-                if (userAttr.has(XOrigMillis))
-                {
-                    millis = userAttr.getLong(XOrigMillis);
-                }
-                else
-                {
-                    if (userAttr.has(LastNotModified))
-                    {
-                        millis = userAttr.getLong(LastNotModified);
-                    }
-                    else
-                    {
-                        millis = Cache.getClock().millis();
-                    }
-                }
-                parseResponse(millis);
+                parseResponse(origMillis(userAttr));
                 return true;
             }
             else
@@ -929,12 +1618,12 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
 
     private void sendAll(WritableByteChannel channel) throws IOException
     {
-        long size = fileChannel.size();
+        long size = contentSize();
         fine("sendAll %d / %d", size, contentLength);
-        long pos = 0;
+        long pos = file.base();
         while (size > 0)
         {
-            long rc = fileChannel.transferTo(pos, size, channel);
+            long rc = file.channel().transferTo(pos, size, channel);
             size -= rc;
             pos += rc;
         }
@@ -965,7 +1654,7 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         userAttr.setInt(NotModifiedCount, ++notModifiedCount);
         userAttr.setLong(LastNotModified, Cache.getClock().millis());
     }
-    private void sendReceivedHeader(ByteChannel userAgent) throws IOException
+    private ResponseBuilder receivedHeaderBuilder() throws IOException
     {
         checkFileHeader();  // recreate response as original response
         Collection<byte[]> staleHeaders = Collections.EMPTY_LIST;
@@ -973,25 +1662,46 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         {
             staleHeaders = getStaleHeaders();
         }
-        ResponseBuilder builder = new ResponseBuilder(bb, response, staleHeaders);
-        fine("send received header to user %s\n%s", userAgent, builder.getString());
-        builder.send(userAgent);
+        return new ResponseBuilder(bb, response, staleHeaders);
     }
-    private void sendHeader(ByteChannel userAgent) throws IOException
+    private void sendHeader(ByteChannel userAgent, int responseCode) throws IOException
     {
-        sendHeader(userAgent, 200);
+        ResponseBuilder builder = headerBuilder(responseCode);
+        fine("send to user %s\n%s", userAgent, builder.getString());
+        builder.send(userAgent);
     }
-    private void sendHeader(ByteChannel userAgent, int responseCode) throws IOException
+    private ResponseBuilder headerBuilder(int responseCode) throws IOException
     {
         checkFileHeader();  // recreate response as original response
         Collection<byte[]> staleHeaders = Collections.EMPTY_LIST;
         if (responseCode == 200)
         {
             staleHeaders = getStaleHeaders();
+            if (State.Full.equals(state) && !response.hasHeader(ContentLength) && !response.hasHeader(TransferEncoding))
+            {
+                staleHeaders.add(("Content-Length: "+contentSize()).getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+        return new ResponseBuilder(bb, responseCode, response, staleHeaders);
+    }
+    /**
+     * Returns true if user agent can find the end of response content 
+     * without connection close.
+     * @return 
+     */
+    private boolean isDelimited()
+    {
+        switch (response.getStatusCode())
+        {
+            case 204:
+            case 304:
+                return true;
+            default:
+                return 
+                        State.Full.equals(state) || 
+                        response.hasHeader(ContentLength) || 
+                        response.hasHeader(TransferEncoding);
         }
-        ResponseBuilder builder = new ResponseBuilder(bb, responseCode, response, staleHeaders);
-        fine("send to user %s\n%s", userAgent, builder.getString());
-        builder.send(userAgent);
     }
     private Collection<byte[]> getStaleHeaders() throws IOException
     {
@@ -1024,11 +1734,6 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         }
     }
     
-    public boolean isRefreshing(HttpHeaderParser request)
-    {
-        return staleEntry != null && staleEntry.matchRequest(request);
-    }
-
     public boolean needsStart()
     {
         if (hasClients())
@@ -1044,11 +1749,7 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
     }
     public boolean hasClients()
     {
-        return !fullWaiters.isEmpty() || 
-        !(
-            receiverList.isEmpty() ||
-            receiverList.stream().allMatch(Receiver::gaveUp)
-        );
+        return !fullWaiters.isEmpty() || !receivers.isEmpty();
     }
 
     public int getStartCount()
@@ -1067,122 +1768,261 @@ public class CacheEntry extends JavaLogging implements Runner, Comparable<CacheE
         return "CacheEntry{" + requestTarget + " "+path+'}';
     }
     
+    /**
+     * Receiver runs in user agent thread. Headers are published by fetch 
+     * and content is transferred up to committed length.
+     */
     private class Receiver
     {
         private final HttpHeaderParser request;
-        private ByteChannel userAgent;
-        private final Thread thread;
+        private final ByteChannel userAgent;
+        private Progress seen = Progress.Waiting;
         private long position;
 
-        public Receiver(HttpHeaderParser request, ByteChannel userAgent, Thread thread)
+        public Receiver(HttpHeaderParser request, ByteChannel userAgent)
         {
             this.request = request;
             this.userAgent = userAgent;
-            this.thread = thread;
         }
-
-        public boolean transferedAny()
+        /**
+         * Sends published header. Returns false if response doesn't match
+         * request.
+         * @param p
+         * @param header
+         * @param delimited If false connection is closed after response.
+         * @return
+         * @throws IOException 
+         */
+        public boolean header(Progress p, ByteBuffer header, boolean delimited) throws IOException
         {
-            return position > 0;
+            seen = p;
+            if (Progress.Header.equals(p) && !matchRequest(request))
+            {
+                finest("no match %s", requestTarget);
+                return false;
+            }
+            if (!delimited)
+            {
+                request.setPersistent(false);
+            }
+            ChannelHelper.writeAll(userAgent, header.duplicate());
+            return true;
         }
         
-        public boolean gaveUp()
-        {
-            return userAgent == null;
-        }
-
-        public void interrupt()
+        public boolean streaming()
         {
-            thread.interrupt();
+            return Progress.Header.equals(seen) || Progress.Received.equals(seen);
         }
         
-        public boolean noMatch()
+        public void transfer(long end) throws IOException
         {
-            if (!matchRequest(request))
-            {
-                finest("set userAgent = null because no match");
-                userAgent = null;
-                return true;
-            }
-            else
+            if (streaming())
             {
-                return false;
+                FileChannel fc = file.channel();
+                while (position < end)
+                {
+                    position += fc.transferTo(position, end - position, userAgent);
+                }
             }
         }
-        
-        public void received()
+    }
+    /**
+     * Reference counted handle of cache file. File is opened by the first 
+     * user and closed by the last one. Content in slab is read from the 
+     * shared slab channel which is never closed here.
+     * <p>
+     * Handle doesn't reference the entry, so it is also the cleaning action
+     * closing the file of collected entry.
+     * <p>
+     * ReentrantLock is used instead of synchronized because virtual threads
+     * waiting for a monitor would pin their carrier thread.
+     */
+    private static class FileHandle implements Runnable
+    {
+        private final Path path;
+        private final ReentrantLock lock = new ReentrantLock();
+        private SlabStore.Slot slot;
+        private volatile FileChannel channel;
+        private int count;
+        private boolean deleted;
+
+        public FileHandle(Path path, SlabStore.Slot slot)
+        {
+            this.path = path;
+            this.slot = slot;
+        }
+        /**
+         * Opens file if it is not already open. Content packed into slab
+         * after entry was created is read from slab.
+         * @throws IOException 
+         */
+        public void open() throws IOException
         {
-            if (userAgent != null)
+            lock.lock();
+            try
             {
-                try
+                if (deleted)
                 {
-                    sendReceivedHeader(userAgent);
+                    throw new NoSuchFileException(path.toString());
                 }
-                catch (IOException ex)
+                if (count == 0)
                 {
-                    throw new IllegalArgumentException(ex);
+                    if (slot == null)
+                    {
+                        try
+                        {
+                            channel = FileChannel.open(path, READ, WRITE);
+                            openFiles.incrementAndGet();
+                        }
+                        catch (NoSuchFileException ex)
+                        {
+                            slot = Cache.getSlot(path);
+                            if (slot == null)
+                            {
+                                throw ex;
+                            }
+                        }
+                    }
+                    if (slot != null)
+                    {
+                        channel = slot.getChannel();
+                    }
                 }
+                count++;
+            }
+            finally
+            {
+                lock.unlock();
             }
         }
-        public void header()
+        /**
+         * Closes file if this was the last user.
+         * @throws IOException 
+         */
+        public void close() throws IOException
         {
-            if (userAgent != null)
+            lock.lock();
+            try
             {
-                try
-                {
-                    sendHeader(userAgent);
-                }
-                catch (IOException ex)
+                if (count > 0 && --count == 0)
                 {
-                    throw new IllegalArgumentException(ex);
+                    closeChannel();
                 }
             }
+            finally
+            {
+                lock.unlock();
+            }
         }
-        public void notModified()
+        /**
+         * Prevents opening file again. File is closed now or by the last 
+         * user, so that receivers can finish.
+         * @throws IOException 
+         */
+        public void delete() throws IOException
         {
-            if (userAgent != null)
+            lock.lock();
+            try
             {
-                try
-                {
-                    sendHeader(userAgent, 304);
-                }
-                catch (IOException ex)
+                deleted = true;
+                if (count == 0)
                 {
-                    throw new IllegalArgumentException(ex);
+                    closeChannel();
                 }
             }
+            finally
+            {
+                lock.unlock();
+            }
         }
-        public void update()
+        /**
+         * Returns open channel.
+         * @return 
+         */
+        public FileChannel channel()
         {
-            if (userAgent != null)
+            FileChannel fc = channel;
+            if (fc == null)
             {
-                try
+                throw new IllegalStateException(path+" not open");
+            }
+            return fc;
+        }
+        /**
+         * Returns content offset in channel.
+         * @return 
+         */
+        public long base()
+        {
+            lock.lock();
+            try
+            {
+                return slot != null ? slot.getOffset() : 0;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        /**
+         * Returns content size. File is not opened for this.
+         * @return
+         * @throws IOException 
+         */
+        public long size() throws IOException
+        {
+            lock.lock();
+            try
+            {
+                if (deleted)
                 {
-                    long size = fileChannel.size();
-                    long length = size - position;
-                    try
-                    {
-                        while (length > 0)
-                        {
-                            long rc = fileChannel.transferTo(position, length, userAgent);
-                            if (rc == 0)
-                            {
-                                break;
-                            }
-                            length -= rc;
-                            position += rc;
-                        }
-                    }
-                    catch (IOException ex)
-                    {
-                        log(Level.FINER, ex, "gave up? %s", requestTarget);
-                        userAgent = null;
-                    }
+                    return 0;
+                }
+                if (slot != null)
+                {
+                    return slot.getLength();
                 }
-                catch (IOException ex)
+                if (channel != null)
                 {
-                    throw new IllegalArgumentException(ex);
+                    return channel.size();
                 }
+                return Files.size(path);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        /**
+         * Closes file regardless of users.
+         */
+        @Override
+        public void run()
+        {
+            lock.lock();
+            try
+            {
+                count = 0;
+                closeChannel();
+            }
+            catch (IOException ex)
+            {
+                Cache.log().warning("close %s: %s", path, ex.getMessage());
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void closeChannel() throws IOException
+        {
+            FileChannel fc = channel;
+            channel = null;
+            if (fc != null && slot == null)
+            {
+                openFiles.decrementAndGet();
+                fc.close();
             }
         }
     }
@@ -0,0 +1,507 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+import org.vesalainen.nio.file.attribute.UserDefinedAttributes;
+import org.vesalainen.util.logging.JavaLogging;
+import org.vesalainen.web.Scheme;
+import static org.vesalainen.web.cache.CacheConstants.*;
+import org.vesalainen.web.cache.CacheEntry.State;
+import org.vesalainen.web.parser.HttpHeaderParser;
+
+/**
+ * CacheIndex is an in-memory index of cached files keyed by request target
+ * SHA-1 digest. It is built once at startup and updated when files are 
+ * stored and deleted. Lookups don't touch the file system.
+ * <p>
+ * Index holds only fixed size information about files. CacheEntries are
+ * referenced only while they are fetching.
+ * <p>
+ * Keys are guarded by striped locks so that lookups for different keys 
+ * don't contend. Each stripe has its own DigestTable. Lists returned by get
+ * must be accessed only while holding the lock returned by getLock for the 
+ * same key.
+ * <p>
+ * Stored keys are also added to CountingBloomFilter which is checked before
+ * the table. Filter is rebuilt when number of keys exceeds its capacity.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class CacheIndex extends JavaLogging
+{
+    private static final int MinFilterCapacity = 65536;
+    private final Map<Path,IndexEntry> pathMap = new ConcurrentHashMap<>();
+    private final DigestTable<List<IndexEntry>>[] tables;
+    private final ReentrantLock[] locks;
+    private final int mask;
+    private volatile CountingBloomFilter filter = new CountingBloomFilter(MinFilterCapacity);
+    private final AtomicInteger keyCount = new AtomicInteger();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    private final LongAdder filterNegatives = new LongAdder();
+    private final LongAdder filterFalsePositives = new LongAdder();
+    private final LongAdder filterHits = new LongAdder();
+    private volatile int filterRebuilds;
+    private volatile long filterRebuildMillis;
+    private IndexStore store;
+
+    public CacheIndex()
+    {
+        this(4*Runtime.getRuntime().availableProcessors());
+    }
+    /**
+     * Creates CacheIndex
+     * @param stripes Number of locks. Rounded up to power of 2. Max 65536.
+     */
+    public CacheIndex(int stripes)
+    {
+        super(CacheIndex.class);
+        int size = stripes > 1 ? Integer.highestOneBit(Math.min(stripes, 65536)-1)<<1 : 1;
+        locks = new ReentrantLock[size];
+        tables = new DigestTable[size];
+        for (int ii=0;ii<size;ii++)
+        {
+            locks[ii] = new ReentrantLock();
+            tables[ii] = new DigestTable<>();
+        }
+        mask = size-1;
+    }
+    /**
+     * Returns lock guarding key.
+     * @param key
+     * @return 
+     */
+    public ReentrantLock getLock(byte[] key)
+    {
+        return locks[stripe(key)];
+    }
+    /**
+     * Stripe is selected by last bytes of digest. First bytes select 
+     * directory.
+     * @param key
+     * @return 
+     */
+    private int stripe(byte[] key)
+    {
+        return (((key[DigestTable.DigestLength-2] & 0xff) << 8) | (key[DigestTable.DigestLength-1] & 0xff)) & mask;
+    }
+    /**
+     * Sets store for snapshot and journal.
+     * @param store 
+     */
+    public void setStore(IndexStore store)
+    {
+        this.store = store;
+    }
+    /**
+     * Builds index from snapshot and journal. If snapshot is missing or
+     * corrupted, index is built by reading attributes of every file in dir.
+     * @param dir
+     * @throws IOException 
+     */
+    public void build(Path dir) throws IOException
+    {
+        build(dir, false);
+    }
+    /**
+     * Builds index from snapshot and journal or by reading attributes of 
+     * every file in dir.
+     * @param dir
+     * @param scan If true, snapshot is not used.
+     * @throws IOException 
+     */
+    public void build(Path dir, boolean scan) throws IOException
+    {
+        Collection<IndexEntry> entries = null;
+        if (store != null && !scan)
+        {
+            entries = store.load();
+        }
+        if (entries != null)
+        {
+            entries.forEach(this::put);
+            config("loaded %d entries from snapshot", pathMap.size());
+        }
+        else
+        {
+            scan(dir);
+        }
+        checkFilter();
+        if (store != null)
+        {
+            store.open();
+            if (entries == null)
+            {
+                store.snapshot(this);
+            }
+        }
+    }
+    /**
+     * Builds index by reading attributes of every file in dir in parallel.
+     * @param dir
+     * @throws IOException 
+     */
+    public void scan(Path dir) throws IOException
+    {
+        config("scanning index from %s", dir);
+        long start = System.currentTimeMillis();
+        ThreadLocal<Loader> loader = ThreadLocal.withInitial(Loader::new);
+        try (Stream<Path> stream = Files.find(dir, Integer.MAX_VALUE, (Path p, BasicFileAttributes b) ->
+                {
+                    return b.isRegularFile() && !p.toString().endsWith(".atr");
+                }))
+        {
+            stream.parallel().forEach((p)->loader.get().load(p));
+        }
+        SlabStore slabStore = Cache.getSlabStore();
+        if (slabStore != null)
+        {
+            slabStore.forEach((p)->loader.get().load(p));
+        }
+        config("indexed %d files in %d ms", pathMap.size(), System.currentTimeMillis() - start);
+    }
+    /**
+     * Writes queued journal records if store is set.
+     */
+    public void flush()
+    {
+        if (store != null)
+        {
+            store.flush();
+        }
+    }
+    /**
+     * Writes snapshot if store is set.
+     */
+    public void snapshot()
+    {
+        if (store != null)
+        {
+            try
+            {
+                store.snapshot(this);
+            }
+            catch (IOException ex)
+            {
+                log(Level.SEVERE, ex, "snapshot: %s", ex.getMessage());
+            }
+        }
+    }
+    /**
+     * Calls consumer for every entry. Entries of one stripe are copied while
+     * holding the lock and consumed without it.
+     * @param consumer 
+     */
+    public void forEach(Consumer<IndexEntry> consumer)
+    {
+        List<IndexEntry> copy = new ArrayList<>();
+        for (int ii=0;ii<tables.length;ii++)
+        {
+            copy.clear();
+            locks[ii].lock();
+            try
+            {
+                tables[ii].forEach(copy::addAll);
+            }
+            finally
+            {
+                locks[ii].unlock();
+            }
+            copy.forEach(consumer);
+        }
+    }
+    /**
+     * Called when entry has stopped fetching.
+     * @param ie 
+     */
+    void stored(IndexEntry ie)
+    {
+        if (store != null && pathMap.get(ie.getPath()) == ie && IndexStore.isStored(ie))
+        {
+            store.stored(ie);
+        }
+    }
+    private class Loader
+    {
+        private final ByteBuffer bb = ByteBuffer.allocate(BufferSize);
+        private final HttpHeaderParser response = HttpHeaderParser.getInstance(Scheme.HTTP, bb);
+
+        private void load(Path path)
+        {
+            try
+            {
+                UserDefinedAttributes userAttr = CacheEntry.attributes(path, false);
+                if (!userAttr.has(XOrigRequestTarget))
+                {
+                    finest("not cache file %s", path);
+                    return;
+                }
+                bb.clear();
+                userAttr.read(XOrigRequestTarget, bb);
+                bb.flip();
+                byte[] key = Cache.digest(bb.array(), bb.arrayOffset()+bb.position(), bb.remaining()).clone();
+                BasicFileAttributeView basicAttr = Cache.getSlot(path);
+                if (basicAttr == null)
+                {
+                    basicAttr = Files.getFileAttributeView(path, BasicFileAttributeView.class, LinkOption.NOFOLLOW_LINKS);
+                }
+                long size = basicAttr.readAttributes().size();
+                State state = State.New;
+                long deadline = 0;
+                VaryMap varyMap = VaryMap.Empty;
+                if (userAttr.has(XOrigHdr))
+                {
+                    bb.clear();
+                    userAttr.read(XOrigHdr, bb);
+                    bb.flip();
+                    response.parseResponse(CacheEntry.origMillis(userAttr));
+                    state = size >= response.getContentLength() ? State.Full : State.Partial;
+                    long refreshness = CacheEntry.freshnessLifetime(response, userAttr, basicAttr) - CacheEntry.currentAge(response, null, basicAttr);
+                    deadline = Cache.getClock().millis() + 1000 * refreshness;
+                    varyMap = VaryMap.create(response, userAttr).detach();
+                }
+                put(new IndexEntry(key, path, size, state, deadline, varyMap));
+            }
+            catch (Exception ex)
+            {
+                warning("index %s: %s", path, ex.getMessage());
+            }
+        }
+    }
+    /**
+     * Returns entries for key. Returned list must not be modified and it 
+     * must be accessed only while holding getLock(key).
+     * @param key
+     * @return 
+     */
+    public List<IndexEntry> get(byte[] key)
+    {
+        if (!filter.mightContain(key))
+        {
+            filterNegatives.increment();
+            return Collections.emptyList();
+        }
+        List<IndexEntry> list = tables[stripe(key)].get(key);
+        if (list == null)
+        {
+            filterFalsePositives.increment();
+            return Collections.emptyList();
+        }
+        filterHits.increment();
+        return list;
+    }
+    /**
+     * Rebuilds bloom filter if number of keys exceeds its capacity. Must be
+     * called without holding any key lock.
+     */
+    public void checkFilter()
+    {
+        if (keyCount.get() > filter.getCapacity() && rebuilding.compareAndSet(false, true))
+        {
+            try
+            {
+                rebuildFilter();
+            }
+            finally
+            {
+                rebuilding.set(false);
+            }
+        }
+    }
+
+    private void rebuildFilter()
+    {
+        long start = System.currentTimeMillis();
+        for (ReentrantLock lock : locks)
+        {
+            lock.lock();
+        }
+        try
+        {
+            CountingBloomFilter f = new CountingBloomFilter(Math.max(MinFilterCapacity, 2*keyCount.get()));
+            for (DigestTable<List<IndexEntry>> table : tables)
+            {
+                table.forEach((list)->f.add(list.get(0).getKey()));
+            }
+            filter = f;
+        }
+        finally
+        {
+            for (ReentrantLock lock : locks)
+            {
+                lock.unlock();
+            }
+        }
+        filterRebuilds++;
+        filterRebuildMillis = System.currentTimeMillis() - start;
+        config("rebuilt bloom filter for %d keys in %d ms", keyCount.get(), filterRebuildMillis);
+    }
+    /**
+     * Adds new fetching entry
+     * @param key Key is copied.
+     * @param entry
+     * @return 
+     */
+    public IndexEntry add(byte[] key, CacheEntry entry)
+    {
+        IndexEntry ie = new IndexEntry(key.clone(), entry);
+        put(ie);
+        return ie;
+    }
+    void put(IndexEntry ie)
+    {
+        byte[] key = ie.getKey();
+        int stripe = stripe(key);
+        ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try
+        {
+            List<IndexEntry> list = tables[stripe].get(key);
+            if (list == null)
+            {
+                list = new ArrayList<>(2);
+                tables[stripe].put(key, list);
+                filter.add(key);
+                keyCount.incrementAndGet();
+            }
+            list.add(ie);
+            pathMap.put(ie.getPath(), ie);
+            ie.setIndex(this);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public void removeIf(byte[] key, Predicate<IndexEntry> predicate)
+    {
+        int stripe = stripe(key);
+        ReentrantLock lock = locks[stripe];
+        lock.lock();
+        try
+        {
+            List<IndexEntry> list = tables[stripe].get(key);
+            if (list != null)
+            {
+                list.removeIf((ie)->
+                {
+                    if (predicate.test(ie))
+                    {
+                        pathMap.remove(ie.getPath());
+                        if (store != null)
+                        {
+                            store.deleted(ie.getPath());
+                        }
+                        return true;
+                    }
+                    return false;
+                });
+                if (list.isEmpty())
+                {
+                    tables[stripe].remove(key);
+                    filter.remove(key);
+                    keyCount.decrementAndGet();
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public void remove(IndexEntry ie)
+    {
+        removeIf(ie.getKey(), (e)->e == ie);
+    }
+    
+    public void remove(Path path)
+    {
+        IndexEntry ie = pathMap.get(path);
+        if (ie != null)
+        {
+            remove(ie);
+        }
+    }
+    /**
+     * Releases entries which are not fetching and not used.
+     */
+    public void gc()
+    {
+        pathMap.values().forEach(IndexEntry::gc);
+    }
+    
+    public int size()
+    {
+        return pathMap.size();
+    }
+
+    public int getKeyCount()
+    {
+        return keyCount.get();
+    }
+
+    public long getFilterNegatives()
+    {
+        return filterNegatives.sum();
+    }
+
+    public long getFilterFalsePositives()
+    {
+        return filterFalsePositives.sum();
+    }
+
+    public long getFilterHits()
+    {
+        return filterHits.sum();
+    }
+
+    public int getFilterCapacity()
+    {
+        return filter.getCapacity();
+    }
+
+    public int getFilterRebuilds()
+    {
+        return filterRebuilds;
+    }
+
+    public long getFilterRebuildMillis()
+    {
+        return filterRebuildMillis;
+    }
+}
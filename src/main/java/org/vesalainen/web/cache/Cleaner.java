@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import static java.util.logging.Level.WARNING;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * Cleaner runs cleaning action after object is collected. This is a
+ * replacement for java.lang.ref.Cleaner which is not available in Java 8.
+ * <p>
+ * Action must not reference the object, otherwise it is never collected.
+ * Action is run only once, either by explicit clean or by the cleaner 
+ * thread.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class Cleaner extends JavaLogging
+{
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final Set<Cleanable> cleanables = ConcurrentHashMap.newKeySet();
+    private final LongAdder collected = new LongAdder();
+    /**
+     * Creates Cleaner with daemon thread.
+     * @param name Thread name
+     */
+    public Cleaner(String name)
+    {
+        super(Cleaner.class);
+        Thread thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+    /**
+     * Registers action to be run when obj is collected.
+     * @param obj
+     * @param action
+     * @return 
+     */
+    public Cleanable register(Object obj, Runnable action)
+    {
+        Cleanable cleanable = new Cleanable(obj, action);
+        cleanables.add(cleanable);
+        return cleanable;
+    }
+    /**
+     * Returns number of registered actions not yet run.
+     * @return 
+     */
+    public int getCount()
+    {
+        return cleanables.size();
+    }
+    /**
+     * Returns number of actions run because object was collected without
+     * explicit clean.
+     * @return 
+     */
+    public long getCollected()
+    {
+        return collected.sum();
+    }
+    
+    private void run()
+    {
+        while (true)
+        {
+            try
+            {
+                Cleanable cleanable = (Cleanable) queue.remove();
+                cleanable.run(true);
+            }
+            catch (InterruptedException ex)
+            {
+                return;
+            }
+            catch (Throwable ex)
+            {
+                log(WARNING, ex, "cleaning action: %s", ex.getMessage());
+            }
+        }
+    }
+    
+    public class Cleanable extends PhantomReference<Object>
+    {
+        private Runnable action;
+
+        private Cleanable(Object referent, Runnable action)
+        {
+            super(referent, queue);
+            this.action = action;
+        }
+        /**
+         * Runs action if not already run.
+         */
+        public void clean()
+        {
+            run(false);
+        }
+        
+        private void run(boolean gc)
+        {
+            Runnable r;
+            synchronized (this)
+            {
+                r = action;
+                action = null;
+            }
+            if (r != null)
+            {
+                cleanables.remove(this);
+                clear();
+                if (gc)
+                {
+                    collected.increment();
+                }
+                r.run();
+            }
+        }
+    }
+}
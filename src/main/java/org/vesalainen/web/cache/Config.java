@@ -34,6 +34,7 @@ import org.vesalainen.util.logging.JavaLogging;
  */
 public class Config
 {
+    public enum ConnectionMode {Thread, Selector, Virtual};
     private static final UnitParser unitParser = UnitParser.getInstance();
     private static File cacheDir;
     private static long cacheMaxSize;
@@ -51,6 +52,41 @@ public class Config
     private static List<byte[]> virtualCircuitHttpsHosts = Collections.EMPTY_LIST;
     // tls
     private static File keyStoreFile = new File("keystore");
+    // index
+    private static File indexFile = new File("index");
+    private static long indexSnapshotInterval = 600000;
+    private static File metadataFile = new File("metadata");
+    // hot cache
+    private static long hotCacheSize;
+    private static int hotCacheMaxEntrySize = 65536;
+    // slab
+    private static File slabDir = new File("slab");
+    private static int slabMaxEntrySize = 8192;
+    private static long slabSegmentSize = 64*1024*1024;
+    private static long slabCompactionInterval = 600000;
+    private static boolean deduplicate = true;
+    private static long bufferPoolSize = 16*1024*1024;
+    // connections
+    private static ConnectionMode connectionMode = ConnectionMode.Thread;
+    private static int selectorLoops;
+    private static long headerTimeout = 60000;
+    private static long keepAliveTimeout = 15000;
+    private static int maxKeepAliveRequests = 100;
+    // origins
+    private static int originConnections = 8;
+    private static WildcardMatcher<Integer> originConnectionsMatcher = new WildcardMatcher<>();
+    private static int originPoolSize = 4;
+    private static long originIdleTimeout = 30000;
+    private static long originWait = 30000;
+    private static long dnsTtl = 60000;
+    private static long dnsNegativeTtl = 10000;
+    private static int dnsThreads = 4;
+    private static long connectTimeout = 10000;
+    private static long connectAttemptDelay = 250;
+    private static long connectFailureMemory = 600000;
+    private static int tlsSessionCacheSize = 20480;
+    private static long tlsSessionTimeout = 86400000;
+    private static boolean tlsSessionTickets = true;
     private static String keyStorePassword;
     private static String caDN = "CN=Timo in the middle, C=FI";
     private static String caAlias = "CA";
@@ -58,6 +94,8 @@ public class Config
     private static String signingAlgorithm = "SHA256withRSA";
     private static int validDays = 1000;
     private static int keySize = 2048;
+    private static int keyPairPoolSize = 8;
+    private static boolean ecHostKeys;
     private static String keyStoreType = "BouncyCastle";
     private static boolean createWildcardCN;
     private static long statisticsTimeSpan;
@@ -114,6 +152,167 @@ public class Config
         return neverCacheMatcher.match(requestTarget);
     }
     
+    @Setting(value="originConnections")
+    public static void setOriginConnections(int originConnections)
+    {
+        Config.originConnections = originConnections;
+    }
+    @Setting(value="originPoolSize")
+    public static void setOriginPoolSize(int originPoolSize)
+    {
+        Config.originPoolSize = originPoolSize;
+    }
+    @Setting(value="originIdleTimeout")
+    public static void setOriginIdleTimeout(String originIdleTimeout)
+    {
+        Config.originIdleTimeout = unitParser.parseMillis(originIdleTimeout);
+    }
+    @Setting(value="originWait")
+    public static void setOriginWait(String originWait)
+    {
+        Config.originWait = unitParser.parseMillis(originWait);
+    }
+    @Setting(value="dnsTtl")
+    public static void setDnsTtl(String dnsTtl)
+    {
+        Config.dnsTtl = unitParser.parseMillis(dnsTtl);
+    }
+    @Setting(value="dnsNegativeTtl")
+    public static void setDnsNegativeTtl(String dnsNegativeTtl)
+    {
+        Config.dnsNegativeTtl = unitParser.parseMillis(dnsNegativeTtl);
+    }
+    @Setting(value="dnsThreads")
+    public static void setDnsThreads(int dnsThreads)
+    {
+        Config.dnsThreads = dnsThreads;
+    }
+    @Setting(value="connectTimeout")
+    public static void setConnectTimeout(String connectTimeout)
+    {
+        Config.connectTimeout = unitParser.parseMillis(connectTimeout);
+    }
+    @Setting(value="connectAttemptDelay")
+    public static void setConnectAttemptDelay(int connectAttemptDelay)
+    {
+        Config.connectAttemptDelay = connectAttemptDelay;
+    }
+    @Setting(value="connectFailureMemory")
+    public static void setConnectFailureMemory(String connectFailureMemory)
+    {
+        Config.connectFailureMemory = unitParser.parseMillis(connectFailureMemory);
+    }
+    @Setting(value="tlsSessionCacheSize")
+    public static void setTlsSessionCacheSize(int tlsSessionCacheSize)
+    {
+        Config.tlsSessionCacheSize = tlsSessionCacheSize;
+    }
+    @Setting(value="tlsSessionTimeout")
+    public static void setTlsSessionTimeout(String tlsSessionTimeout)
+    {
+        Config.tlsSessionTimeout = unitParser.parseMillis(tlsSessionTimeout);
+    }
+    @Setting(value="tlsSessionTickets")
+    public static void setTlsSessionTickets(boolean tlsSessionTickets)
+    {
+        Config.tlsSessionTickets = tlsSessionTickets;
+    }
+    /**
+     * Sets per host connection limits. Entries are host followed by limit
+     * separated by white space. Wildcards * and ? are supported in host.
+     * @param originLimits 
+     */
+    @Setting(value="originLimit")
+    public static void setOriginLimit(List<String> originLimits)
+    {
+        originLimits.stream().forEach((originLimit) ->
+        {
+            String[] split = originLimit.trim().split("\\s+");
+            if (split.length != 2)
+            {
+                throw new IllegalArgumentException(originLimit+" is not 'host limit'");
+            }
+            originConnectionsMatcher.addExpression(split[0], Integer.valueOf(split[1]), Option.CASE_INSENSITIVE);
+        });
+    }
+    /**
+     * Returns max concurrent connections to host. 0 means unlimited.
+     * @param host
+     * @return 
+     */
+    public static int getOriginConnections(String host)
+    {
+        Integer limit = originConnectionsMatcher.match(host);
+        return limit != null ? limit : originConnections;
+    }
+    /**
+     * Returns max idle persistent connections to one origin. 0 disables
+     * pooling.
+     * @return 
+     */
+    public static int getOriginPoolSize()
+    {
+        return originPoolSize;
+    }
+
+    public static long getOriginIdleTimeout()
+    {
+        return originIdleTimeout;
+    }
+    /**
+     * Returns max time pass-through request waits for origin connection.
+     * @return 
+     */
+    public static long getOriginWait()
+    {
+        return originWait;
+    }
+
+    public static long getDnsTtl()
+    {
+        return dnsTtl;
+    }
+
+    public static long getDnsNegativeTtl()
+    {
+        return dnsNegativeTtl;
+    }
+
+    public static int getDnsThreads()
+    {
+        return dnsThreads;
+    }
+
+    public static long getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    public static long getConnectAttemptDelay()
+    {
+        return connectAttemptDelay;
+    }
+
+    public static long getConnectFailureMemory()
+    {
+        return connectFailureMemory;
+    }
+
+    public static int getTlsSessionCacheSize()
+    {
+        return tlsSessionCacheSize;
+    }
+
+    public static long getTlsSessionTimeout()
+    {
+        return tlsSessionTimeout;
+    }
+
+    public static boolean isTlsSessionTickets()
+    {
+        return tlsSessionTickets;
+    }
+    
     public static long getStatisticsTimeSpan()
     {
         return statisticsTimeSpan;
@@ -256,6 +455,35 @@ public class Config
     {
         Config.keyPairAlgorithm = keyPairAlgorithm;
     }
+    /**
+     * Returns number of host key pairs generated in advance. 0 disables
+     * pre-generation.
+     * @return 
+     */
+    public static int getKeyPairPoolSize()
+    {
+        return keyPairPoolSize;
+    }
+
+    @Setting(value="keyPairPoolSize")
+    public static void setKeyPairPoolSize(int keyPairPoolSize)
+    {
+        Config.keyPairPoolSize = keyPairPoolSize;
+    }
+    /**
+     * Returns true if host keys are EC P-256 instead of keyPairAlgorithm.
+     * @return 
+     */
+    public static boolean isEcHostKeys()
+    {
+        return ecHostKeys;
+    }
+
+    @Setting(value="ecHostKeys")
+    public static void setEcHostKeys(boolean ecHostKeys)
+    {
+        Config.ecHostKeys = ecHostKeys;
+    }
 
     public static String getCaAlias()
     {
@@ -328,6 +556,94 @@ public class Config
     {
         Config.timeoutAfterUserQuit = (long) unitParser.parse(timeoutAfterUserQuit);
     }
+    @Setting(value="indexFile")
+    public static void setIndexFile(File indexFile)
+    {
+        Config.indexFile = indexFile;
+    }
+    @Setting(value="metadataFile")
+    public static void setMetadataFile(File metadataFile)
+    {
+        Config.metadataFile = metadataFile;
+    }
+    @Setting(value="hotCacheSize")
+    public static void setHotCacheSize(String hotCacheSize)
+    {
+        Config.hotCacheSize = (long) unitParser.parse(hotCacheSize);
+    }
+    @Setting(value="hotCacheMaxEntrySize")
+    public static void setHotCacheMaxEntrySize(String hotCacheMaxEntrySize)
+    {
+        Config.hotCacheMaxEntrySize = (int) unitParser.parse(hotCacheMaxEntrySize);
+    }
+    @Setting(value="slabDir")
+    public static void setSlabDir(File slabDir)
+    {
+        Config.slabDir = slabDir;
+    }
+    @Setting(value="slabMaxEntrySize")
+    public static void setSlabMaxEntrySize(String slabMaxEntrySize)
+    {
+        Config.slabMaxEntrySize = (int) unitParser.parse(slabMaxEntrySize);
+    }
+    @Setting(value="slabSegmentSize")
+    public static void setSlabSegmentSize(String slabSegmentSize)
+    {
+        Config.slabSegmentSize = (long) unitParser.parse(slabSegmentSize);
+    }
+    @Setting(value="slabCompactionInterval")
+    public static void setSlabCompactionInterval(String slabCompactionInterval)
+    {
+        Config.slabCompactionInterval = (long) unitParser.parse(slabCompactionInterval);
+    }
+    @Setting(value="deduplicate")
+    public static void setDeduplicate(boolean deduplicate)
+    {
+        Config.deduplicate = deduplicate;
+    }
+    @Setting(value="bufferPoolSize")
+    public static void setBufferPoolSize(String bufferPoolSize)
+    {
+        Config.bufferPoolSize = (long) unitParser.parse(bufferPoolSize);
+    }
+    @Setting(value="connectionMode")
+    public static void setConnectionMode(String connectionMode)
+    {
+        for (ConnectionMode mode : ConnectionMode.values())
+        {
+            if (mode.name().equalsIgnoreCase(connectionMode))
+            {
+                Config.connectionMode = mode;
+                return;
+            }
+        }
+        throw new IllegalArgumentException(connectionMode+" not connection mode");
+    }
+    @Setting(value="selectorLoops")
+    public static void setSelectorLoops(int selectorLoops)
+    {
+        Config.selectorLoops = selectorLoops;
+    }
+    @Setting(value="headerTimeout")
+    public static void setHeaderTimeout(String headerTimeout)
+    {
+        Config.headerTimeout = unitParser.parseMillis(headerTimeout);
+    }
+    @Setting(value="keepAliveTimeout")
+    public static void setKeepAliveTimeout(String keepAliveTimeout)
+    {
+        Config.keepAliveTimeout = unitParser.parseMillis(keepAliveTimeout);
+    }
+    @Setting(value="maxKeepAliveRequests")
+    public static void setMaxKeepAliveRequests(int maxKeepAliveRequests)
+    {
+        Config.maxKeepAliveRequests = maxKeepAliveRequests;
+    }
+    @Setting(value="indexSnapshotInterval")
+    public static void setIndexSnapshotInterval(String indexSnapshotInterval)
+    {
+        Config.indexSnapshotInterval = (long) unitParser.parse(indexSnapshotInterval);
+    }
 
     public static UnitParser getUnitParser()
     {
@@ -399,6 +715,89 @@ public class Config
         return keyStoreFile;
     }
 
+    public static File getIndexFile()
+    {
+        return indexFile;
+    }
+
+    public static long getIndexSnapshotInterval()
+    {
+        return indexSnapshotInterval;
+    }
+
+    public static File getMetadataFile()
+    {
+        return metadataFile;
+    }
+
+    public static long getHotCacheSize()
+    {
+        return hotCacheSize;
+    }
+
+    public static int getHotCacheMaxEntrySize()
+    {
+        return hotCacheMaxEntrySize;
+    }
+
+    public static File getSlabDir()
+    {
+        return slabDir;
+    }
+
+    public static int getSlabMaxEntrySize()
+    {
+        return slabMaxEntrySize;
+    }
+
+    public static long getSlabSegmentSize()
+    {
+        return slabSegmentSize;
+    }
+
+    public static long getSlabCompactionInterval()
+    {
+        return slabCompactionInterval;
+    }
+
+    public static boolean isDeduplicate()
+    {
+        return deduplicate;
+    }
+
+    public static long getBufferPoolSize()
+    {
+        return bufferPoolSize;
+    }
+
+    public static ConnectionMode getConnectionMode()
+    {
+        return connectionMode;
+    }
+    /**
+     * Returns number of selector loops. Default is number of processors.
+     * @return 
+     */
+    public static int getSelectorLoops()
+    {
+        return selectorLoops > 0 ? selectorLoops : Runtime.getRuntime().availableProcessors();
+    }
+
+    public static long getHeaderTimeout()
+    {
+        return headerTimeout;
+    }
+
+    public static long getKeepAliveTimeout()
+    {
+        return keepAliveTimeout;
+    }
+
+    public static int getMaxKeepAliveRequests()
+    {
+        return maxKeepAliveRequests;
+    }
+
     public static String getKeyStorePassword()
     {
         return keyStorePassword;
@@ -413,5 +812,6 @@ public class Config
     {
         alwaysCacheMatcher.compile();
         neverCacheMatcher.compile();
+        originConnectionsMatcher.compile();
     }
 }
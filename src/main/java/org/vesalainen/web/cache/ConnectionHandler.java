@@ -17,18 +17,19 @@
 package org.vesalainen.web.cache;
 
 import org.vesalainen.web.parser.HttpHeaderParser;
+import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.SocketOption;
 import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
 import java.util.Map;
-import java.util.concurrent.Callable;
 import java.util.logging.Level;
 import static java.util.logging.Level.*;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLException;
 import org.vesalainen.net.ssl.HelloForwardException;
 import org.vesalainen.net.ssl.SSLSocketChannel;
@@ -52,28 +53,90 @@ public class ConnectionHandler extends JavaLogging implements Runner
     private static JavaLogging accessLog = new JavaLogging("access");
     private Scheme scheme;
     private ByteChannel userAgent;
-    private final ByteBuffer bb;
-    private final HttpHeaderParser parser;
+    private ByteBuffer bb;
+    private HttpHeaderParser parser;
+    private BufferPool.Lease lease;
+    private boolean headerRead;
+    private OriginLimiter.Permit permit;
     private long active;
+    private SelectorLoop loop;
+    private int requests;
 
     public ConnectionHandler(Scheme scheme, ByteChannel channel)
+    {
+        this(scheme, channel, null);
+    }
+    /**
+     * Creates ConnectionHandler
+     * @param scheme
+     * @param channel
+     * @param loop Selector loop where idle persistent connection is 
+     * returned or null.
+     */
+    public ConnectionHandler(Scheme scheme, ByteChannel channel, SelectorLoop loop)
     {
         super(ConnectionHandler.class);
         this.scheme = scheme;
         this.userAgent = channel;
-        bb = ByteBuffer.allocateDirect(BufferSize);
-        parser = HttpHeaderParser.getInstance(scheme, bb);
+        this.loop = loop;
     }
 
     private static void logAccess(Map<Object,Object> tags, Long elapsed, String requestTarget)
     {
         accessLog.info("%s %s %d", requestTarget, tags.get("Connection Type"), elapsed);
     }
+    /**
+     * Reads available header bytes from non-blocking channel. Returns true
+     * when whole header is read. Channel must be set to blocking mode before
+     * handler is submitted.
+     * @return
+     * @throws IOException 
+     */
+    boolean readHeaderPart() throws IOException
+    {
+        if (lease == null)
+        {
+            createParser();
+        }
+        headerRead = parser.readHeaderPart(userAgent);
+        active();
+        return headerRead;
+    }
+    /**
+     * Closes connection which was not submitted.
+     * @throws IOException 
+     */
+    void close() throws IOException
+    {
+        try
+        {
+            userAgent.close();
+        }
+        finally
+        {
+            if (lease != null)
+            {
+                lease.release();
+            }
+        }
+    }
+    
+    private void createParser()
+    {
+        lease = Cache.getBufferPool().lease(this);
+        bb = lease.get(BufferSize);
+        parser = HttpHeaderParser.getInstance(scheme, bb);
+    }
     static int num;
     @Override
     public Boolean call() throws Exception
     {
         active();
+        if (lease == null)
+        {
+            createParser();
+        }
+        boolean suspended = false;
         try
         {
             TaggableThread.tag("Scheme", scheme);
@@ -82,8 +145,11 @@ public class ConnectionHandler extends JavaLogging implements Runner
             setOption(userAgent, StandardSocketOptions.SO_KEEPALIVE, true);
             try
             {
-                parser.readHeader(userAgent);
-                active();
+                if (!headerRead)
+                {
+                    parser.readHeader(userAgent);
+                    active();
+                }
             }
             catch (HelloForwardException hfe)
             {
@@ -93,22 +159,64 @@ public class ConnectionHandler extends JavaLogging implements Runner
                 originServer.write(hfe.getClientHello());
                 VirtualCircuit vc = VirtualCircuitFactory.create(hfe.getChannel(), originServer, BufferSize, true);
                 fine("start HTTPS->HTTP VC for %s / %s", hfe.getChannel(), originServer);
-                vc.join(Cache::getExecutor);
+                vc.join(Cache::getWorkerExecutor);
                 userAgent = null;
                 return null;
             }
-            parser.parseRequest();
-            TaggableThread.addCompleter((t, e)->ConnectionHandler.logAccess(t, e, parser.getRequestTarget()));
-            fine("cache received from user: %s\n%s", userAgent, parser);
-            String requestTarget = parser.getRequestTarget();
-            String neverCachePattern = Config.getNeverCache(requestTarget);
-            boolean neverCache = neverCachePattern != null;
-            fine("%s matched neverCache pattern %s", requestTarget, neverCachePattern);
-            if (!neverCache && Cache.tryCache(parser, userAgent))
+            String[] last = new String[1];
+            TaggableThread.addCompleter((t, e)->ConnectionHandler.logAccess(t, e, last[0]));
+            while (true)
             {
+                long start = Cache.getClock().millis();
+                int received = bb.limit();
+                parser.parseRequest();
+                int headerSize = parser.getHeaderSize();
+                requests++;
+                fine("cache received from user: %s\n%s", userAgent, parser);
+                String requestTarget = parser.getRequestTarget();
+                last[0] = requestTarget;
+                String neverCachePattern = Config.getNeverCache(requestTarget);
+                boolean neverCache = neverCachePattern != null;
+                fine("%s matched neverCache pattern %s", requestTarget, neverCachePattern);
+                if (neverCache || !Cache.tryCache(parser, userAgent))
+                {
+                    break;
+                }
                 TaggableThread.tag("Connection Type", "Cache");
-                setOption(userAgent, StandardSocketOptions.SO_LINGER, 5);
-                return null;
+                if (!parser.isPersistent() || requests >= Config.getMaxKeepAliveRequests())
+                {
+                    setOption(userAgent, StandardSocketOptions.SO_LINGER, 5);
+                    return null;
+                }
+                long elapsed = Cache.getClock().millis() - start;
+                // last request is logged by completer
+                if (loop != null)
+                {
+                    compact(received, headerSize);
+                    try
+                    {
+                        if (!readAvailable())
+                        {
+                            fine("wait next header in selector %s", userAgent);
+                            suspended = true;
+                            loop.resume(this);
+                            return null;
+                        }
+                    }
+                    catch (EOFException | ClosedChannelException ex)
+                    {
+                        finest("persistent connection ended %s", ex);
+                        return null;
+                    }
+                }
+                else
+                {
+                    if (!readNextHeader(received, headerSize))
+                    {
+                        return null;
+                    }
+                }
+                accessLog.info("%s %s %d", requestTarget, "Cache", elapsed);
             }
             CharSequence csHost = parser.getHeader(Host);
             if (csHost == null)
@@ -118,8 +226,23 @@ public class ConnectionHandler extends JavaLogging implements Runner
             }
             String host = parser.getHost();
             int port = parser.getPort();
+            boolean connect = Method.CONNECT.equals(parser.getMethod());
+            if (!connect)
+            {
+                // tunnels are long lived and not limited
+                permit = Cache.getOriginLimiter().tryAcquire(host, Config.getOriginWait());
+                if (permit == null)
+                {
+                    warning("timeout waiting connection to %s", host);
+                    bb.clear();
+                    bb.put(ServiceUnavailableResponse);
+                    bb.flip();
+                    ChannelHelper.writeAll(userAgent, bb);
+                    return null;
+                }
+            }
             ByteChannel originServer = open(scheme, host, port);
-            if (Method.CONNECT.equals(parser.getMethod()))
+            if (connect)
             {
                 TaggableThread.tag("Connection Type", "Connect VC");
                 fine("send %s to %s", bb, originServer);
@@ -141,7 +264,7 @@ public class ConnectionHandler extends JavaLogging implements Runner
             }
             VirtualCircuit vc = VirtualCircuitFactory.create(userAgent, originServer, BufferSize, true);
             fine("start VC for %s / %s", userAgent, originServer);
-            vc.join(Cache::getExecutor);
+            vc.join(Cache::getWorkerExecutor);
             userAgent = null;
         }
         catch (SSLException ex)
@@ -155,38 +278,137 @@ public class ConnectionHandler extends JavaLogging implements Runner
         }
         finally
         {
-            if (userAgent != null)
+            if (!suspended)
             {
-                finest("close %s", userAgent);
-                userAgent.close();
+                if (userAgent != null)
+                {
+                    finest("close %s", userAgent);
+                    userAgent.close();
+                }
+                if (permit != null)
+                {
+                    permit.release();
+                }
+                lease.release();
             }
         }
         return false;
     }
 
+    /**
+     * Moves pipelined bytes to start of buffer and reads next request
+     * header. Connection is closed if header is not received within
+     * keepAliveTimeout.
+     * @param received Bytes in buffer
+     * @param headerSize Size of previous header
+     * @return False if user agent closed the connection or it timed out.
+     * @throws IOException 
+     */
+    private boolean readNextHeader(int received, int headerSize) throws IOException
+    {
+        compact(received, headerSize);
+        TimerWheel.Timeout timeout = Cache.getTimerWheel().schedule(Config.getKeepAliveTimeout(), this::closeIdle);
+        try
+        {
+            // blocking channel may still return 0, e.g. for TLS records
+            // without application data
+            while (!parser.readHeaderPart(userAgent))
+            {
+                finest("partial header %s", bb);
+            }
+            active();
+            return true;
+        }
+        catch (EOFException | ClosedChannelException ex)
+        {
+            finest("persistent connection ended %s", ex);
+            return false;
+        }
+        finally
+        {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Reads available bytes without blocking. Channel is left in 
+     * non-blocking mode if whole header was not read.
+     * @return True if whole next header is in buffer.
+     * @throws IOException 
+     */
+    private boolean readAvailable() throws IOException
+    {
+        SocketChannel channel = (SocketChannel) userAgent;
+        channel.configureBlocking(false);
+        if (parser.readHeaderPart(channel))
+        {
+            channel.configureBlocking(true);
+            active();
+            return true;
+        }
+        return false;
+    }
+    /**
+     * Moves pipelined bytes to start of buffer.
+     * @param received Bytes in buffer
+     * @param headerSize Size of previous header
+     */
+    private void compact(int received, int headerSize)
+    {
+        bb.limit(received);
+        bb.position(headerSize);
+        bb.compact();
+    }
+    /**
+     * Returns true if connection has served requests and waits for next.
+     * @return 
+     */
+    boolean isKeepAlive()
+    {
+        return requests > 0;
+    }
+    /**
+     * Returns user agent channel.
+     * @return 
+     */
+    ByteChannel getUserAgent()
+    {
+        return userAgent;
+    }
+
+    private void closeIdle()
+    {
+        try
+        {
+            fine("keep-alive timeout %s", userAgent);
+            userAgent.close();
+        }
+        catch (IOException ex)
+        {
+            log(FINER, ex, "%s", ex.getMessage());
+        }
+    }
+
     public static ByteChannel open(Scheme scheme, String host, int port) throws IOException
     {
-        InetAddress[] allByName = InetAddress.getAllByName(host);
+        InetAddress[] allByName = Cache.getDnsCache().resolve(host);
         if (allByName != null && allByName.length > 0)
         {
-            for (InetAddress addr : allByName)
+            Cache.log().finest("trying %s connect to %s:%d", scheme, host, port);
+            switch (scheme)
             {
-                Cache.log().finest("trying %s connect to %s:%d", scheme, addr, port);
-                SocketChannel channel;
-                InetSocketAddress inetSocketAddress = new InetSocketAddress(addr, port);
-                switch (scheme)
-                {
-                    case HTTP:
-                        channel = SocketChannel.open(inetSocketAddress);
-                        Cache.log().finest("connected to http %s", channel);
-                        return channel;
-                    case HTTPS:
-                        SSLSocketChannel sslSocketChannel = SSLSocketChannel.open(host, port);
-                        Cache.log().finest("connected to https %s", sslSocketChannel);
-                        return sslSocketChannel;
-                    default:
-                        throw new UnsupportedOperationException(scheme+" unsupported");
-                }
+                case HTTP:
+                    SocketChannel channel = Cache.getOriginConnector().connect(allByName, port);
+                    Cache.log().finest("connected to http %s", channel);
+                    return channel;
+                case HTTPS:
+                    SocketChannel socketChannel = Cache.getOriginConnector().connect(allByName, port);
+                    SSLContext peerCtx = Cache.getTlsSessions().forPeer(Cache.getOriginSslContext(), host, port);
+                    SSLSocketChannel sslSocketChannel = SSLSocketChannel.open(socketChannel, peerCtx, ByteBuffer.allocate(0), true);
+                    Cache.log().finest("connected to https %s", sslSocketChannel);
+                    return sslSocketChannel;
+                default:
+                    throw new UnsupportedOperationException(scheme+" unsupported");
             }
         }
         else
@@ -261,38 +483,4 @@ public class ConnectionHandler extends JavaLogging implements Runner
     {
         return false;
     }
-    
-    private static class Connector implements Callable<SocketChannel>
-    {
-        private InetSocketAddress remote;
-        private SocketChannel channel;
-
-        public Connector(InetSocketAddress isa)
-        {
-            this.remote = isa;
-        }
-
-        @Override
-        public SocketChannel call() throws Exception
-        {
-            Cache.log().finest("trying to open %s", remote);
-            channel = SocketChannel.open(remote);
-            return channel;
-        }
-        
-        public void closeExtra(SocketChannel channel)
-        {
-            if (this.channel != null && !this.channel.equals(channel))
-            {
-                try
-                {
-                    Cache.log().finest("close extra %s", this.channel);
-                    this.channel.close();
-                }
-                catch (IOException ex)
-                {
-                }
-            }
-        }
-    }
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * CountingBloomFilter for 20 byte digests. Counters are 4 bits, 16 in each
+ * long. Saturated counters are never decremented.
+ * <p>
+ * Digest bytes are already uniformly distributed, so hash functions are
+ * derived from digest bytes by double hashing.
+ * <p>
+ * Filter is thread safe. Counters are updated with CAS.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class CountingBloomFilter
+{
+    private static final int BitsPerKey = 10;
+    private static final int Hashes = 7;
+    private static final long Max = 15;
+    private final AtomicLongArray counters;
+    private final long size;
+    private final int capacity;
+    /**
+     * Creates filter for about 1% false positive rate when containing
+     * capacity keys.
+     * @param capacity
+     */
+    public CountingBloomFilter(int capacity)
+    {
+        this.capacity = capacity;
+        int words = Math.max(1, (int) (((long)capacity*BitsPerKey + 15) / 16));
+        this.counters = new AtomicLongArray(words);
+        this.size = 16L*words;
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public boolean mightContain(byte[] digest)
+    {
+        long h1 = getLong(digest, 0);
+        long h2 = getLong(digest, 8);
+        for (int ii=0;ii<Hashes;ii++)
+        {
+            long idx = index(h1, h2, ii);
+            long word = counters.get((int) (idx >>> 4));
+            if (((word >>> shift(idx)) & 0xf) == 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void add(byte[] digest)
+    {
+        long h1 = getLong(digest, 0);
+        long h2 = getLong(digest, 8);
+        for (int ii=0;ii<Hashes;ii++)
+        {
+            long idx = index(h1, h2, ii);
+            int wi = (int) (idx >>> 4);
+            int shift = shift(idx);
+            while (true)
+            {
+                long word = counters.get(wi);
+                long cnt = (word >>> shift) & 0xf;
+                if (cnt == Max || counters.compareAndSet(wi, word, word + (1L << shift)))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    public void remove(byte[] digest)
+    {
+        long h1 = getLong(digest, 0);
+        long h2 = getLong(digest, 8);
+        for (int ii=0;ii<Hashes;ii++)
+        {
+            long idx = index(h1, h2, ii);
+            int wi = (int) (idx >>> 4);
+            int shift = shift(idx);
+            while (true)
+            {
+                long word = counters.get(wi);
+                long cnt = (word >>> shift) & 0xf;
+                if (cnt == 0 || cnt == Max || counters.compareAndSet(wi, word, word - (1L << shift)))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    private long index(long h1, long h2, int ii)
+    {
+        return Math.floorMod(h1 + ii*h2, size);
+    }
+
+    private static int shift(long idx)
+    {
+        return (int) (idx & 0xf) << 2;
+    }
+
+    private static long getLong(byte[] buf, int off)
+    {
+        long l = 0;
+        for (int ii=0;ii<8;ii++)
+        {
+            l = (l << 8) | (buf[off+ii] & 0xff);
+        }
+        return l;
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReentrantLock;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * DedupStore shares identical cached content between files. When a fetched
+ * file has the same SHA-1 digest and size as an already stored file, the new
+ * file is replaced by a hard link to the stored one.
+ * <p>
+ * Paths sharing content are reference counted. File system frees the
+ * content when the last link is deleted. When the first path is deleted the
+ * next one is used for new links.
+ * <p>
+ * DedupStore is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class DedupStore extends JavaLogging
+{
+    private static final String LinkSuffix = ".lnk";
+    private final DigestTable<Content> table = new DigestTable<>();
+    private final Map<Path,Content> pathMap = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long logicalBytes;
+    private long physicalBytes;
+    private long links;
+
+    public DedupStore()
+    {
+        super(DedupStore.class);
+    }
+    /**
+     * Adds existing file without linking. Used when building from index.
+     * Path is ignored if it doesn't share the file of existing path with
+     * same digest.
+     * @param path
+     * @param digest
+     * @param size 
+     */
+    public void add(Path path, byte[] digest, long size)
+    {
+        lock.lock();
+        try
+        {
+            Content c = table.get(digest);
+            if (c == null)
+            {
+                add(digest, new Content(path, size));
+            }
+            else
+            {
+                if (c.size == size && sameFile(c.paths.get(0), path))
+                {
+                    add(c, path);
+                }
+            }
+        }
+        catch (IOException ex)
+        {
+            fine("add %s: %s", path, ex.getMessage());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    /**
+     * Replaces file with link to stored file with same content. If there is
+     * no such file, the file is stored.
+     * @param path
+     * @param digest
+     * @param size
+     * @return True if path was linked.
+     */
+    public boolean link(Path path, byte[] digest, long size)
+    {
+        lock.lock();
+        try
+        {
+            if (pathMap.containsKey(path))
+            {
+                return false;
+            }
+            Content c = table.get(digest);
+            if (c == null)
+            {
+                add(digest, new Content(path, size));
+                return false;
+            }
+            if (c.size != size)
+            {
+                return false;
+            }
+            Path target = c.paths.get(0);
+            Path tmp = path.resolveSibling(path.getFileName()+LinkSuffix);
+            try
+            {
+                Files.createLink(tmp, target);
+                Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException | UnsupportedOperationException ex)
+            {
+                fine("link %s -> %s: %s", path, target, ex.getMessage());
+                try
+                {
+                    Files.deleteIfExists(tmp);
+                }
+                catch (IOException ex1)
+                {
+                    warning("delete %s: %s", tmp, ex1.getMessage());
+                }
+                return false;
+            }
+            add(c, path);
+            finer("linked %s -> %s", path, target);
+            return true;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    /**
+     * Removes path. Called when file is deleted.
+     * @param path 
+     */
+    public void remove(Path path)
+    {
+        lock.lock();
+        try
+        {
+            Content c = pathMap.remove(path);
+            if (c != null)
+            {
+                c.paths.remove(path);
+                logicalBytes -= c.size;
+                if (c.paths.isEmpty())
+                {
+                    table.remove(c.digest);
+                    physicalBytes -= c.size;
+                }
+                else
+                {
+                    links--;
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void add(byte[] digest, Content c)
+    {
+        c.digest = digest.clone();
+        table.put(digest, c);
+        pathMap.put(c.paths.get(0), c);
+        logicalBytes += c.size;
+        physicalBytes += c.size;
+    }
+
+    private void add(Content c, Path path)
+    {
+        c.paths.add(path);
+        pathMap.put(path, c);
+        logicalBytes += c.size;
+        links++;
+    }
+
+    private static boolean sameFile(Path p1, Path p2) throws IOException
+    {
+        Object k1 = Files.readAttributes(p1, BasicFileAttributes.class).fileKey();
+        Object k2 = Files.readAttributes(p2, BasicFileAttributes.class).fileKey();
+        return k1 != null && Objects.equals(k1, k2);
+    }
+    /**
+     * Returns ratio of referenced bytes to stored bytes.
+     * @return 
+     */
+    public double getRatio()
+    {
+        lock.lock();
+        try
+        {
+            return physicalBytes > 0 ? (double)logicalBytes/(double)physicalBytes : 1.0;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    /**
+     * Returns bytes saved by links.
+     * @return 
+     */
+    public long getSavedBytes()
+    {
+        lock.lock();
+        try
+        {
+            return logicalBytes - physicalBytes;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getLinks()
+    {
+        lock.lock();
+        try
+        {
+            return links;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private static class Content
+    {
+        private byte[] digest;
+        private final long size;
+        private final List<Path> paths = new ArrayList<>();
+
+        public Content(Path path, long size)
+        {
+            this.size = size;
+            paths.add(path);
+        }
+        
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.function.Consumer;
+
+/**
+ * DigestTable is an open addressing hash table keyed by 20 byte digests.
+ * Keys are stored in a long array so that lookups don't allocate.
+ * <p>
+ * Deletion uses backward shifting, so there are no tombstones.
+ * <p>
+ * DigestTable is not thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ * @param <V>
+ */
+public class DigestTable<V>
+{
+    public static final int DigestLength = 20;
+    private static final int Longs = 3;
+    private long[] keys;
+    private Object[] values;
+    private int mask;
+    private int size;
+
+    public DigestTable()
+    {
+        this(16);
+    }
+    /**
+     * Creates DigestTable
+     * @param initialCapacity Rounded up to power of 2.
+     */
+    public DigestTable(int initialCapacity)
+    {
+        int capacity = initialCapacity > 2 ? Integer.highestOneBit(initialCapacity-1)<<1 : 2;
+        keys = new long[Longs*capacity];
+        values = new Object[capacity];
+        mask = capacity-1;
+    }
+    /**
+     * Returns value for digest or null if not found.
+     * @param digest
+     * @return
+     */
+    public V get(byte[] digest)
+    {
+        int slot = find(digest);
+        if (slot != -1)
+        {
+            return (V) values[slot];
+        }
+        return null;
+    }
+    /**
+     * Puts value for digest. Digest array is not referenced after call.
+     * @param digest
+     * @param value Not null
+     * @return Old value or null
+     */
+    public V put(byte[] digest, V value)
+    {
+        if (value == null)
+        {
+            throw new NullPointerException("null value");
+        }
+        if (2*(size+1) > values.length)
+        {
+            resize(2*values.length);
+        }
+        long k0 = getLong(digest, 0);
+        long k1 = getLong(digest, 8);
+        long k2 = getInt(digest, 16);
+        int slot = home(k1);
+        while (values[slot] != null)
+        {
+            if (equals(slot, k0, k1, k2))
+            {
+                V old = (V) values[slot];
+                values[slot] = value;
+                return old;
+            }
+            slot = (slot+1) & mask;
+        }
+        set(slot, k0, k1, k2, value);
+        size++;
+        return null;
+    }
+    /**
+     * Removes digest.
+     * @param digest
+     * @return Removed value or null
+     */
+    public V remove(byte[] digest)
+    {
+        int slot = find(digest);
+        if (slot == -1)
+        {
+            return null;
+        }
+        V old = (V) values[slot];
+        values[slot] = null;
+        size--;
+        int hole = slot;
+        int jj = slot;
+        while (true)
+        {
+            jj = (jj+1) & mask;
+            if (values[jj] == null)
+            {
+                return old;
+            }
+            int home = home(keys[Longs*jj+1]);
+            if (((jj - home) & mask) >= ((jj - hole) & mask))
+            {
+                set(hole, keys[Longs*jj], keys[Longs*jj+1], keys[Longs*jj+2], values[jj]);
+                values[jj] = null;
+                hole = jj;
+            }
+        }
+    }
+
+    public int size()
+    {
+        return size;
+    }
+    /**
+     * Calls consumer for every value.
+     * @param consumer 
+     */
+    public void forEach(Consumer<? super V> consumer)
+    {
+        for (Object value : values)
+        {
+            if (value != null)
+            {
+                consumer.accept((V) value);
+            }
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    private int find(byte[] digest)
+    {
+        long k0 = getLong(digest, 0);
+        long k1 = getLong(digest, 8);
+        long k2 = getInt(digest, 16);
+        int slot = home(k1);
+        while (values[slot] != null)
+        {
+            if (equals(slot, k0, k1, k2))
+            {
+                return slot;
+            }
+            slot = (slot+1) & mask;
+        }
+        return -1;
+    }
+
+    private void resize(int capacity)
+    {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[Longs*capacity];
+        values = new Object[capacity];
+        mask = capacity-1;
+        for (int ii=0;ii<oldValues.length;ii++)
+        {
+            if (oldValues[ii] != null)
+            {
+                long k1 = oldKeys[Longs*ii+1];
+                int slot = home(k1);
+                while (values[slot] != null)
+                {
+                    slot = (slot+1) & mask;
+                }
+                set(slot, oldKeys[Longs*ii], k1, oldKeys[Longs*ii+2], oldValues[ii]);
+            }
+        }
+    }
+
+    private boolean equals(int slot, long k0, long k1, long k2)
+    {
+        int idx = Longs*slot;
+        return keys[idx] == k0 && keys[idx+1] == k1 && keys[idx+2] == k2;
+    }
+
+    private void set(int slot, long k0, long k1, long k2, Object value)
+    {
+        int idx = Longs*slot;
+        keys[idx] = k0;
+        keys[idx+1] = k1;
+        keys[idx+2] = k2;
+        values[slot] = value;
+    }
+    /**
+     * Digest bytes are already uniformly distributed. Middle bytes are used
+     * because first bytes select directory and last bytes select lock stripe.
+     */
+    private int home(long k1)
+    {
+        return (int) (k1 ^ (k1 >>> 32)) & mask;
+    }
+
+    private static long getLong(byte[] buf, int off)
+    {
+        long l = 0;
+        for (int ii=0;ii<8;ii++)
+        {
+            l = (l << 8) | (buf[off+ii] & 0xff);
+        }
+        return l;
+    }
+
+    private static long getInt(byte[] buf, int off)
+    {
+        long l = 0;
+        for (int ii=0;ii<4;ii++)
+        {
+            l = (l << 8) | (buf[off+ii] & 0xff);
+        }
+        return l;
+    }
+}
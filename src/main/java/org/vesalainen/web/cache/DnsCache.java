@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * DnsCache caches host name lookups. Lookups run in a bounded resolver 
+ * thread pool and concurrent lookups of the same host share one lookup.
+ * <p>
+ * Successful lookups are cached for ttl and failed ones for negative ttl.
+ * InetAddress doesn't tell the record ttl, so these are configured. Entry 
+ * used during the last fifth of its ttl is refreshed in background while 
+ * cached addresses are still returned, so hosts in use are not waited for.
+ * Failed refresh keeps the old addresses until they expire.
+ * <p>
+ * DnsCache is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class DnsCache extends JavaLogging
+{
+    private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,FutureTask<Entry>> lookups = new ConcurrentHashMap<>();
+    private final Resolver resolver;
+    private final ExecutorService executor;
+    private final LongSupplier ttl;
+    private final LongSupplier negativeTtl;
+    private final LongSupplier clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder negativeHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder lookupCount = new LongAdder();
+    private final LongAdder lookupNanos = new LongAdder();
+    private final AtomicLong maxLookupNanos = new AtomicLong();
+    /**
+     * Creates DnsCache
+     * @param resolver
+     * @param threads Number of resolver threads.
+     * @param ttl Millis to cache addresses.
+     * @param negativeTtl Millis to cache failure.
+     * @param clock Returns current millis.
+     */
+    public DnsCache(Resolver resolver, int threads, LongSupplier ttl, LongSupplier negativeTtl, LongSupplier clock)
+    {
+        super(DnsCache.class);
+        this.resolver = resolver;
+        this.executor = Executors.newFixedThreadPool(threads, (r)->
+        {
+            Thread thread = new Thread(r, "DNS Resolver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.clock = clock;
+    }
+    /**
+     * Returns addresses of host.
+     * @param host
+     * @return
+     * @throws UnknownHostException If lookup failed now or within negative
+     * ttl.
+     * @throws InterruptedIOException 
+     */
+    public InetAddress[] resolve(String host) throws IOException
+    {
+        String key = host.toLowerCase();
+        Entry entry = entries.get(key);
+        long now = clock.getAsLong();
+        if (entry != null && now < entry.expires)
+        {
+            if (now >= entry.refresh && entry.refreshing.compareAndSet(false, true))
+            {
+                refreshes.increment();
+                fine("refresh %s", key);
+                lookup(key);
+            }
+            if (entry.addresses != null)
+            {
+                hits.increment();
+            }
+            else
+            {
+                negativeHits.increment();
+            }
+            return entry.get();
+        }
+        misses.increment();
+        FutureTask<Entry> task = lookup(key);
+        try
+        {
+            return task.get().get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("resolving "+host);
+        }
+        catch (ExecutionException ex)
+        {
+            throw new IOException(ex.getCause());
+        }
+    }
+    /**
+     * Removes expired entries.
+     */
+    public void evict()
+    {
+        long now = clock.getAsLong();
+        entries.values().removeIf((e)->e.expires <= now);
+    }
+    
+    private FutureTask<Entry> lookup(String key)
+    {
+        FutureTask<Entry> task = new FutureTask<>(()->doLookup(key));
+        FutureTask<Entry> running = lookups.putIfAbsent(key, task);
+        if (running != null)
+        {
+            return running;
+        }
+        executor.execute(task);
+        return task;
+    }
+    
+    private Entry doLookup(String key)
+    {
+        try
+        {
+            long start = System.nanoTime();
+            Entry entry;
+            try
+            {
+                InetAddress[] addresses = resolver.resolve(key);
+                entry = new Entry(addresses, null, ttl.getAsLong());
+            }
+            catch (UnknownHostException ex)
+            {
+                finer("negative %s", key);
+                entry = new Entry(null, ex, negativeTtl.getAsLong());
+            }
+            finally
+            {
+                long nanos = System.nanoTime() - start;
+                lookupCount.increment();
+                lookupNanos.add(nanos);
+                maxLookupNanos.accumulateAndGet(nanos, Math::max);
+            }
+            Entry old = entries.get(key);
+            if (entry.addresses == null && old != null && old.addresses != null && clock.getAsLong() < old.expires)
+            {
+                warning("refresh of %s failed, using old addresses", key);
+                return old;
+            }
+            entries.put(key, entry);
+            return entry;
+        }
+        finally
+        {
+            // failed lookup must not stay in lookups
+            lookups.remove(key);
+        }
+    }
+
+    public int getSize()
+    {
+        return entries.size();
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getNegativeHits()
+    {
+        return negativeHits.sum();
+    }
+
+    public long getMisses()
+    {
+        return misses.sum();
+    }
+
+    public long getRefreshes()
+    {
+        return refreshes.sum();
+    }
+    /**
+     * Returns ratio of requests answered from cache.
+     * @return 
+     */
+    public double getHitRatio()
+    {
+        long h = hits.sum() + negativeHits.sum();
+        long all = h + misses.sum();
+        return all > 0 ? (double)h/all : 0;
+    }
+
+    public long getLookups()
+    {
+        return lookupCount.sum();
+    }
+    /**
+     * Returns average resolver lookup time in millis.
+     * @return 
+     */
+    public double getAverageLookupMillis()
+    {
+        long count = lookupCount.sum();
+        return count > 0 ? lookupNanos.sum() / 1000000.0 / count : 0;
+    }
+
+    public long getMaxLookupMillis()
+    {
+        return TimeUnit.NANOSECONDS.toMillis(maxLookupNanos.get());
+    }
+    
+    @FunctionalInterface
+    public interface Resolver
+    {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+    
+    private class Entry
+    {
+        private final InetAddress[] addresses;
+        private final UnknownHostException failure;
+        private final long refresh;
+        private final long expires;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        public Entry(InetAddress[] addresses, UnknownHostException failure, long ttl)
+        {
+            this.addresses = addresses;
+            this.failure = failure;
+            long now = clock.getAsLong();
+            this.refresh = now + ttl - ttl/5;
+            this.expires = now + ttl;
+        }
+        
+        private InetAddress[] get() throws UnknownHostException
+        {
+            if (addresses == null)
+            {
+                UnknownHostException ex = new UnknownHostException(failure.getMessage());
+                ex.initCause(failure);
+                throw ex;
+            }
+            return addresses.clone();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * HotCache keeps pre-serialized responses of small popular files in off-heap
+ * memory. Header and body are served with one gathering write without 
+ * opening the cache file.
+ * <p>
+ * Files are admitted on second full response. Entries are evicted in least
+ * recently used order when byte budget is exceeded.
+ * <p>
+ * HotCache is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class HotCache extends JavaLogging
+{
+    private static final int Candidates = 4096;
+    private final long maxSize;
+    private final int maxEntrySize;
+    private final LinkedHashMap<Path,Hot> map = new LinkedHashMap<>(16, 0.75F, true);
+    private final LinkedHashMap<Path,Path> candidates = new LinkedHashMap<Path,Path>(16, 0.75F, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, Path> eldest)
+        {
+            return size() > Candidates;
+        }
+    };
+    private final ReentrantLock lock = new ReentrantLock();
+    private long size;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final LongAdder admissions = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    /**
+     * Creates HotCache
+     * @param maxSize Byte budget. 0 disables.
+     * @param maxEntrySize Max size of header and body.
+     */
+    public HotCache(long maxSize, int maxEntrySize)
+    {
+        super(HotCache.class);
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxEntrySize;
+    }
+    /**
+     * Returns hot entry for path or null.
+     * @param path
+     * @param requestTarget
+     * @return 
+     */
+    public Hot get(Path path, String requestTarget)
+    {
+        if (maxSize == 0)
+        {
+            return null;
+        }
+        Hot hot;
+        lock.lock();
+        try
+        {
+            hot = map.get(path);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        if (hot != null && hot.requestTarget.equals(requestTarget))
+        {
+            return hot;
+        }
+        return null;
+    }
+    /**
+     * Offers full response for admission. Content is copied if this is the
+     * second offer for path and it fits in budget.
+     * @param path
+     * @param requestTarget
+     * @param header Serialized header from 0 to limit.
+     * @param fileChannel
+     * @param position Position of content in channel.
+     * @param fileSize Size of content.
+     * @throws IOException 
+     */
+    public void offer(Path path, String requestTarget, ByteBuffer header, FileChannel fileChannel, long position, long fileSize) throws IOException
+    {
+        if (maxSize == 0)
+        {
+            return;
+        }
+        int headerSize = header.limit();
+        if (headerSize + fileSize > maxEntrySize)
+        {
+            return;
+        }
+        lock.lock();
+        try
+        {
+            if (map.containsKey(path))
+            {
+                return;
+            }
+            if (candidates.remove(path) == null)
+            {
+                candidates.put(path, path);
+                return;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        int bodySize = (int) fileSize;
+        ByteBuffer buf = ByteBuffer.allocateDirect(headerSize + bodySize);
+        ByteBuffer hdr = header.duplicate();
+        hdr.position(0);
+        buf.put(hdr);
+        long pos = position;
+        while (buf.hasRemaining())
+        {
+            int rc = fileChannel.read(buf, pos);
+            if (rc == -1)
+            {
+                return;
+            }
+            pos += rc;
+        }
+        buf.flip();
+        Hot hot = new Hot(path, requestTarget, buf, headerSize);
+        lock.lock();
+        try
+        {
+            Hot old = map.put(path, hot);
+            if (old != null)
+            {
+                size -= old.size();
+            }
+            size += hot.size();
+            admissions.increment();
+            Iterator<Hot> iterator = map.values().iterator();
+            while (size > maxSize && iterator.hasNext())
+            {
+                Hot h = iterator.next();
+                iterator.remove();
+                size -= h.size();
+                evictions.increment();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        fine("admitted %s %d bytes", path, hot.size());
+    }
+    /**
+     * Removes path. Called when file is deleted.
+     * @param path 
+     */
+    public void remove(Path path)
+    {
+        lock.lock();
+        try
+        {
+            Hot hot = map.remove(path);
+            if (hot != null)
+            {
+                size -= hot.size();
+            }
+            candidates.remove(path);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getSize()
+    {
+        lock.lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getCount()
+    {
+        lock.lock();
+        try
+        {
+            return map.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public long getHits()
+    {
+        return hits.sum();
+    }
+
+    public long getBytes()
+    {
+        return bytes.sum();
+    }
+
+    public long getAdmissions()
+    {
+        return admissions.sum();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.sum();
+    }
+    
+    public class Hot
+    {
+        private final Path path;
+        private final String requestTarget;
+        private final ByteBuffer header;
+        private final ByteBuffer body;
+        private volatile long touched;
+
+        private Hot(Path path, String requestTarget, ByteBuffer buf, int headerSize)
+        {
+            this.path = path;
+            this.requestTarget = requestTarget;
+            buf.limit(headerSize);
+            this.header = buf.slice();
+            buf.limit(buf.capacity());
+            buf.position(headerSize);
+            this.body = buf.slice();
+        }
+        
+        private int size()
+        {
+            return header.capacity() + body.capacity();
+        }
+
+        public Path getPath()
+        {
+            return path;
+        }
+        /**
+         * Returns true if access time of file should be updated. Returns 
+         * true when interval has passed since previous true.
+         * @param now
+         * @param interval
+         * @return 
+         */
+        public boolean touch(long now, long interval)
+        {
+            if (now - touched >= interval)
+            {
+                touched = now;
+                return true;
+            }
+            return false;
+        }
+        /**
+         * Writes header and body to channel.
+         * @param channel
+         * @throws IOException 
+         */
+        public void send(WritableByteChannel channel) throws IOException
+        {
+            ByteBuffer[] bufs = new ByteBuffer[] {header.duplicate(), body.duplicate()};
+            if (channel instanceof GatheringByteChannel)
+            {
+                GatheringByteChannel gbc = (GatheringByteChannel) channel;
+                while (bufs[0].hasRemaining() || bufs[1].hasRemaining())
+                {
+                    gbc.write(bufs);
+                }
+            }
+            else
+            {
+                for (ByteBuffer b : bufs)
+                {
+                    while (b.hasRemaining())
+                    {
+                        channel.write(b);
+                    }
+                }
+            }
+            hits.increment();
+            bytes.add(size());
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * InFlightRegistry keeps origin fetches by cache key and variant, so that 
+ * concurrent requests for the same content attach to one fetch. Lookup 
+ * and get-or-create are O(1). Fetches which are not alive anymore are
+ * skipped and replaced.
+ * <p>
+ * InFlightRegistry is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ * @param <V>
+ */
+public class InFlightRegistry<V>
+{
+    private final ConcurrentHashMap<Key,V> map = new ConcurrentHashMap<>();
+    private final Predicate<? super V> alive;
+    private final LongAdder fetches = new LongAdder();
+    private final LongAdder attaches = new LongAdder();
+    /**
+     * Creates InFlightRegistry where all fetches are alive until removed.
+     */
+    public InFlightRegistry()
+    {
+        this((v)->true);
+    }
+    /**
+     * Creates InFlightRegistry
+     * @param alive Returns false for fetch which has given up.
+     */
+    public InFlightRegistry(Predicate<? super V> alive)
+    {
+        this.alive = alive;
+    }
+    /**
+     * Returns in-flight fetch or null. Found fetch is counted as attach.
+     * @param digest Not referenced after call.
+     * @param variant
+     * @return 
+     */
+    public V get(byte[] digest, Object variant)
+    {
+        Key key = new Key(digest, variant);
+        V value = map.get(key);
+        if (value != null)
+        {
+            if (!alive.test(value))
+            {
+                map.remove(key, value);
+                return null;
+            }
+            attaches.increment();
+        }
+        return value;
+    }
+    /**
+     * Returns in-flight fetch or registers new one created by factory.
+     * @param digest Not referenced after call.
+     * @param variant
+     * @param factory
+     * @return 
+     */
+    public V getOrCreate(byte[] digest, Object variant, Supplier<V> factory)
+    {
+        V value = get(digest, variant);
+        if (value != null)
+        {
+            return value;
+        }
+        boolean[] created = new boolean[1];
+        value = map.compute(new Key(digest.clone(), variant), (k, v)->
+        {
+            if (v != null && alive.test(v))
+            {
+                return v;
+            }
+            created[0] = true;
+            return factory.get();
+        });
+        if (created[0])
+        {
+            fetches.increment();
+        }
+        else
+        {
+            attaches.increment();
+        }
+        return value;
+    }
+    /**
+     * Counts request attached to in-flight fetch found by other means.
+     */
+    public void attached()
+    {
+        attaches.increment();
+    }
+    /**
+     * Removes fetch if it is still registered.
+     * @param digest
+     * @param variant
+     * @param value 
+     */
+    public void remove(byte[] digest, Object variant, V value)
+    {
+        map.remove(new Key(digest, variant), value);
+    }
+    /**
+     * Removes fetches matching predicate.
+     * @param predicate 
+     */
+    public void removeIf(Predicate<? super V> predicate)
+    {
+        map.values().removeIf(predicate);
+    }
+    /**
+     * Returns number of in-flight fetches.
+     * @return 
+     */
+    public int size()
+    {
+        return map.size();
+    }
+
+    public long getFetches()
+    {
+        return fetches.sum();
+    }
+
+    public long getAttaches()
+    {
+        return attaches.sum();
+    }
+    /**
+     * Returns attached requests per started fetch.
+     * @return 
+     */
+    public double getCollapseRatio()
+    {
+        long f = fetches.sum();
+        return f > 0 ? (double)attaches.sum()/f : 0;
+    }
+    
+    private static class Key
+    {
+        private final byte[] digest;
+        private final Object variant;
+        private final int hash;
+
+        public Key(byte[] digest, Object variant)
+        {
+            this.digest = digest;
+            this.variant = variant;
+            this.hash = 31*((digest[8]&0xff)<<24 | (digest[9]&0xff)<<16 | (digest[10]&0xff)<<8 | (digest[11]&0xff)) + Objects.hashCode(variant);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+            {
+                return true;
+            }
+            if (!(obj instanceof Key))
+            {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash && Arrays.equals(digest, other.digest) && Objects.equals(variant, other.variant);
+        }
+        
+    }
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import org.vesalainen.lang.Primitives;
+import org.vesalainen.web.cache.CacheEntry.State;
+import org.vesalainen.web.parser.HttpHeaderParser;
+
+/**
+ * IndexEntry holds the information needed to select a cached file without 
+ * touching the file system.
+ * <p>
+ * CacheEntry is kept only while it is fetching content. Otherwise it is
+ * re-created when content is actually served.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class IndexEntry implements Comparable<IndexEntry>
+{
+    private final byte[] key;
+    private final Path path;
+    private volatile long size;
+    private volatile State state;
+    private volatile long deadline;
+    private volatile VaryMap varyMap;
+    private volatile CacheEntry entry;
+    private CacheIndex index;
+    private boolean obsolete;
+
+    public IndexEntry(byte[] key, Path path, long size, State state, long deadline, VaryMap varyMap)
+    {
+        this.key = key;
+        this.path = path;
+        this.size = size;
+        this.state = state;
+        this.deadline = deadline;
+        this.varyMap = varyMap;
+    }
+
+    public IndexEntry(byte[] key, CacheEntry entry)
+    {
+        this(key, entry.getPath(), 0, entry.getState(), 0, VaryMap.Empty);
+        this.entry = entry;
+        entry.setIndexEntry(this);
+    }
+    /**
+     * Marks entry obsolete. Called while holding index lock.
+     * @return True if entry was not marked before.
+     */
+    boolean markObsolete()
+    {
+        boolean marked = obsolete;
+        obsolete = true;
+        return !marked;
+    }
+    /**
+     * Returns running entry or creates new entry for serving the file.
+     * @param request
+     * @return 
+     */
+    public CacheEntry open(HttpHeaderParser request)
+    {
+        CacheEntry ce = entry;
+        if (ce != null)
+        {
+            return ce;
+        }
+        ce = new CacheEntry(false, path, request);
+        ce.setIndexEntry(this);
+        if (!State.Full.equals(ce.getState()))
+        {
+            entry = ce;
+        }
+        return ce;
+    }
+    /**
+     * Updates index information from entry. Entry is released when it is 
+     * not fetching anymore.
+     * @param ce 
+     */
+    void update(CacheEntry ce)
+    {
+        try
+        {
+            State st = ce.getState();
+            size = ce.getSize();
+            varyMap = ce.getVaryMap().detach();
+            switch (st)
+            {
+                case Partial:
+                case Full:
+                    deadline = Cache.getClock().millis() + 1000 * ce.refreshness();
+                    break;
+            }
+            state = st;
+            switch (st)
+            {
+                case New:
+                case Partial:
+                    break;
+                default:
+                    if (!ce.isRunning() && entry == ce)
+                    {
+                        entry = null;
+                        if (index != null)
+                        {
+                            index.stored(this);
+                        }
+                        if (State.Full.equals(st))
+                        {
+                            Cache.pack(this);
+                        }
+                    }
+                    break;
+            }
+        }
+        catch (IOException | IllegalArgumentException ex)
+        {
+            Cache.log().log(Level.FINE, ex, "index update %s: %s", path, ex.getMessage());
+        }
+    }
+    void setIndex(CacheIndex index)
+    {
+        this.index = index;
+    }
+    /**
+     * Clears reference to entry which has released its buffers.
+     * @param ce 
+     */
+    void clear(CacheEntry ce)
+    {
+        if (entry == ce)
+        {
+            entry = null;
+        }
+    }
+    /**
+     * Clears reference to entry which is not fetching and not used and
+     * releases it.
+     */
+    void gc()
+    {
+        CacheEntry ce = entry;
+        if (ce != null && ce.isIdle())
+        {
+            entry = null;
+            ce.releaseAll();
+        }
+    }
+    
+    public boolean isStale(long now)
+    {
+        return State.Full.equals(state) && now > deadline;
+    }
+    
+    public long refreshness(long now)
+    {
+        if (State.New.equals(state))
+        {
+            return 0;
+        }
+        return (deadline - now) / 1000;
+    }
+    
+    public byte[] getKey()
+    {
+        return key;
+    }
+
+    public Path getPath()
+    {
+        return path;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public State getState()
+    {
+        return state;
+    }
+
+    public long getDeadline()
+    {
+        return deadline;
+    }
+
+    public VaryMap getVaryMap()
+    {
+        return varyMap;
+    }
+
+    public CacheEntry getEntry()
+    {
+        return entry;
+    }
+    /**
+     * Sort in refresh order. Most refresh first.
+     * @param o
+     * @return 
+     */
+    @Override
+    public int compareTo(IndexEntry o)
+    {
+        if (state.equals(o.state))
+        {
+            long now = Cache.getClock().millis();
+            return Primitives.signum(-refreshness(now) + o.refreshness(now));
+        }
+        else
+        {
+            return -state.ordinal() + o.state.ordinal();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return "IndexEntry{" + path + " " + state + '}';
+    }
+
+}
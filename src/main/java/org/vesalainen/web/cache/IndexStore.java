@@ -0,0 +1,476 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import org.vesalainen.util.CharSequences;
+import org.vesalainen.util.logging.JavaLogging;
+import static org.vesalainen.web.cache.CacheConstants.OP;
+import org.vesalainen.web.cache.CacheEntry.State;
+
+/**
+ * IndexStore persists CacheIndex as a binary snapshot and an append-only
+ * journal of stores and deletes written between snapshots.
+ * <p>
+ * Snapshot: magic, version, entry records, 0, count, CRC32 of all previous
+ * bytes.
+ * <p>
+ * Journal: length, record, CRC32 of record. Record is operation byte
+ * followed by entry record for store or path for delete. Journal is read
+ * until the first incomplete or corrupted record.
+ * <p>
+ * When snapshot is written the journal is first rotated. Rotated journal
+ * is deleted after snapshot is in place. Replaying is idempotent.
+ * <p>
+ * Journal records are queued and written by flush, so that index updates 
+ * don't write while holding index locks.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class IndexStore extends JavaLogging
+{
+    private static final int Magic = 0x57434958;    // WCIX
+    private static final int Version = 1;
+    private static final byte Entry = 1;
+    private static final byte Delete = 2;
+    private static final byte End = 0;
+    private final Path dir;
+    private final Path snapshot;
+    private final Path journal;
+    private final Path rotated;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock snapshotLock = new ReentrantLock();
+    private final Queue<byte[]> pending = new ConcurrentLinkedQueue<>();
+    private DataOutputStream journalOut;
+    /**
+     * Creates IndexStore
+     * @param dir Cache directory. Paths are stored relative to it.
+     * @param snapshot Snapshot file. Journal files are in same directory.
+     */
+    public IndexStore(Path dir, Path snapshot)
+    {
+        super(IndexStore.class);
+        this.dir = dir;
+        this.snapshot = snapshot;
+        this.journal = snapshot.resolveSibling(snapshot.getFileName()+".jnl");
+        this.rotated = snapshot.resolveSibling(snapshot.getFileName()+".jnl.old");
+    }
+    /**
+     * Reads snapshot and replays journals.
+     * @return Entries or null if snapshot is missing or corrupted.
+     */
+    public Collection<IndexEntry> load()
+    {
+        if (!Files.exists(snapshot))
+        {
+            config("no index snapshot %s", snapshot);
+            return null;
+        }
+        Map<Path,IndexEntry> map = new LinkedHashMap<>();
+        try
+        {
+            readSnapshot(map);
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            warning("index snapshot %s corrupted: %s", snapshot, ex.getMessage());
+            return null;
+        }
+        replay(rotated, map);
+        replay(journal, map);
+        return map.values();
+    }
+    /**
+     * Opens journal for appending.
+     * @throws IOException
+     */
+    public void open() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            journalOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journal, StandardOpenOption.CREATE, StandardOpenOption.APPEND)));
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if (journalOut != null)
+            {
+                flush();
+                journalOut.close();
+                journalOut = null;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    /**
+     * Writes queued records to journal.
+     */
+    public void flush()
+    {
+        lock.lock();
+        try
+        {
+            if (journalOut != null && !pending.isEmpty())
+            {
+                byte[] record = pending.poll();
+                while (record != null)
+                {
+                    write(record);
+                    record = pending.poll();
+                }
+                journalOut.flush();
+            }
+        }
+        catch (IOException ex)
+        {
+            warning("journal %s: %s", journal, ex.getMessage());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    /**
+     * Queues stored entry to journal.
+     * @param entry
+     */
+    public void stored(IndexEntry entry)
+    {
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(Entry);
+            writeEntry(dos, entry);
+            pending.add(baos.toByteArray());
+        }
+        catch (IOException ex)
+        {
+            warning("journal %s: %s", entry, ex.getMessage());
+        }
+    }
+    /**
+     * Queues deleted path to journal.
+     * @param path
+     */
+    public void deleted(Path path)
+    {
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeByte(Delete);
+            dos.writeUTF(dir.relativize(path).toString());
+            pending.add(baos.toByteArray());
+        }
+        catch (IOException ex)
+        {
+            warning("journal %s: %s", path, ex.getMessage());
+        }
+    }
+    /**
+     * Writes snapshot of index and truncates journal.
+     * @param index
+     * @throws IOException
+     */
+    public void snapshot(CacheIndex index) throws IOException
+    {
+        snapshotLock.lock();
+        try
+        {
+            long start = System.currentTimeMillis();
+            rotate();
+            Path tmp = snapshot.resolveSibling(snapshot.getFileName()+".tmp");
+            int count = 0;
+            try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(tmp)))
+            {
+                CheckedOutputStream cos = new CheckedOutputStream(os, new CRC32());
+                DataOutputStream dos = new DataOutputStream(cos);
+                dos.writeInt(Magic);
+                dos.writeInt(Version);
+                int[] cnt = new int[1];
+                IOException[] exc = new IOException[1];
+                index.forEach((IndexEntry ie)->
+                {
+                    if (exc[0] == null && isStored(ie))
+                    {
+                        try
+                        {
+                            dos.writeByte(Entry);
+                            writeEntry(dos, ie);
+                            cnt[0]++;
+                        }
+                        catch (IOException ex)
+                        {
+                            exc[0] = ex;
+                        }
+                    }
+                });
+                if (exc[0] != null)
+                {
+                    throw exc[0];
+                }
+                count = cnt[0];
+                dos.writeByte(End);
+                dos.writeInt(count);
+                dos.flush();
+                new DataOutputStream(os).writeLong(cos.getChecksum().getValue());
+            }
+            Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.deleteIfExists(rotated);
+            config("wrote index snapshot %d entries in %d ms", count, System.currentTimeMillis() - start);
+        }
+        finally
+        {
+            snapshotLock.unlock();
+        }
+    }
+    /**
+     * Returns true if entry has content.
+     * @param ie
+     * @return
+     */
+    static boolean isStored(IndexEntry ie)
+    {
+        switch (ie.getState())
+        {
+            case Full:
+            case Partial:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void rotate() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            boolean opened = journalOut != null;
+            close();
+            if (Files.exists(journal))
+            {
+                if (Files.exists(rotated))
+                {
+                    // previous snapshot failed.
+                    try (OutputStream os = Files.newOutputStream(rotated, StandardOpenOption.APPEND))
+                    {
+                        Files.copy(journal, os);
+                    }
+                    Files.delete(journal);
+                }
+                else
+                {
+                    Files.move(journal, rotated, StandardCopyOption.ATOMIC_MOVE);
+                }
+            }
+            if (opened)
+            {
+                open();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void write(byte[] record) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        journalOut.writeInt(record.length);
+        journalOut.write(record);
+        journalOut.writeInt((int) crc.getValue());
+    }
+
+    private void readSnapshot(Map<Path,IndexEntry> map) throws IOException
+    {
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(snapshot), 65536))
+        {
+            CheckedInputStream cis = new CheckedInputStream(is, new CRC32());
+            DataInputStream dis = new DataInputStream(cis);
+            if (dis.readInt() != Magic)
+            {
+                throw new IOException("not index snapshot");
+            }
+            int version = dis.readInt();
+            if (version != Version)
+            {
+                throw new IOException("version "+version+" not supported");
+            }
+            int count = 0;
+            while (dis.readByte() == Entry)
+            {
+                IndexEntry ie = readEntry(dis);
+                map.put(ie.getPath(), ie);
+                count++;
+            }
+            if (dis.readInt() != count)
+            {
+                throw new IOException("count mismatch");
+            }
+            long crc = cis.getChecksum().getValue();
+            if (new DataInputStream(is).readLong() != crc)
+            {
+                throw new IOException("checksum mismatch");
+            }
+            config("read %d entries from index snapshot", count);
+        }
+    }
+    private void replay(Path file, Map<Path,IndexEntry> map)
+    {
+        if (!Files.exists(file))
+        {
+            return;
+        }
+        int count = 0;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 65536)))
+        {
+            CRC32 crc = new CRC32();
+            while (true)
+            {
+                int length = dis.readInt();
+                if (length <= 0 || length > 65536)
+                {
+                    throw new IOException("illegal record length "+length);
+                }
+                byte[] record = new byte[length];
+                dis.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (dis.readInt() != (int) crc.getValue())
+                {
+                    throw new IOException("checksum mismatch");
+                }
+                DataInputStream rdis = new DataInputStream(new ByteArrayInputStream(record));
+                switch (rdis.readByte())
+                {
+                    case Entry:
+                        IndexEntry ie = readEntry(rdis);
+                        map.put(ie.getPath(), ie);
+                        break;
+                    case Delete:
+                        map.remove(dir.resolve(rdis.readUTF()));
+                        break;
+                    default:
+                        throw new IOException("unknown record");
+                }
+                count++;
+            }
+        }
+        catch (EOFException ex)
+        {
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            warning("journal %s truncated after %d records: %s", file, count, ex.getMessage());
+        }
+        config("replayed %d records from %s", count, file);
+    }
+
+    private void writeEntry(DataOutput out, IndexEntry ie) throws IOException
+    {
+        out.write(ie.getKey());
+        out.writeUTF(dir.relativize(ie.getPath()).toString());
+        out.writeLong(ie.getSize());
+        out.writeByte(ie.getState().ordinal());
+        out.writeLong(ie.getDeadline());
+        VaryMap varyMap = ie.getVaryMap();
+        out.writeShort(varyMap.size());
+        IOException[] exc = new IOException[1];
+        varyMap.forEach((k,v)->
+        {
+            try
+            {
+                out.writeUTF(k.toString());
+                out.writeBoolean(v != null);
+                if (v != null)
+                {
+                    out.writeUTF(v.toString());
+                }
+            }
+            catch (IOException ex)
+            {
+                exc[0] = ex;
+            }
+        });
+        if (exc[0] != null)
+        {
+            throw exc[0];
+        }
+    }
+
+    private IndexEntry readEntry(DataInput in) throws IOException
+    {
+        byte[] key = new byte[DigestTable.DigestLength];
+        in.readFully(key);
+        Path path = dir.resolve(in.readUTF());
+        long size = in.readLong();
+        State state = State.values()[in.readByte()];
+        long deadline = in.readLong();
+        int varyCount = in.readShort();
+        VaryMap varyMap = VaryMap.Empty;
+        if (varyCount > 0)
+        {
+            varyMap = new VaryMap();
+            for (int ii=0;ii<varyCount;ii++)
+            {
+                CharSequence hdr = CharSequences.getConstant(in.readUTF(), OP);
+                String value = in.readBoolean() ? in.readUTF() : null;
+                varyMap.put(hdr, value);
+            }
+        }
+        return new IndexEntry(key, path, size, state, deadline, varyMap);
+    }
+}
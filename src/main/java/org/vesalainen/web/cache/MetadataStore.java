@@ -0,0 +1,709 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import org.vesalainen.nio.file.attribute.ExternalFileAttributes;
+import org.vesalainen.nio.file.attribute.UserDefinedAttributes;
+import org.vesalainen.util.logging.JavaLogging;
+import static org.vesalainen.web.cache.CacheConstants.*;
+
+/**
+ * MetadataStore keeps cache file attributes in a memory-mapped file of
+ * fixed size slots. Slot number is the entry id. Reading and updating
+ * attributes is a memory access.
+ * <p>
+ * Slot layout: generation, data length and attributes as name length, name,
+ * value length, value.
+ * <p>
+ * Each segment starts with a directory of path length and path relative to
+ * cache directory for its slots. Zero length means unused slot. Open reads
+ * only directories. Directory entry of slot 0 is file header.
+ * <p>
+ * Slots are large enough for the original header. File is sparse so that
+ * unused parts of slots don't use disk.
+ * <p>
+ * Record of deleted entry is invalidated by generation, so that stale
+ * references don't overwrite reused slots.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class MetadataStore extends JavaLogging
+{
+    private static final int Magic = 0x57434D44;    // WCMD
+    private static final int Version = 2;
+    static final int SlotSize = BufferSize+4096;
+    static final int EntrySize = 128;
+    private static final int SlotsPerSegment = 1024;
+    private static final int DirectorySize = EntrySize*SlotsPerSegment;
+    private static final long SegmentSize = DirectorySize+(long)SlotSize*SlotsPerSegment;
+    private static final int GenerationOffset = 0;
+    private static final int LengthOffset = 4;
+    private static final int DataOffset = 8;
+    private final Path file;
+    private final Path dir;
+    private FileChannel channel;
+    private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+    private final Map<Path,Integer> pathMap = new ConcurrentHashMap<>();
+    private final BitSet used = new BitSet();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock[] locks = new ReentrantLock[64];
+    private boolean created;
+    /**
+     * Creates MetadataStore
+     * @param file Metadata file
+     * @param dir Cache directory. Paths are stored relative to it.
+     */
+    public MetadataStore(Path file, Path dir)
+    {
+        super(MetadataStore.class);
+        this.file = file;
+        this.dir = dir;
+        for (int ii=0;ii<locks.length;ii++)
+        {
+            locks[ii] = new ReentrantLock();
+        }
+    }
+    /**
+     * Opens and maps the file and reads slot directories.
+     * @throws IOException
+     */
+    public void open() throws IOException
+    {
+        created = !Files.exists(file);
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.SPARSE);
+        long size = channel.size();
+        int segCount = (int) ((size + SegmentSize - 1) / SegmentSize);
+        for (int ii=0;ii<Math.max(1, segCount);ii++)
+        {
+            map();
+        }
+        ByteBuffer header = segments.get(0);
+        if (created)
+        {
+            header.putInt(0, Magic);
+            header.putInt(4, Version);
+            header.putInt(8, SlotSize);
+        }
+        else
+        {
+            if (header.getInt(0) != Magic || header.getInt(4) != Version || header.getInt(8) != SlotSize)
+            {
+                throw new IOException(file+" is not compatible metadata file");
+            }
+        }
+        used.set(0);
+        int slots = segments.size()*SlotsPerSegment;
+        byte[] buf = new byte[EntrySize];
+        for (int id=1;id<slots;id++)
+        {
+            ByteBuffer seg = segment(id);
+            int entry = entry(id);
+            int len = seg.getShort(entry) & 0xffff;
+            if (len != 0)
+            {
+                for (int ii=0;ii<len;ii++)
+                {
+                    buf[ii] = seg.get(entry+2+ii);
+                }
+                pathMap.put(dir.resolve(new String(buf, 0, len, StandardCharsets.UTF_8)), id);
+                used.set(id);
+            }
+        }
+        config("opened %s %d records created=%b", file, pathMap.size(), created);
+    }
+    /**
+     * Returns true if metadata file didn't exist before open.
+     * @return
+     */
+    public boolean isCreated()
+    {
+        return created;
+    }
+
+    public int size()
+    {
+        return pathMap.size();
+    }
+    /**
+     * Returns attributes for path or null if not stored.
+     * @param path
+     * @return
+     */
+    public UserDefinedAttributes get(Path path)
+    {
+        Integer id = pathMap.get(path);
+        if (id != null)
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                return new Record(id, segment(id).getInt(base(id)+GenerationOffset));
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+        return null;
+    }
+    /**
+     * Creates empty attributes for path.
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public UserDefinedAttributes create(Path path) throws IOException
+    {
+        byte[] p = dir.relativize(path).toString().getBytes(StandardCharsets.UTF_8);
+        if (p.length > EntrySize-2)
+        {
+            throw new IOException(path+" too long");
+        }
+        int id;
+        lock.lock();
+        try
+        {
+            id = used.nextClearBit(1);
+            while (id >= segments.size()*SlotsPerSegment)
+            {
+                map();
+            }
+            used.set(id);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        ReentrantLock l = lock(id);
+        l.lock();
+        try
+        {
+            ByteBuffer seg = segment(id);
+            int base = base(id);
+            int generation = seg.getInt(base+GenerationOffset) + 1;
+            seg.putInt(base+GenerationOffset, generation);
+            seg.putInt(base+LengthOffset, 0);
+            int entry = entry(id);
+            for (int ii=0;ii<p.length;ii++)
+            {
+                seg.put(entry+2+ii, p[ii]);
+            }
+            seg.putShort(entry, (short) p.length);
+            Integer old = pathMap.put(path, id);
+            if (old != null)
+            {
+                free(old);
+            }
+            return new Record(id, generation);
+        }
+        finally
+        {
+            l.unlock();
+        }
+    }
+    /**
+     * Copies legacy attributes to new record and deletes sidecar file.
+     * @param path
+     * @param legacy
+     * @return
+     * @throws IOException
+     */
+    public UserDefinedAttributes migrate(Path path, UserDefinedAttributes legacy) throws IOException
+    {
+        UserDefinedAttributes record = create(path);
+        try
+        {
+            for (String name : legacy.list())
+            {
+                switch (name)
+                {
+                    case XOrigMillis:
+                    case LastNotModified:
+                        record.setLong(name, legacy.getLong(name));
+                        break;
+                    case NotModifiedCount:
+                        record.setInt(name, legacy.getInt(name));
+                        break;
+                    default:
+                        record.set(name, legacy.get(name));
+                        break;
+                }
+            }
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            remove(path);
+            throw ex;
+        }
+        Files.deleteIfExists(ExternalFileAttributes.getAttributePath(path));
+        finest("migrated %s", path);
+        return record;
+    }
+    /**
+     * Frees record of path
+     * @param path
+     */
+    public void remove(Path path)
+    {
+        Integer id = pathMap.remove(path);
+        if (id != null)
+        {
+            free(id);
+        }
+    }
+    /**
+     * Forces changes to storage
+     */
+    public void force()
+    {
+        lock.lock();
+        try
+        {
+            segments.forEach(MappedByteBuffer::force);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void free(int id)
+    {
+        ReentrantLock l = lock(id);
+        l.lock();
+        try
+        {
+            ByteBuffer seg = segment(id);
+            int base = base(id);
+            seg.putShort(entry(id), (short) 0);
+            seg.putInt(base+GenerationOffset, seg.getInt(base+GenerationOffset) + 1);
+        }
+        finally
+        {
+            l.unlock();
+        }
+        lock.lock();
+        try
+        {
+            used.clear(id);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void map() throws IOException
+    {
+        long position = segments.size()*SegmentSize;
+        segments.add(channel.map(FileChannel.MapMode.READ_WRITE, position, SegmentSize));
+    }
+
+    private ByteBuffer segment(int id)
+    {
+        return segments.get(id / SlotsPerSegment);
+    }
+
+    private static int base(int id)
+    {
+        return DirectorySize + (id % SlotsPerSegment) * SlotSize;
+    }
+
+    private static int entry(int id)
+    {
+        return (id % SlotsPerSegment) * EntrySize;
+    }
+
+    private ReentrantLock lock(int id)
+    {
+        return locks[id % locks.length];
+    }
+
+    private class Record implements UserDefinedAttributes
+    {
+        private final int id;
+        private final int generation;
+        private final ByteBuffer seg;
+        private final int base;
+        private final int data;
+
+        public Record(int id, int generation)
+        {
+            this.id = id;
+            this.generation = generation;
+            this.seg = segment(id);
+            this.base = base(id);
+            this.data = base+DataOffset;
+        }
+
+        @Override
+        public boolean has(String name) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                return valid() && find(name) != -1;
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public int size(String name) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                return seg.getInt(value(name)-4);
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public int read(String name, ByteBuffer dst) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                int off = value(name);
+                int len = seg.getInt(off-4);
+                for (int ii=0;ii<len;ii++)
+                {
+                    dst.put(seg.get(off+ii));
+                }
+                return len;
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public int write(String name, ByteBuffer src) throws IOException
+        {
+            int len = src.remaining();
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                int off = put(name, len);
+                if (off != -1)
+                {
+                    for (int ii=0;ii<len;ii++)
+                    {
+                        seg.put(off+ii, src.get());
+                    }
+                }
+                return len;
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public List<String> list() throws IOException
+        {
+            List<String> list = new ArrayList<>();
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                if (valid())
+                {
+                    int off = data;
+                    int end = data + seg.getInt(base+LengthOffset);
+                    while (off < end)
+                    {
+                        int nameLen = seg.getShort(off) & 0xffff;
+                        byte[] buf = new byte[nameLen];
+                        for (int ii=0;ii<nameLen;ii++)
+                        {
+                            buf[ii] = seg.get(off+2+ii);
+                        }
+                        list.add(new String(buf, StandardCharsets.US_ASCII));
+                        off += 2 + nameLen + 4 + seg.getInt(off+2+nameLen);
+                    }
+                }
+                return list;
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public byte[] get(String name) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                if (!valid() || find(name) == -1)
+                {
+                    return null;
+                }
+                int off = value(name);
+                byte[] buf = new byte[seg.getInt(off-4)];
+                for (int ii=0;ii<buf.length;ii++)
+                {
+                    buf[ii] = seg.get(off+ii);
+                }
+                return buf;
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public void set(String name, byte[] value) throws IOException
+        {
+            write(name, ByteBuffer.wrap(value));
+        }
+
+        @Override
+        public int getInt(String name) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                return seg.getInt(value(name));
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public void setInt(String name, int value) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                int off = put(name, 4);
+                if (off != -1)
+                {
+                    seg.putInt(off, value);
+                }
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public long getLong(String name) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                return seg.getLong(value(name));
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public void setLong(String name, long value) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                int off = put(name, 8);
+                if (off != -1)
+                {
+                    seg.putLong(off, value);
+                }
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+
+        @Override
+        public void delete(String name) throws IOException
+        {
+            ReentrantLock l = lock(id);
+            l.lock();
+            try
+            {
+                if (valid())
+                {
+                    remove(name);
+                }
+            }
+            finally
+            {
+                l.unlock();
+            }
+        }
+        /**
+         * Returns true if slot is still owned by this record.
+         * @return
+         */
+        private boolean valid()
+        {
+            return seg.getInt(base+GenerationOffset) == generation;
+        }
+        /**
+         * Returns offset of attribute entry or -1
+         * @param name
+         * @return
+         */
+        private int find(String name)
+        {
+            int nameLen = name.length();
+            int off = data;
+            int end = data + seg.getInt(base+LengthOffset);
+            while (off < end)
+            {
+                int len = seg.getShort(off) & 0xffff;
+                if (len == nameLen && equals(off+2, name))
+                {
+                    return off;
+                }
+                off += 2 + len + 4 + seg.getInt(off+2+len);
+            }
+            return -1;
+        }
+        private boolean equals(int off, String name)
+        {
+            int len = name.length();
+            for (int ii=0;ii<len;ii++)
+            {
+                if (seg.get(off+ii) != (byte)name.charAt(ii))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+        /**
+         * Returns offset of value.
+         * @param name
+         * @return
+         * @throws IOException If not found
+         */
+        private int value(String name) throws IOException
+        {
+            int off = valid() ? find(name) : -1;
+            if (off == -1)
+            {
+                throw new IOException(name+" not found");
+            }
+            return off + 2 + name.length() + 4;
+        }
+        /**
+         * Reserves value of length. Returns offset of value or -1 if record
+         * is not valid anymore.
+         * @param name
+         * @param length
+         * @return
+         * @throws IOException If slot is full
+         */
+        private int put(String name, int length) throws IOException
+        {
+            if (!valid())
+            {
+                return -1;
+            }
+            int off = find(name);
+            if (off != -1)
+            {
+                if (seg.getInt(off+2+name.length()) == length)
+                {
+                    return off + 2 + name.length() + 4;
+                }
+                remove(name);
+            }
+            int used = seg.getInt(base+LengthOffset);
+            int end = data + used;
+            int need = 2 + name.length() + 4 + length;
+            if (end + need > base + SlotSize)
+            {
+                throw new IOException("metadata of "+name+" doesn't fit");
+            }
+            seg.putShort(end, (short) name.length());
+            for (int ii=0;ii<name.length();ii++)
+            {
+                seg.put(end+2+ii, (byte) name.charAt(ii));
+            }
+            seg.putInt(end+2+name.length(), length);
+            seg.putInt(base+LengthOffset, used+need);
+            return end + 2 + name.length() + 4;
+        }
+        private void remove(String name)
+        {
+            int off = find(name);
+            if (off != -1)
+            {
+                int len = 2 + name.length() + 4 + seg.getInt(off+2+name.length());
+                int used = seg.getInt(base+LengthOffset);
+                int end = data + used;
+                for (int ii=off+len;ii<end;ii++)
+                {
+                    seg.put(ii-len, seg.get(ii));
+                }
+                seg.putInt(base+LengthOffset, used-len);
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Record{" + "id=" + id + '}';
+        }
+
+    }
+}
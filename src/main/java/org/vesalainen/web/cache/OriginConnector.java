@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * OriginConnector connects to one of resolved addresses. Attempts are 
+ * started in staggered order without waiting for earlier ones to finish, 
+ * and the first completed connection wins. Other attempts are closed.
+ * <p>
+ * Addresses are tried alternating address families, starting with the 
+ * family of the first address. Address which failed within failure memory 
+ * is tried last. Attempt failure starts the next attempt immediately.
+ * <p>
+ * OriginConnector is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class OriginConnector extends JavaLogging
+{
+    private final ConcurrentHashMap<InetAddress,Long> failures = new ConcurrentHashMap<>();
+    private final LongSupplier attemptDelay;
+    private final LongSupplier connectTimeout;
+    private final LongSupplier failureMemory;
+    private final LongSupplier clock;
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder fallbacks = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    /**
+     * Creates OriginConnector
+     * @param attemptDelay Millis before starting next attempt.
+     * @param connectTimeout Max millis for whole connect.
+     * @param failureMemory Millis failed address is tried last.
+     * @param clock Returns current millis.
+     */
+    public OriginConnector(LongSupplier attemptDelay, LongSupplier connectTimeout, LongSupplier failureMemory, LongSupplier clock)
+    {
+        super(OriginConnector.class);
+        this.attemptDelay = attemptDelay;
+        this.connectTimeout = connectTimeout;
+        this.failureMemory = failureMemory;
+        this.clock = clock;
+    }
+    /**
+     * Returns blocking channel connected to one of addresses.
+     * @param addresses
+     * @param port
+     * @return
+     * @throws ConnectException If all attempts failed.
+     * @throws SocketTimeoutException If no attempt succeeded in time.
+     * @throws IOException 
+     */
+    public SocketChannel connect(InetAddress[] addresses, int port) throws IOException
+    {
+        List<InetAddress> order = order(addresses);
+        List<Connector> connectors = new ArrayList<>();
+        Connector winner = null;
+        IOException last = null;
+        long start = clock.getAsLong();
+        long deadline = start + connectTimeout.getAsLong();
+        long next = start;
+        int pending = 0;
+        try (Selector selector = Selector.open())
+        {
+            while (winner == null)
+            {
+                long now = clock.getAsLong();
+                if (connectors.size() < order.size() && (now >= next || pending == 0))
+                {
+                    Connector connector = new Connector(new InetSocketAddress(order.get(connectors.size()), port));
+                    connectors.add(connector);
+                    attempts.increment();
+                    try
+                    {
+                        if (connector.start(selector))
+                        {
+                            winner = connector;
+                            break;
+                        }
+                        pending++;
+                    }
+                    catch (IOException ex)
+                    {
+                        last = ex;
+                        failed(connector);
+                    }
+                    next = now + attemptDelay.getAsLong();
+                    continue;
+                }
+                if (pending == 0)
+                {
+                    throw last != null ? last : new ConnectException("no address");
+                }
+                if (now >= deadline)
+                {
+                    timeouts.increment();
+                    throw new SocketTimeoutException("connect to "+order+" timed out");
+                }
+                long wait = connectors.size() < order.size() ? Math.min(next, deadline) : deadline;
+                selector.select(Math.max(1, wait - now));
+                for (SelectionKey key : selector.selectedKeys())
+                {
+                    Connector connector = (Connector) key.attachment();
+                    try
+                    {
+                        if (connector.channel.finishConnect())
+                        {
+                            winner = connector;
+                            break;
+                        }
+                    }
+                    catch (IOException ex)
+                    {
+                        last = ex;
+                        pending--;
+                        next = now;
+                        failed(connector);
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        }
+        finally
+        {
+            for (Connector connector : connectors)
+            {
+                connector.closeExtra(winner);
+            }
+        }
+        if (winner != connectors.get(0))
+        {
+            fallbacks.increment();
+        }
+        failures.remove(winner.remote.getAddress());
+        winner.channel.configureBlocking(true);
+        finest("connected %s", winner.channel);
+        return winner.channel;
+    }
+    /**
+     * Returns addresses in try order.
+     * @param addresses
+     * @return 
+     */
+    List<InetAddress> order(InetAddress[] addresses)
+    {
+        List<InetAddress> first = new ArrayList<>();
+        List<InetAddress> second = new ArrayList<>();
+        for (InetAddress address : addresses)
+        {
+            if ((address instanceof Inet6Address) == (addresses[0] instanceof Inet6Address))
+            {
+                first.add(address);
+            }
+            else
+            {
+                second.add(address);
+            }
+        }
+        List<InetAddress> order = new ArrayList<>();
+        for (int ii=0;ii<Math.max(first.size(), second.size());ii++)
+        {
+            if (ii < first.size())
+            {
+                order.add(first.get(ii));
+            }
+            if (ii < second.size())
+            {
+                order.add(second.get(ii));
+            }
+        }
+        List<InetAddress> failed = new ArrayList<>();
+        long now = clock.getAsLong();
+        order.removeIf((a)->
+        {
+            Long time = failures.get(a);
+            if (time != null)
+            {
+                if (now - time < failureMemory.getAsLong())
+                {
+                    failed.add(a);
+                    return true;
+                }
+                failures.remove(a, time);
+            }
+            return false;
+        });
+        order.addAll(failed);
+        return order;
+    }
+
+    private void failed(Connector connector)
+    {
+        failed.increment();
+        fine("connect to %s failed", connector.remote);
+        failures.put(connector.remote.getAddress(), clock.getAsLong());
+        connector.closeExtra(null);
+    }
+
+    public long getAttempts()
+    {
+        return attempts.sum();
+    }
+
+    public long getFailed()
+    {
+        return failed.sum();
+    }
+    /**
+     * Returns number of connections to other than first address.
+     * @return 
+     */
+    public long getFallbacks()
+    {
+        return fallbacks.sum();
+    }
+
+    public long getTimeouts()
+    {
+        return timeouts.sum();
+    }
+
+    public int getFailedAddresses()
+    {
+        return failures.size();
+    }
+    
+    private class Connector
+    {
+        private InetSocketAddress remote;
+        private SocketChannel channel;
+
+        public Connector(InetSocketAddress isa)
+        {
+            this.remote = isa;
+        }
+
+        public boolean start(Selector selector) throws IOException
+        {
+            finest("trying to open %s", remote);
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            if (channel.connect(remote))
+            {
+                return true;
+            }
+            channel.register(selector, SelectionKey.OP_CONNECT, this);
+            return false;
+        }
+        
+        public void closeExtra(Connector winner)
+        {
+            if (this != winner && channel != null && channel.isOpen())
+            {
+                try
+                {
+                    finest("close extra %s", channel);
+                    channel.close();
+                }
+                catch (IOException ex)
+                {
+                }
+            }
+        }
+    }
+}
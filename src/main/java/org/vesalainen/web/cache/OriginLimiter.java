@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * OriginLimiter limits the number of concurrent connections to each origin 
+ * host. Requests over the limit wait in arrival order.
+ * <p>
+ * OriginLimiter is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class OriginLimiter
+{
+    private final ConcurrentHashMap<String,Origin> origins = new ConcurrentHashMap<>();
+    private final ToIntFunction<String> limits;
+    /**
+     * Creates OriginLimiter
+     * @param limits Returns limit for host. Limit &lt;= 0 means unlimited.
+     */
+    public OriginLimiter(ToIntFunction<String> limits)
+    {
+        this.limits = limits;
+    }
+    /**
+     * Waits until connection to host is allowed.
+     * @param host
+     * @return Permit which must be released after connection is closed.
+     * @throws InterruptedIOException 
+     */
+    public Permit acquire(String host) throws InterruptedIOException
+    {
+        Origin origin = origins.computeIfAbsent(host.toLowerCase(), (h)->new Origin(h, limits.applyAsInt(h)));
+        origin.acquire(-1);
+        return new Permit(origin);
+    }
+    /**
+     * Waits at most timeout until connection to host is allowed.
+     * @param host
+     * @param timeout Timeout in millis
+     * @return Permit which must be released after connection is closed or
+     * null if timed out.
+     * @throws InterruptedIOException 
+     */
+    public Permit tryAcquire(String host, long timeout) throws InterruptedIOException
+    {
+        Origin origin = origins.computeIfAbsent(host.toLowerCase(), (h)->new Origin(h, limits.applyAsInt(h)));
+        if (origin.acquire(timeout))
+        {
+            return new Permit(origin);
+        }
+        return null;
+    }
+    /**
+     * Returns number of requests waiting for any origin.
+     * @return 
+     */
+    public int getQueued()
+    {
+        int count = 0;
+        for (Origin origin : origins.values())
+        {
+            count += origin.queued.get();
+        }
+        return count;
+    }
+    /**
+     * Returns statistics of hosts which have had to wait.
+     * @return 
+     */
+    public String[] getStatistics()
+    {
+        List<String> list = new ArrayList<>();
+        for (Origin origin : origins.values())
+        {
+            if (origin.waits.sum() > 0 || origin.timeouts.sum() > 0 || origin.queued.get() > 0)
+            {
+                list.add(origin.toString());
+            }
+        }
+        return list.toArray(new String[list.size()]);
+    }
+    
+    private static class Origin
+    {
+        private final String host;
+        private final int limit;
+        private final Semaphore semaphore;
+        private final AtomicInteger queued = new AtomicInteger();
+        private final LongAdder acquires = new LongAdder();
+        private final LongAdder waits = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        public Origin(String host, int limit)
+        {
+            this.host = host;
+            this.limit = limit;
+            this.semaphore = limit > 0 ? new Semaphore(limit, true) : null;
+        }
+        /**
+         * Timed tryAcquire honors fairness, untimed doesn't.
+         * @param timeout Millis or -1 for no timeout
+         * @return false if timed out
+         * @throws InterruptedIOException 
+         */
+        private boolean acquire(long timeout) throws InterruptedIOException
+        {
+            acquires.increment();
+            if (semaphore == null)
+            {
+                return true;
+            }
+            try
+            {
+                if (semaphore.tryAcquire(0, TimeUnit.NANOSECONDS))
+                {
+                    return true;
+                }
+                queued.incrementAndGet();
+                long start = System.nanoTime();
+                try
+                {
+                    if (timeout < 0)
+                    {
+                        semaphore.acquire();
+                    }
+                    else
+                    {
+                        if (!semaphore.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                        {
+                            timeouts.increment();
+                            return false;
+                        }
+                    }
+                }
+                finally
+                {
+                    queued.decrementAndGet();
+                }
+                long nanos = System.nanoTime() - start;
+                waits.increment();
+                waitNanos.add(nanos);
+                maxWaitNanos.accumulateAndGet(nanos, Math::max);
+                return true;
+            }
+            catch (InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("waiting for "+host);
+            }
+        }
+
+        private void release()
+        {
+            if (semaphore != null)
+            {
+                semaphore.release();
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            long w = waits.sum();
+            return host
+                    + " limit=" + limit
+                    + " active=" + (semaphore != null ? limit - semaphore.availablePermits() : 0)
+                    + " queued=" + queued.get()
+                    + " acquires=" + acquires.sum()
+                    + " waits=" + w
+                    + " timeouts=" + timeouts.sum()
+                    + " avgWait=" + (w > 0 ? TimeUnit.NANOSECONDS.toMillis(waitNanos.sum()/w) : 0) + "ms"
+                    + " maxWait=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get()) + "ms";
+        }
+        
+    }
+    /**
+     * Permit to connect to origin.
+     */
+    public static class Permit
+    {
+        private final Origin origin;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(Origin origin)
+        {
+            this.origin = origin;
+        }
+        /**
+         * Releases permit. Only the first call has effect.
+         */
+        public void release()
+        {
+            if (released.compareAndSet(false, true))
+            {
+                origin.release();
+            }
+        }
+    }
+}
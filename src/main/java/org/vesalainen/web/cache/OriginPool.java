@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import static java.util.logging.Level.FINER;
+import org.vesalainen.util.logging.JavaLogging;
+import org.vesalainen.web.Scheme;
+
+/**
+ * OriginPool keeps idle persistent origin connections for each scheme, host
+ * and port. The most recently used connection is reused first and 
+ * connections idle longer than max idle time are evicted.
+ * <p>
+ * Pooled connection is checked before reuse. Plain connection is probed 
+ * with non-blocking read, which must return 0. Data or end of stream means
+ * that origin has closed or broken it.
+ * <p>
+ * OriginPool is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class OriginPool extends JavaLogging
+{
+    private final ConcurrentHashMap<String,Deque<Connection>> pools = new ConcurrentHashMap<>();
+    private final Opener opener;
+    private final IntSupplier maxIdleConnections;
+    private final LongSupplier maxIdleMillis;
+    private final LongSupplier clock;
+    private final AtomicInteger idle = new AtomicInteger();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder unhealthy = new LongAdder();
+    /**
+     * Creates OriginPool
+     * @param opener Opens new connections.
+     * @param maxIdleConnections Max idle connections per origin. 0 disables
+     * pooling.
+     * @param maxIdleMillis Max idle time.
+     * @param clock Returns current millis.
+     */
+    public OriginPool(Opener opener, IntSupplier maxIdleConnections, LongSupplier maxIdleMillis, LongSupplier clock)
+    {
+        super(OriginPool.class);
+        this.opener = opener;
+        this.maxIdleConnections = maxIdleConnections;
+        this.maxIdleMillis = maxIdleMillis;
+        this.clock = clock;
+    }
+    /**
+     * Returns pooled connection or opens new one.
+     * @param scheme
+     * @param host
+     * @param port
+     * @return Connection or null if host has no address.
+     * @throws IOException 
+     */
+    public Connection get(Scheme scheme, String host, int port) throws IOException
+    {
+        String key = key(scheme, host, port);
+        Deque<Connection> pool = pools.get(key);
+        if (pool != null)
+        {
+            Connection connection;
+            while ((connection = pool.pollFirst()) != null)
+            {
+                idle.decrementAndGet();
+                if (isHealthy(connection))
+                {
+                    reused.increment();
+                    connection.reused = true;
+                    finer("reuse %s", connection);
+                    return connection;
+                }
+                unhealthy.increment();
+                close(connection);
+            }
+        }
+        ByteChannel channel = opener.open(scheme, host, port);
+        if (channel == null)
+        {
+            return null;
+        }
+        created.increment();
+        return new Connection(key, channel);
+    }
+    /**
+     * Returns connection to pool. Connection must be at response boundary.
+     * @param connection 
+     */
+    public void release(Connection connection)
+    {
+        if (!connection.channel.isOpen())
+        {
+            return;
+        }
+        Deque<Connection> pool = pools.computeIfAbsent(connection.key, (k)->new ConcurrentLinkedDeque<>());
+        if (pool.size() >= maxIdleConnections.getAsInt())
+        {
+            close(connection);
+            return;
+        }
+        connection.idleSince = clock.getAsLong();
+        pool.offerFirst(connection);
+        idle.incrementAndGet();
+        finer("pooled %s", connection);
+    }
+    /**
+     * Closes connection which is not reusable.
+     * @param connection 
+     */
+    public void close(Connection connection)
+    {
+        try
+        {
+            connection.channel.close();
+        }
+        catch (IOException ex)
+        {
+            log(FINER, ex, "close %s", ex.getMessage());
+        }
+    }
+    /**
+     * Closes connections idle longer than max idle time.
+     */
+    public void evict()
+    {
+        long limit = clock.getAsLong() - maxIdleMillis.getAsLong();
+        for (Deque<Connection> pool : pools.values())
+        {
+            Iterator<Connection> iterator = pool.descendingIterator();
+            while (iterator.hasNext())
+            {
+                Connection connection = iterator.next();
+                if (connection.idleSince < limit && pool.removeLastOccurrence(connection))
+                {
+                    idle.decrementAndGet();
+                    evicted.increment();
+                    finer("evicted %s", connection);
+                    close(connection);
+                }
+            }
+        }
+    }
+
+    public int getIdle()
+    {
+        return idle.get();
+    }
+
+    public long getCreated()
+    {
+        return created.sum();
+    }
+
+    public long getReused()
+    {
+        return reused.sum();
+    }
+
+    public long getEvicted()
+    {
+        return evicted.sum();
+    }
+
+    public long getUnhealthy()
+    {
+        return unhealthy.sum();
+    }
+    /**
+     * Returns idle connection count of origins which have idle connections.
+     * @return 
+     */
+    public String[] getStatistics()
+    {
+        List<String> list = new ArrayList<>();
+        pools.forEach((k, p)->
+        {
+            int size = p.size();
+            if (size > 0)
+            {
+                list.add(k+" idle="+size);
+            }
+        });
+        return list.toArray(new String[list.size()]);
+    }
+    
+    private boolean isHealthy(Connection connection)
+    {
+        ByteChannel channel = connection.channel;
+        if (!channel.isOpen() || clock.getAsLong() - connection.idleSince > maxIdleMillis.getAsLong())
+        {
+            return false;
+        }
+        if (channel instanceof SocketChannel)
+        {
+            SocketChannel sc = (SocketChannel) channel;
+            try
+            {
+                sc.configureBlocking(false);
+                int rc = sc.read(ByteBuffer.allocate(1));
+                sc.configureBlocking(true);
+                return rc == 0;
+            }
+            catch (IOException ex)
+            {
+                log(FINER, ex, "probe %s", ex.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private static String key(Scheme scheme, String host, int port)
+    {
+        return scheme+"://"+host.toLowerCase()+":"+port;
+    }
+    
+    @FunctionalInterface
+    public interface Opener
+    {
+        ByteChannel open(Scheme scheme, String host, int port) throws IOException;
+    }
+    /**
+     * Origin connection
+     */
+    public static class Connection
+    {
+        private final String key;
+        private final ByteChannel channel;
+        private long idleSince;
+        private boolean reused;
+
+        private Connection(String key, ByteChannel channel)
+        {
+            this.key = key;
+            this.channel = channel;
+        }
+
+        public ByteChannel getChannel()
+        {
+            return channel;
+        }
+        /**
+         * Returns true if connection came from pool. Request failing on 
+         * reused connection can be retried with new one.
+         * @return 
+         */
+        public boolean isReused()
+        {
+            return reused;
+        }
+
+        @Override
+        public String toString()
+        {
+            return key+" "+channel;
+        }
+    }
+}
@@ -52,6 +52,16 @@ public class Remover extends JavaLogging implements Runnable
             Path path = Config.getCacheDir().toPath();
             FileLastAccessStatistics stats = FileLastAccessStatistics.getStats(path, Config.getRemovalInterval(), TimeUnit.MILLISECONDS);
             long cacheSize = stats.getSum();
+            SlabStore slabStore = Cache.getSlabStore();
+            if (slabStore != null)
+            {
+                cacheSize += slabStore.getLiveBytes();
+            }
+            DedupStore dedupStore = Cache.getDedupStore();
+            if (dedupStore != null)
+            {
+                cacheSize -= dedupStore.getSavedBytes();
+            }
             double growthSpeed = stats.growthSpeed();
             fine("cache size %dM / %dM %d%% in use. Max size %d average %d count %d growth speed %f B/ms", 
                     cacheSize/Mega, 
@@ -86,6 +96,10 @@ public class Remover extends JavaLogging implements Runnable
                 if (estimatedFullMillis < Config.getRemovalInterval())
                 {
                     removeFiles(path, intervalDeletePoint);
+                    if (slabStore != null)
+                    {
+                        slabStore.forEachAccessedBefore(intervalDeletePoint, Cache::queueDelete);
+                    }
                 }
                 long nextCheckPointDelta = estimatedFullMillis / 2;
                 SimpleMutableDateTime nextCheckPointDateTime = SimpleMutableDateTime.ofEpochMilli(nextCheckPointDelta + System.currentTimeMillis());
@@ -40,15 +40,19 @@ public class ResponseBuilder extends HeaderBuilder
     public ResponseBuilder(ByteBuffer bb, HttpHeaderParser header, Collection<byte[]> extraHeaders)
     {
         super(bb);
+        Set<CharSequence> excl = Arrays.stream(HopByHop).collect(Collectors.toSet());
         bb.clear();
         put(header.getResponseLine());
         Map<CharSequence, List<ByteBufferCharSequence>> headers = header.getHeaders();
         for (CharSequence name : headers.keySet())
         {
-            for (ByteBufferCharSequence h : headers.get(name))
+            if (!excl.contains(name))
             {
-                put(h);
-                bb.put(CRLF);
+                for (ByteBufferCharSequence h : headers.get(name))
+                {
+                    put(h);
+                    bb.put(CRLF);
+                }
             }
         }
         for (byte[] hdr : extraHeaders)
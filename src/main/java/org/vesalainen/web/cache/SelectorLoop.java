@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import static java.util.logging.Level.INFO;
+import org.vesalainen.net.ExceptionParser;
+import org.vesalainen.util.logging.JavaLogging;
+import org.vesalainen.web.Scheme;
+
+/**
+ * SelectorLoop reads request headers from non-blocking client connections.
+ * When whole header is read, the connection is switched to blocking mode 
+ * and its ConnectionHandler is submitted to executor. Idle and slow clients
+ * don't occupy threads while sending request header. Persistent connections
+ * are resumed here between requests.
+ * <p>
+ * Connections are registered from any thread. Everything else happens in
+ * loop thread.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class SelectorLoop extends JavaLogging implements Callable<Void>
+{
+    private static final long CheckInterval = 1000;
+    private final Scheme scheme;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<ConnectionHandler> resumed = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connections = new AtomicInteger();
+    private final List<SelectionKey> ready = new ArrayList<>();
+
+    public SelectorLoop(Scheme scheme) throws IOException
+    {
+        super(SelectorLoop.class);
+        this.scheme = scheme;
+        this.selector = Selector.open();
+    }
+    /**
+     * Adds connection to this loop.
+     * @param channel 
+     */
+    public void register(SocketChannel channel)
+    {
+        connections.incrementAndGet();
+        pending.add(channel);
+        selector.wakeup();
+    }
+    /**
+     * Returns idle persistent connection to this loop. Channel must be in
+     * non-blocking mode.
+     * @param handler 
+     */
+    public void resume(ConnectionHandler handler)
+    {
+        connections.incrementAndGet();
+        resumed.add(handler);
+        selector.wakeup();
+    }
+    /**
+     * Returns number of connections waiting for request header.
+     * @return 
+     */
+    public int getConnections()
+    {
+        return connections.get();
+    }
+
+    @Override
+    public Void call() throws Exception
+    {
+        config("started selector loop for %s", scheme);
+        long nextCheck = Cache.getClock().millis() + CheckInterval;
+        try
+        {
+            while (!Thread.currentThread().isInterrupted())
+            {
+                selector.select(CheckInterval);
+                registerPending();
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext())
+                {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    read(key);
+                }
+                if (!ready.isEmpty())
+                {
+                    submitReady();
+                }
+                long now = Cache.getClock().millis();
+                if (now > nextCheck)
+                {
+                    closeTimedOut();
+                    nextCheck = now + CheckInterval;
+                }
+            }
+        }
+        catch (ClosedSelectorException ex)
+        {
+        }
+        finally
+        {
+            for (SelectionKey key : selector.keys())
+            {
+                close(key);
+            }
+            SocketChannel channel = pending.poll();
+            while (channel != null)
+            {
+                channel.close();
+                channel = pending.poll();
+            }
+            ConnectionHandler handler = resumed.poll();
+            while (handler != null)
+            {
+                closeHandler(handler);
+                handler = resumed.poll();
+            }
+            selector.close();
+            config("stopped selector loop for %s", scheme);
+        }
+        return null;
+    }
+
+    private void registerPending()
+    {
+        SocketChannel channel = pending.poll();
+        while (channel != null)
+        {
+            try
+            {
+                channel.configureBlocking(false);
+                ConnectionHandler handler = new ConnectionHandler(scheme, channel, this);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, handler);
+                read(key);
+            }
+            catch (IOException ex)
+            {
+                log(ExceptionParser.brokenConnection(INFO, ex), ex, "register: %s", ex.getMessage());
+                connections.decrementAndGet();
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException ex1)
+                {
+                }
+            }
+            channel = pending.poll();
+        }
+        ConnectionHandler handler = resumed.poll();
+        while (handler != null)
+        {
+            try
+            {
+                SocketChannel sc = (SocketChannel) handler.getUserAgent();
+                SelectionKey key = sc.register(selector, SelectionKey.OP_READ, handler);
+                read(key);
+            }
+            catch (IOException ex)
+            {
+                log(ExceptionParser.brokenConnection(INFO, ex), ex, "resume: %s", ex.getMessage());
+                connections.decrementAndGet();
+                closeHandler(handler);
+            }
+            handler = resumed.poll();
+        }
+    }
+
+    private void read(SelectionKey key)
+    {
+        ConnectionHandler handler = (ConnectionHandler) key.attachment();
+        try
+        {
+            if (handler.readHeaderPart())
+            {
+                key.cancel();
+                ready.add(key);
+            }
+        }
+        catch (IOException ex)
+        {
+            log(ExceptionParser.brokenConnection(INFO, ex), ex, "read header: %s", ex.getMessage());
+            close(key);
+        }
+    }
+    /**
+     * Cancelled keys are deregistered in the next select. Only then 
+     * channel can be switched to blocking mode.
+     * @throws IOException 
+     */
+    private void submitReady() throws IOException
+    {
+        selector.selectNow();
+        for (SelectionKey key : ready)
+        {
+            ConnectionHandler handler = (ConnectionHandler) key.attachment();
+            connections.decrementAndGet();
+            try
+            {
+                key.channel().configureBlocking(true);
+                Cache.getWorkerExecutor().submit(handler);
+            }
+            catch (Exception ex)
+            {
+                log(ExceptionParser.brokenConnection(INFO, ex), ex, "submit: %s", ex.getMessage());
+                closeHandler(handler);
+            }
+        }
+        ready.clear();
+    }
+
+    private void closeTimedOut()
+    {
+        long headerTimeout = Config.getHeaderTimeout();
+        long keepAliveTimeout = Config.getKeepAliveTimeout();
+        for (SelectionKey key : selector.keys())
+        {
+            ConnectionHandler handler = (ConnectionHandler) key.attachment();
+            long timeout = handler.isKeepAlive() ? keepAliveTimeout : headerTimeout;
+            if (key.isValid() && handler.idle() > timeout)
+            {
+                fine("header timeout %s", key.channel());
+                close(key);
+            }
+        }
+    }
+
+    private void close(SelectionKey key)
+    {
+        if (key.isValid())
+        {
+            key.cancel();
+            connections.decrementAndGet();
+            closeHandler((ConnectionHandler) key.attachment());
+        }
+    }
+
+    private void closeHandler(ConnectionHandler handler)
+    {
+        try
+        {
+            handler.close();
+        }
+        catch (IOException ex)
+        {
+            log(ExceptionParser.brokenConnection(INFO, ex), ex, "close: %s", ex.getMessage());
+        }
+    }
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import static java.nio.file.StandardOpenOption.*;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * SlabStore packs small cached files into large append-only segment files.
+ * File content is addressed by segment, offset and length. Original path is
+ * kept as identity of the entry, but the file itself is deleted.
+ * <p>
+ * Record layout: record length, path length, path relative to cache 
+ * directory, creation time and content length followed by content. Removal
+ * appends a tombstone record with content length -1 and segment id of the
+ * removed record in place of creation time. Tombstones are queued and
+ * appended by flush, put and compact, so that removal doesn't write.
+ * <p>
+ * Segments are compacted by copying live records to current segment when
+ * less than half of segment is live. Channels of compacted segments are 
+ * closed on next compaction, so that entries opened before compaction can
+ * still be served.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class SlabStore extends JavaLogging
+{
+    private static final String Suffix = ".seg";
+    private static final int Tombstone = -1;
+    private static final int HeaderSize = 4+2+8+4;
+    private final Path slabDir;
+    private final Path dir;
+    private final long segmentSize;
+    private final Map<Path,Slot> map = new ConcurrentHashMap<>();
+    private final TreeMap<Integer,Segment> segments = new TreeMap<>();
+    private final List<Segment> retired = new ArrayList<>();
+    private final Queue<Removal> removals = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private Segment current;
+    private volatile int compactions;
+    /**
+     * Creates SlabStore
+     * @param slabDir Directory for segment files.
+     * @param dir Cache directory. Paths are stored relative to it.
+     * @param segmentSize Segment is not appended after this size.
+     */
+    public SlabStore(Path slabDir, Path dir, long segmentSize)
+    {
+        super(SlabStore.class);
+        this.slabDir = slabDir;
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+    }
+    /**
+     * Opens segments and replays records. Incomplete record at the end of
+     * segment is truncated.
+     * @throws IOException 
+     */
+    public void open() throws IOException
+    {
+        Files.createDirectories(slabDir);
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(slabDir, "*"+Suffix))
+        {
+            for (Path p : ds)
+            {
+                String name = p.getFileName().toString();
+                int id = Integer.parseInt(name.substring(0, name.length()-Suffix.length()));
+                segments.put(id, new Segment(id, p));
+            }
+        }
+        for (Segment seg : segments.values())
+        {
+            replay(seg);
+        }
+        if (segments.isEmpty())
+        {
+            current = newSegment(1);
+        }
+        else
+        {
+            current = segments.lastEntry().getValue();
+        }
+        config("opened %s %d entries %d segments", slabDir, map.size(), segments.size());
+    }
+
+    private void replay(Segment seg) throws IOException
+    {
+        FileChannel fc = seg.channel();
+        long size = fc.size();
+        long pos = 0;
+        ByteBuffer bb = ByteBuffer.allocate(HeaderSize);
+        while (pos < size)
+        {
+            ByteBuffer rec = readRecord(fc, pos, size, bb);
+            if (rec == null)
+            {
+                warning("%s truncated at %d", seg.path, pos);
+                fc.truncate(pos);
+                break;
+            }
+            Path path = path(rec);
+            long time = rec.getLong();
+            int length = rec.getInt();
+            if (length == Tombstone)
+            {
+                Slot old = map.get(path);
+                if (old != null && old.segment.id == time)
+                {
+                    map.remove(path);
+                    dead(old);
+                }
+            }
+            else
+            {
+                live(path, new Slot(seg, pos+rec.position(), length, time));
+            }
+            pos += rec.limit();
+        }
+        seg.size = pos;
+    }
+    /**
+     * Returns true if path is stored.
+     * @param path
+     * @return 
+     */
+    public boolean contains(Path path)
+    {
+        return map.containsKey(path);
+    }
+    /**
+     * Returns slot for path or null.
+     * @param path
+     * @return 
+     */
+    public Slot get(Path path)
+    {
+        return map.get(path);
+    }
+    /**
+     * Stores content of channel.
+     * @param path
+     * @param created Creation time of original file.
+     * @param fc
+     * @return
+     * @throws IOException 
+     */
+    public Slot put(Path path, long created, FileChannel fc) throws IOException
+    {
+        int length = (int) fc.size();
+        ByteBuffer body = ByteBuffer.allocate(length);
+        while (body.hasRemaining())
+        {
+            if (fc.read(body, body.position()) == -1)
+            {
+                throw new IOException(path+" shrinked");
+            }
+        }
+        body.flip();
+        lock.lock();
+        try
+        {
+            appendRemovals();
+            Slot slot = append(path, created, body);
+            live(path, slot);
+            return slot;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    /**
+     * Removes path. Called when file is deleted.
+     * @param path 
+     */
+    public void remove(Path path)
+    {
+        Slot slot = map.remove(path);
+        if (slot != null)
+        {
+            dead(slot);
+            removals.add(new Removal(path, slot.segment.id));
+        }
+    }
+    /**
+     * Appends queued tombstones.
+     */
+    public void flush()
+    {
+        lock.lock();
+        try
+        {
+            appendRemovals();
+        }
+        catch (IOException ex)
+        {
+            log(Level.SEVERE, ex, "flush: %s", ex.getMessage());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    /**
+     * Appends queued tombstones. Must be called while holding lock.
+     */
+    private void appendRemovals() throws IOException
+    {
+        Removal removal = removals.poll();
+        while (removal != null)
+        {
+            append(removal.path, removal.segment, null);
+            removal = removals.poll();
+        }
+    }
+    /**
+     * Calls consumer for every stored path.
+     * @param consumer 
+     */
+    public void forEach(Consumer<Path> consumer)
+    {
+        map.keySet().forEach(consumer);
+    }
+    /**
+     * Calls consumer for paths that have not been accessed after time.
+     * @param time
+     * @param consumer 
+     */
+    public void forEachAccessedBefore(long time, Consumer<Path> consumer)
+    {
+        map.forEach((p,s)->
+        {
+            if (s.lastAccess < time)
+            {
+                consumer.accept(p);
+            }
+        });
+    }
+    /**
+     * Compacts segments that are less than half live. Closes channels of
+     * segments compacted in previous run.
+     */
+    public void compact()
+    {
+        List<Segment> list = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            try
+            {
+                appendRemovals();
+            }
+            catch (IOException ex)
+            {
+                log(Level.SEVERE, ex, "flush: %s", ex.getMessage());
+            }
+            for (Segment seg : retired)
+            {
+                try
+                {
+                    seg.close();
+                }
+                catch (IOException ex)
+                {
+                    log(Level.SEVERE, ex, "close %s: %s", seg.path, ex.getMessage());
+                }
+            }
+            retired.clear();
+            for (Segment seg : segments.values())
+            {
+                if (seg != current && 2*seg.live.get() < seg.size)
+                {
+                    list.add(seg);
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        for (Segment seg : list)
+        {
+            try
+            {
+                compact(seg);
+            }
+            catch (IOException ex)
+            {
+                log(Level.SEVERE, ex, "compact %s: %s", seg.path, ex.getMessage());
+            }
+        }
+    }
+
+    private void compact(Segment seg) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        long size = seg.size;
+        long pos = 0;
+        int count = 0;
+        ByteBuffer bb = ByteBuffer.allocate(HeaderSize);
+        while (pos < size)
+        {
+            ByteBuffer rec = readRecord(seg.channel(), pos, size, bb);
+            if (rec == null)
+            {
+                throw new IOException("broken record at "+pos);
+            }
+            Path path = path(rec);
+            long time = rec.getLong();
+            int length = rec.getInt();
+            long offset = pos+rec.position();
+            lock.lock();
+            try
+            {
+                if (length == Tombstone)
+                {
+                    if (time != seg.id && segments.containsKey((int)time))
+                    {
+                        append(path, time, null);
+                    }
+                }
+                else
+                {
+                    Slot slot = map.get(path);
+                    if (slot != null && slot.segment == seg && slot.offset == offset)
+                    {
+                        Slot copy = append(path, time, rec.slice());
+                        copy.lastAccess = slot.lastAccess;
+                        if (map.replace(path, slot, copy))
+                        {   // not removed while copying
+                            dead(slot);
+                            copy.segment.live.addAndGet(copy.length);
+                            liveBytes.addAndGet(copy.length);
+                            count++;
+                        }
+                        else
+                        {
+                            removals.add(new Removal(path, copy.segment.id));
+                        }
+                    }
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            pos += rec.limit();
+        }
+        lock.lock();
+        try
+        {
+            Files.delete(seg.path);
+            segments.remove(seg.id);
+            retired.add(seg);
+            compactions++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        fine("compacted %s %d live records in %d ms", seg.path, count, System.currentTimeMillis()-start);
+    }
+    /**
+     * Appends record to current segment. Must be called while holding lock.
+     * @param path
+     * @param time Creation time or segment id of tombstone.
+     * @param body Content or null for tombstone.
+     * @return Slot of appended content.
+     * @throws IOException 
+     */
+    private Slot append(Path path, long time, ByteBuffer body) throws IOException
+    {
+        byte[] p = dir.relativize(path).toString().getBytes(StandardCharsets.UTF_8);
+        int length = body != null ? body.remaining() : 0;
+        int recLen = HeaderSize + p.length + length;
+        if (current.size > 0 && current.size + recLen > segmentSize)
+        {
+            current = newSegment(current.id+1);
+        }
+        ByteBuffer bb = ByteBuffer.allocate(recLen);
+        bb.putInt(recLen);
+        bb.putShort((short) p.length);
+        bb.put(p);
+        bb.putLong(time);
+        bb.putInt(body != null ? length : Tombstone);
+        int headerLen = bb.position();
+        if (body != null)
+        {
+            bb.put(body.duplicate());
+        }
+        bb.flip();
+        FileChannel fc = current.channel();
+        long pos = current.size;
+        while (bb.hasRemaining())
+        {
+            pos += fc.write(bb, pos);
+        }
+        Slot slot = new Slot(current, current.size+headerLen, length, time);
+        current.size = pos;
+        return slot;
+    }
+
+    private void live(Path path, Slot slot)
+    {
+        Slot old = map.put(path, slot);
+        if (old != null)
+        {
+            dead(old);
+        }
+        slot.segment.live.addAndGet(slot.length);
+        liveBytes.addAndGet(slot.length);
+    }
+
+    private void dead(Slot slot)
+    {
+        slot.segment.live.addAndGet(-slot.length);
+        liveBytes.addAndGet(-slot.length);
+    }
+
+    private Segment newSegment(int id) throws IOException
+    {
+        Segment seg = new Segment(id, slabDir.resolve(String.format("%08d%s", id, Suffix)));
+        seg.create();
+        segments.put(id, seg);
+        return seg;
+    }
+
+    private Path path(ByteBuffer rec)
+    {
+        int len = rec.getShort() & 0xffff;
+        String p = new String(rec.array(), rec.position(), len, StandardCharsets.UTF_8);
+        rec.position(rec.position()+len);
+        return dir.resolve(p);
+    }
+    /**
+     * Reads record at pos. Returned buffer is positioned after record length
+     * and limit is record length.
+     * @return Record or null if record is incomplete.
+     */
+    private static ByteBuffer readRecord(FileChannel fc, long pos, long size, ByteBuffer bb) throws IOException
+    {
+        if (pos + HeaderSize > size)
+        {
+            return null;
+        }
+        bb.clear();
+        bb.limit(4);
+        readFully(fc, bb, pos);
+        int recLen = bb.getInt(0);
+        if (recLen < HeaderSize || pos + recLen > size)
+        {
+            return null;
+        }
+        ByteBuffer rec = ByteBuffer.allocate(recLen);
+        readFully(fc, rec, pos);
+        rec.flip();
+        rec.position(4);
+        return rec;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer bb, long pos) throws IOException
+    {
+        while (bb.hasRemaining())
+        {
+            int rc = fc.read(bb, pos);
+            if (rc == -1)
+            {
+                throw new IOException("unexpected EOF");
+            }
+            pos += rc;
+        }
+    }
+
+    public int size()
+    {
+        return map.size();
+    }
+
+    public long getLiveBytes()
+    {
+        return liveBytes.get();
+    }
+
+    public int getSegmentCount()
+    {
+        lock.lock();
+        try
+        {
+            return segments.size();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    public int getCompactions()
+    {
+        return compactions;
+    }
+    
+    private static class Removal
+    {
+        private final Path path;
+        private final int segment;
+
+        public Removal(Path path, int segment)
+        {
+            this.path = path;
+            this.segment = segment;
+        }
+    }
+    
+    private static class Segment
+    {
+        private final int id;
+        private final Path path;
+        private final AtomicLong live = new AtomicLong();
+        private final ReentrantLock lock = new ReentrantLock();
+        private FileChannel channel;
+        private volatile long size;
+        private boolean closed;
+
+        public Segment(int id, Path path)
+        {
+            this.id = id;
+            this.path = path;
+        }
+        /**
+         * Creates segment file and opens channel.
+         * @throws IOException 
+         */
+        private void create() throws IOException
+        {
+            lock.lock();
+            try
+            {
+                channel = FileChannel.open(path, CREATE, READ, WRITE);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        /**
+         * Returns channel. Channel closed by interrupt is reopened. Deleted
+         * segment file is not recreated.
+         * @return
+         * @throws IOException 
+         */
+        private FileChannel channel() throws IOException
+        {
+            lock.lock();
+            try
+            {
+                if (channel == null || (!channel.isOpen() && !closed))
+                {
+                    channel = FileChannel.open(path, READ, WRITE);
+                }
+                return channel;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        private void close() throws IOException
+        {
+            lock.lock();
+            try
+            {
+                closed = true;
+                if (channel != null)
+                {
+                    channel.close();
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+    /**
+     * Slot is the location of stored content. It also provides basic file
+     * attributes of the original file.
+     */
+    public static class Slot implements BasicFileAttributeView, BasicFileAttributes
+    {
+        private final Segment segment;
+        private final long offset;
+        private final int length;
+        private final long created;
+        private volatile long lastAccess;
+
+        private Slot(Segment segment, long offset, int length, long created)
+        {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.created = created;
+            this.lastAccess = created;
+        }
+
+        public FileChannel getChannel() throws IOException
+        {
+            return segment.channel();
+        }
+
+        public long getOffset()
+        {
+            return offset;
+        }
+
+        public int getLength()
+        {
+            return length;
+        }
+
+        @Override
+        public String name()
+        {
+            return "basic";
+        }
+
+        @Override
+        public BasicFileAttributes readAttributes() throws IOException
+        {
+            return this;
+        }
+
+        @Override
+        public void setTimes(FileTime lastModifiedTime, FileTime lastAccessTime, FileTime createTime) throws IOException
+        {
+            if (lastAccessTime != null)
+            {
+                lastAccess = lastAccessTime.toMillis();
+            }
+        }
+
+        @Override
+        public FileTime lastModifiedTime()
+        {
+            return FileTime.fromMillis(created);
+        }
+
+        @Override
+        public FileTime lastAccessTime()
+        {
+            return FileTime.fromMillis(lastAccess);
+        }
+
+        @Override
+        public FileTime creationTime()
+        {
+            return FileTime.fromMillis(created);
+        }
+
+        @Override
+        public boolean isRegularFile()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isDirectory()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isSymbolicLink()
+        {
+            return false;
+        }
+
+        @Override
+        public boolean isOther()
+        {
+            return false;
+        }
+
+        @Override
+        public long size()
+        {
+            return length;
+        }
+
+        @Override
+        public Object fileKey()
+        {
+            return null;
+        }
+        
+    }
+}
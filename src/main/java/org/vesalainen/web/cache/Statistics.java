@@ -28,5 +28,360 @@ public class Statistics implements StatisticsMXBean
     {
         return Cache.getThreadStatistics();
     }
+
+    @Override
+    public int getIndexSize()
+    {
+        return Cache.getIndex().size();
+    }
+
+    @Override
+    public int getIndexKeyCount()
+    {
+        return Cache.getIndex().getKeyCount();
+    }
+
+    @Override
+    public long getBloomFilterNegatives()
+    {
+        return Cache.getIndex().getFilterNegatives();
+    }
+
+    @Override
+    public long getBloomFilterFalsePositives()
+    {
+        return Cache.getIndex().getFilterFalsePositives();
+    }
+
+    @Override
+    public long getBloomFilterHits()
+    {
+        return Cache.getIndex().getFilterHits();
+    }
+
+    @Override
+    public int getBloomFilterCapacity()
+    {
+        return Cache.getIndex().getFilterCapacity();
+    }
+
+    @Override
+    public int getBloomFilterRebuilds()
+    {
+        return Cache.getIndex().getFilterRebuilds();
+    }
+
+    @Override
+    public long getBloomFilterRebuildMillis()
+    {
+        return Cache.getIndex().getFilterRebuildMillis();
+    }
+
+    @Override
+    public long getHotCacheSize()
+    {
+        return Cache.getHotCache().getSize();
+    }
+
+    @Override
+    public int getHotCacheCount()
+    {
+        return Cache.getHotCache().getCount();
+    }
+
+    @Override
+    public long getHotCacheHits()
+    {
+        return Cache.getHotCache().getHits();
+    }
+
+    @Override
+    public long getHotCacheBytes()
+    {
+        return Cache.getHotCache().getBytes();
+    }
+
+    @Override
+    public long getHotCacheAdmissions()
+    {
+        return Cache.getHotCache().getAdmissions();
+    }
+
+    @Override
+    public long getHotCacheEvictions()
+    {
+        return Cache.getHotCache().getEvictions();
+    }
+
+    @Override
+    public int getSlabEntries()
+    {
+        SlabStore slabStore = Cache.getSlabStore();
+        return slabStore != null ? slabStore.size() : 0;
+    }
+
+    @Override
+    public long getSlabLiveBytes()
+    {
+        SlabStore slabStore = Cache.getSlabStore();
+        return slabStore != null ? slabStore.getLiveBytes() : 0;
+    }
+
+    @Override
+    public int getSlabSegments()
+    {
+        SlabStore slabStore = Cache.getSlabStore();
+        return slabStore != null ? slabStore.getSegmentCount() : 0;
+    }
+
+    @Override
+    public int getSlabCompactions()
+    {
+        SlabStore slabStore = Cache.getSlabStore();
+        return slabStore != null ? slabStore.getCompactions() : 0;
+    }
+
+    @Override
+    public double getDedupRatio()
+    {
+        DedupStore dedupStore = Cache.getDedupStore();
+        return dedupStore != null ? dedupStore.getRatio() : 1.0;
+    }
+
+    @Override
+    public long getDedupSavedBytes()
+    {
+        DedupStore dedupStore = Cache.getDedupStore();
+        return dedupStore != null ? dedupStore.getSavedBytes() : 0;
+    }
+
+    @Override
+    public long getDedupLinks()
+    {
+        DedupStore dedupStore = Cache.getDedupStore();
+        return dedupStore != null ? dedupStore.getLinks() : 0;
+    }
+
+    @Override
+    public long getBufferPoolPooledBytes()
+    {
+        return Cache.getBufferPool().getPooledBytes();
+    }
+
+    @Override
+    public long getBufferPoolOutstandingBytes()
+    {
+        return Cache.getBufferPool().getOutstandingBytes();
+    }
+
+    @Override
+    public long getBufferPoolAllocations()
+    {
+        return Cache.getBufferPool().getAllocations();
+    }
+
+    @Override
+    public long getBufferPoolReuses()
+    {
+        return Cache.getBufferPool().getReuses();
+    }
+
+    @Override
+    public long getBufferPoolLeaks()
+    {
+        return Cache.getBufferPool().getLeaks();
+    }
+
+    @Override
+    public int getBufferPoolLeases()
+    {
+        return Cache.getBufferPool().getLeaseCount();
+    }
+
+    @Override
+    public int getInFlightCount()
+    {
+        return Cache.getInFlight().size();
+    }
+
+    @Override
+    public long getInFlightFetches()
+    {
+        return Cache.getInFlight().getFetches();
+    }
+
+    @Override
+    public long getInFlightAttaches()
+    {
+        return Cache.getInFlight().getAttaches();
+    }
+
+    @Override
+    public double getInFlightCollapseRatio()
+    {
+        return Cache.getInFlight().getCollapseRatio();
+    }
+
+    @Override
+    public int getOriginQueued()
+    {
+        return Cache.getOriginLimiter().getQueued();
+    }
+
+    @Override
+    public String[] getOriginStatistics()
+    {
+        return Cache.getOriginLimiter().getStatistics();
+    }
+
+    @Override
+    public int getOriginPoolIdle()
+    {
+        return Cache.getOriginPool().getIdle();
+    }
+
+    @Override
+    public long getOriginPoolCreated()
+    {
+        return Cache.getOriginPool().getCreated();
+    }
+
+    @Override
+    public long getOriginPoolReused()
+    {
+        return Cache.getOriginPool().getReused();
+    }
+
+    @Override
+    public long getOriginPoolEvicted()
+    {
+        return Cache.getOriginPool().getEvicted();
+    }
+
+    @Override
+    public long getOriginPoolUnhealthy()
+    {
+        return Cache.getOriginPool().getUnhealthy();
+    }
+
+    @Override
+    public String[] getOriginPoolStatistics()
+    {
+        return Cache.getOriginPool().getStatistics();
+    }
+
+    @Override
+    public int getDnsCacheSize()
+    {
+        return Cache.getDnsCache().getSize();
+    }
+
+    @Override
+    public long getDnsHits()
+    {
+        return Cache.getDnsCache().getHits();
+    }
+
+    @Override
+    public long getDnsNegativeHits()
+    {
+        return Cache.getDnsCache().getNegativeHits();
+    }
+
+    @Override
+    public long getDnsMisses()
+    {
+        return Cache.getDnsCache().getMisses();
+    }
+
+    @Override
+    public long getDnsRefreshes()
+    {
+        return Cache.getDnsCache().getRefreshes();
+    }
+
+    @Override
+    public double getDnsHitRatio()
+    {
+        return Cache.getDnsCache().getHitRatio();
+    }
+
+    @Override
+    public double getDnsAverageLookupMillis()
+    {
+        return Cache.getDnsCache().getAverageLookupMillis();
+    }
+
+    @Override
+    public long getDnsMaxLookupMillis()
+    {
+        return Cache.getDnsCache().getMaxLookupMillis();
+    }
+
+    @Override
+    public long getConnectAttempts()
+    {
+        return Cache.getOriginConnector().getAttempts();
+    }
+
+    @Override
+    public long getConnectFailed()
+    {
+        return Cache.getOriginConnector().getFailed();
+    }
+
+    @Override
+    public long getConnectFallbacks()
+    {
+        return Cache.getOriginConnector().getFallbacks();
+    }
+
+    @Override
+    public long getConnectTimeouts()
+    {
+        return Cache.getOriginConnector().getTimeouts();
+    }
+
+    @Override
+    public long getTlsFullHandshakes()
+    {
+        return Cache.getTlsSessions().getFullHandshakes();
+    }
+
+    @Override
+    public long getTlsResumedHandshakes()
+    {
+        return Cache.getTlsSessions().getResumedHandshakes();
+    }
+
+    @Override
+    public long getTlsOriginFullHandshakes()
+    {
+        return Cache.getTlsSessions().getOriginFullHandshakes();
+    }
+
+    @Override
+    public long getTlsOriginResumedHandshakes()
+    {
+        return Cache.getTlsSessions().getOriginResumedHandshakes();
+    }
+
+    @Override
+    public int getSelectorConnections()
+    {
+        return Cache.getSelectorConnections();
+    }
+
+    @Override
+    public int getOpenEntryFiles()
+    {
+        return CacheEntry.getOpenFiles();
+    }
+
+    @Override
+    public long getCollectedEntries()
+    {
+        return Cache.getCleaner().getCollected();
+    }
     
 }
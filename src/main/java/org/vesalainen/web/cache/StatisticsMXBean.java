@@ -23,4 +23,62 @@ package org.vesalainen.web.cache;
 public interface StatisticsMXBean
 {
     String threadStatistics();
+    int getIndexSize();
+    int getIndexKeyCount();
+    long getBloomFilterNegatives();
+    long getBloomFilterFalsePositives();
+    long getBloomFilterHits();
+    int getBloomFilterCapacity();
+    int getBloomFilterRebuilds();
+    long getBloomFilterRebuildMillis();
+    long getHotCacheSize();
+    int getHotCacheCount();
+    long getHotCacheHits();
+    long getHotCacheBytes();
+    long getHotCacheAdmissions();
+    long getHotCacheEvictions();
+    int getSlabEntries();
+    long getSlabLiveBytes();
+    int getSlabSegments();
+    int getSlabCompactions();
+    double getDedupRatio();
+    long getDedupSavedBytes();
+    long getDedupLinks();
+    long getBufferPoolPooledBytes();
+    long getBufferPoolOutstandingBytes();
+    long getBufferPoolAllocations();
+    long getBufferPoolReuses();
+    long getBufferPoolLeaks();
+    int getBufferPoolLeases();
+    int getOpenEntryFiles();
+    int getSelectorConnections();
+    int getOriginQueued();
+    int getInFlightCount();
+    long getInFlightFetches();
+    long getInFlightAttaches();
+    double getInFlightCollapseRatio();
+    String[] getOriginStatistics();
+    int getOriginPoolIdle();
+    long getOriginPoolCreated();
+    long getOriginPoolReused();
+    long getOriginPoolEvicted();
+    long getOriginPoolUnhealthy();
+    String[] getOriginPoolStatistics();
+    int getDnsCacheSize();
+    long getDnsHits();
+    long getDnsNegativeHits();
+    long getDnsMisses();
+    long getDnsRefreshes();
+    double getDnsHitRatio();
+    double getDnsAverageLookupMillis();
+    long getDnsMaxLookupMillis();
+    long getConnectAttempts();
+    long getConnectFailed();
+    long getConnectFallbacks();
+    long getConnectTimeouts();
+    long getTlsFullHandshakes();
+    long getTlsResumedHandshakes();
+    long getTlsOriginFullHandshakes();
+    long getTlsOriginResumedHandshakes();
+    long getCollectedEntries();
 }
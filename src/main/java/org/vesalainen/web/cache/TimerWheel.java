@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import static java.util.logging.Level.SEVERE;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * TimerWheel is a hashed timing wheel. Scheduling and cancelling are O(1)
+ * and advancing only visits buckets of passed ticks, so there is no scan of
+ * all timeouts.
+ * <p>
+ * Timeouts are run in thread calling advance. Timeout is not run before its
+ * deadline and at latest one tick after advance has passed it.
+ * <p>
+ * TimerWheel is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class TimerWheel extends JavaLogging
+{
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongSupplier clock;
+    private final long tick;
+    private final Timeout[] buckets;
+    private final int mask;
+    private long current;
+    private int size;
+    /**
+     * Creates TimerWheel
+     * @param tick Tick length in millis.
+     * @param wheelSize Number of buckets. Rounded up to power of 2.
+     * @param clock Returns current millis.
+     */
+    public TimerWheel(long tick, int wheelSize, LongSupplier clock)
+    {
+        super(TimerWheel.class);
+        if (tick <= 0)
+        {
+            throw new IllegalArgumentException("tick "+tick);
+        }
+        this.tick = tick;
+        this.clock = clock;
+        int capacity = wheelSize > 2 ? Integer.highestOneBit(wheelSize-1)<<1 : 2;
+        buckets = new Timeout[capacity];
+        for (int ii=0;ii<capacity;ii++)
+        {
+            buckets[ii] = new Timeout(null, 0);
+        }
+        mask = capacity-1;
+        current = clock.getAsLong() / tick;
+    }
+    /**
+     * Schedules action to be run after delay.
+     * @param delay Millis
+     * @param action
+     * @return 
+     */
+    public Timeout schedule(long delay, Runnable action)
+    {
+        Timeout timeout = new Timeout(action, clock.getAsLong() + Math.max(0, delay));
+        lock.lock();
+        try
+        {
+            Timeout head = buckets[(int) (Math.max(timeout.deadline / tick, current) & mask)];
+            timeout.prev = head.prev;
+            timeout.next = head;
+            head.prev.next = timeout;
+            head.prev = timeout;
+            size++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return timeout;
+    }
+    /**
+     * Runs expired timeouts. This is called periodically about once in a
+     * tick.
+     * @return Number of run timeouts.
+     */
+    public int advance()
+    {
+        long now = clock.getAsLong();
+        long target = now / tick;
+        List<Timeout> expired = new ArrayList<>();
+        lock.lock();
+        try
+        {
+            if (target - current > mask)
+            {
+                current = target - mask;
+            }
+            while (true)
+            {
+                Timeout head = buckets[(int) (current & mask)];
+                Timeout timeout = head.next;
+                while (timeout != head)
+                {
+                    Timeout next = timeout.next;
+                    if (timeout.deadline <= now)
+                    {
+                        timeout.unlink();
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+                if (current >= target)
+                {
+                    break;
+                }
+                current++;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        for (Timeout timeout : expired)
+        {
+            try
+            {
+                timeout.action.run();
+            }
+            catch (RuntimeException ex)
+            {
+                log(SEVERE, ex, "timeout %s", ex.getMessage());
+            }
+        }
+        return expired.size();
+    }
+    /**
+     * Returns number of scheduled timeouts.
+     * @return 
+     */
+    public int size()
+    {
+        lock.lock();
+        try
+        {
+            return size;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public class Timeout
+    {
+        private final Runnable action;
+        private final long deadline;
+        private Timeout prev = this;
+        private Timeout next = this;
+
+        private Timeout(Runnable action, long deadline)
+        {
+            this.action = action;
+            this.deadline = deadline;
+        }
+        /**
+         * Cancels timeout.
+         * @return false if timeout was already run or cancelled.
+         */
+        public boolean cancel()
+        {
+            lock.lock();
+            try
+            {
+                if (next == null)
+                {
+                    return false;
+                }
+                unlink();
+                return true;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        public long getDeadline()
+        {
+            return deadline;
+        }
+        
+        private void unlink()
+        {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+            size--;
+        }
+    }
+}
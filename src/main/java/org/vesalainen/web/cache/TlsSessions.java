@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.nio.ByteBuffer;
+import java.security.KeyManagementException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import org.vesalainen.util.logging.JavaLogging;
+
+/**
+ * TlsSessions configures session caches of SSLContexts and counts full and
+ * resumed handshakes of engines they create.
+ * <p>
+ * Client sessions are cached by peer host and port, so origin reconnects
+ * resume when engines are created with host and port. Handshake is counted
+ * as resumed when its session was created before the engine.
+ * <p>
+ * TlsSessions is thread safe.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class TlsSessions extends JavaLogging
+{
+    private final IntSupplier cacheSize;
+    private final LongSupplier timeout;
+    private final LongAdder full = new LongAdder();
+    private final LongAdder resumed = new LongAdder();
+    private final LongAdder originFull = new LongAdder();
+    private final LongAdder originResumed = new LongAdder();
+    /**
+     * Creates TlsSessions
+     * @param cacheSize Max sessions in each session cache. 0 means unlimited.
+     * @param timeout Session lifetime in millis.
+     */
+    public TlsSessions(IntSupplier cacheSize, LongSupplier timeout)
+    {
+        super(TlsSessions.class);
+        this.cacheSize = cacheSize;
+        this.timeout = timeout;
+    }
+    /**
+     * Enables or disables session tickets. Must be called before first
+     * SSLContext is created. Older JVMs ignore these properties.
+     * @param enable 
+     */
+    public static void setSessionTickets(boolean enable)
+    {
+        System.setProperty("jdk.tls.server.enableSessionTicketExtension", String.valueOf(enable));
+        System.setProperty("jdk.tls.client.enableSessionTicketExtension", String.valueOf(enable));
+    }
+    /**
+     * Configures session caches of initialized context and returns context
+     * which counts handshakes.
+     * @param context
+     * @return 
+     */
+    public SSLContext wrap(SSLContext context)
+    {
+        configure(context);
+        return new SSLContext(new Spi(context, null, 0), context.getProvider(), context.getProtocol()){};
+    }
+    /**
+     * Configures session caches of initialized context.
+     * @param context 
+     */
+    public void configure(SSLContext context)
+    {
+        configure(context.getServerSessionContext());
+        configure(context.getClientSessionContext());
+        config("%s session cache size=%d timeout=%ds", context.getProtocol(), cacheSize.getAsInt(), timeout.getAsLong()/1000);
+    }
+    /**
+     * Returns context for one client connection to host:port. Its engines
+     * are created with host and port and stay in client mode, so sessions
+     * resume even when channel creates engine without peer.
+     * @param context Configured context
+     * @param host
+     * @param port
+     * @return 
+     */
+    public SSLContext forPeer(SSLContext context, String host, int port)
+    {
+        return new SSLContext(new Spi(context, host, port), context.getProvider(), context.getProtocol()){};
+    }
+
+    private void configure(SSLSessionContext sessionContext)
+    {
+        sessionContext.setSessionCacheSize(cacheSize.getAsInt());
+        sessionContext.setSessionTimeout((int) (timeout.getAsLong()/1000));
+    }
+
+    public long getFullHandshakes()
+    {
+        return full.sum();
+    }
+
+    public long getResumedHandshakes()
+    {
+        return resumed.sum();
+    }
+
+    public long getOriginFullHandshakes()
+    {
+        return originFull.sum();
+    }
+
+    public long getOriginResumedHandshakes()
+    {
+        return originResumed.sum();
+    }
+    
+    private void finished(SSLEngine engine, long created)
+    {
+        SSLSession session = engine.getSession();
+        boolean resume = session.getCreationTime() < created;
+        if (engine.getUseClientMode())
+        {
+            (resume ? originResumed : originFull).increment();
+        }
+        else
+        {
+            (resume ? resumed : full).increment();
+        }
+        finer("%s handshake %s:%d", resume ? "resumed" : "full", engine.getPeerHost(), engine.getPeerPort());
+    }
+    
+    private class Spi extends SSLContextSpi
+    {
+        private final SSLContext context;
+        private final String host;
+        private final int port;
+
+        public Spi(SSLContext context, String host, int port)
+        {
+            this.context = context;
+            this.host = host;
+            this.port = port;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) throws KeyManagementException
+        {
+            context.init(km, tm, sr);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory()
+        {
+            return context.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory()
+        {
+            return context.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine()
+        {
+            if (host != null)
+            {
+                return new CountingEngine(context.createSSLEngine(host, port), true);
+            }
+            return new CountingEngine(context.createSSLEngine(), false);
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port)
+        {
+            return new CountingEngine(context.createSSLEngine(host, port), this.host != null);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext()
+        {
+            return context.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext()
+        {
+            return context.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters()
+        {
+            return context.getDefaultSSLParameters();
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters()
+        {
+            return context.getSupportedSSLParameters();
+        }
+        
+    }
+    /**
+     * Delegates to engine and counts first finished handshake. Client
+     * engine ignores mode changes.
+     */
+    private class CountingEngine extends SSLEngine
+    {
+        private final SSLEngine engine;
+        private final boolean client;
+        private final long created = System.currentTimeMillis();
+        private boolean counted;
+
+        public CountingEngine(SSLEngine engine, boolean client)
+        {
+            super(engine.getPeerHost(), engine.getPeerPort());
+            this.engine = engine;
+            this.client = client;
+            if (client)
+            {
+                engine.setUseClientMode(true);
+            }
+        }
+
+        private SSLEngineResult check(SSLEngineResult result)
+        {
+            if (!counted && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED)
+            {
+                counted = true;
+                finished(engine, created);
+            }
+            return result;
+        }
+        
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length, ByteBuffer dst) throws SSLException
+        {
+            return check(engine.wrap(srcs, offset, length, dst));
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts, int offset, int length) throws SSLException
+        {
+            return check(engine.unwrap(src, dsts, offset, length));
+        }
+
+        @Override
+        public Runnable getDelegatedTask()
+        {
+            return engine.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException
+        {
+            engine.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone()
+        {
+            return engine.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound()
+        {
+            engine.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone()
+        {
+            return engine.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites()
+        {
+            return engine.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites()
+        {
+            return engine.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites)
+        {
+            engine.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols()
+        {
+            return engine.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols()
+        {
+            return engine.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols)
+        {
+            engine.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession()
+        {
+            return engine.getSession();
+        }
+
+        @Override
+        public SSLSession getHandshakeSession()
+        {
+            return engine.getHandshakeSession();
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException
+        {
+            engine.beginHandshake();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus()
+        {
+            return engine.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode)
+        {
+            if (!client)
+            {
+                engine.setUseClientMode(mode);
+            }
+        }
+
+        @Override
+        public boolean getUseClientMode()
+        {
+            return engine.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need)
+        {
+            engine.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth()
+        {
+            return engine.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want)
+        {
+            engine.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth()
+        {
+            return engine.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag)
+        {
+            engine.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation()
+        {
+            return engine.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters()
+        {
+            return engine.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters params)
+        {
+            engine.setSSLParameters(params);
+        }
+
+        @Override
+        public String toString()
+        {
+            return engine.toString();
+        }
+        
+    }
+}
@@ -23,7 +23,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.function.BiConsumer;
 import org.vesalainen.nio.ByteBufferCharSequence;
+import org.vesalainen.util.CharSequences;
 import org.vesalainen.nio.file.attribute.UserDefinedAttributes;
 import org.vesalainen.nio.file.attribute.UserDefinedFileAttributes;
 import static org.vesalainen.web.cache.CacheConstants.OP;
@@ -84,6 +86,25 @@ public class VaryMap
         }
     }
     
+    /**
+     * Returns a copy which doesn't refer to any parser buffers.
+     * @return 
+     */
+    public VaryMap detach()
+    {
+        if (map.isEmpty())
+        {
+            return Empty;
+        }
+        VaryMap varyMap = new VaryMap();
+        for (Entry<CharSequence,CharSequence> e : map.entrySet())
+        {
+            CharSequence value = e.getValue();
+            varyMap.put(CharSequences.getConstant(e.getKey().toString(), OP), value != null ? value.toString() : null);
+        }
+        return varyMap;
+    }
+    
     public void put(CharSequence hdr, CharSequence value)
     {
         map.put(hdr, value);
@@ -150,6 +171,16 @@ public class VaryMap
     {
         return map.isEmpty();
     }
+
+    public int size()
+    {
+        return map.size();
+    }
+
+    public void forEach(BiConsumer<CharSequence,CharSequence> consumer)
+    {
+        map.forEach(consumer);
+    }
     
     @Override
     public String toString()
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VirtualThreadExecutor runs every task in a new virtual thread. Virtual 
+ * threads are created by reflection, so that cache still runs in Java 8 
+ * where this executor is not supported.
+ * <p>
+ * Futures of submitted tasks interrupt the virtual thread when cancelled.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class VirtualThreadExecutor extends AbstractExecutorService
+{
+    private static final Method newVirtualThreadPerTaskExecutor = method(Executors.class, "newVirtualThreadPerTaskExecutor");
+    private static final Method isVirtual = method(Thread.class, "isVirtual");
+    private final ExecutorService executor;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private VirtualThreadExecutor(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+    /**
+     * Returns true if running JVM has virtual threads.
+     * @return 
+     */
+    public static boolean isSupported()
+    {
+        return newVirtualThreadPerTaskExecutor != null;
+    }
+    /**
+     * Returns true if thread is virtual.
+     * @param thread
+     * @return 
+     */
+    public static boolean isVirtual(Thread thread)
+    {
+        if (isVirtual != null)
+        {
+            try
+            {
+                return (boolean) isVirtual.invoke(thread);
+            }
+            catch (ReflectiveOperationException ex)
+            {
+                throw new IllegalArgumentException(ex);
+            }
+        }
+        return false;
+    }
+    /**
+     * Creates new executor.
+     * @return
+     * @throws UnsupportedOperationException If virtual threads are not 
+     * supported.
+     */
+    public static VirtualThreadExecutor create()
+    {
+        if (!isSupported())
+        {
+            throw new UnsupportedOperationException("virtual threads not supported in "+System.getProperty("java.version"));
+        }
+        try
+        {
+            return new VirtualThreadExecutor((ExecutorService) newVirtualThreadPerTaskExecutor.invoke(null));
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            throw new UnsupportedOperationException(ex);
+        }
+    }
+    /**
+     * Returns number of running tasks.
+     * @return 
+     */
+    public int getActiveCount()
+    {
+        return active.get();
+    }
+
+    @Override
+    public void execute(Runnable command)
+    {
+        executor.execute(()->
+        {
+            active.incrementAndGet();
+            try
+            {
+                command.run();
+            }
+            finally
+            {
+                active.decrementAndGet();
+            }
+        });
+    }
+
+    @Override
+    public void shutdown()
+    {
+        executor.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+        return executor.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+        return executor.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+        return executor.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+    {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    private static Method method(Class<?> cls, String name)
+    {
+        try
+        {
+            return cls.getMethod(name);
+        }
+        catch (NoSuchMethodException ex)
+        {
+            return null;
+        }
+    }
+}
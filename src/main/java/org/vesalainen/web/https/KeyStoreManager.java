@@ -33,10 +33,18 @@ import java.security.NoSuchProviderException;
 import java.security.Principal;
 import java.security.PrivateKey;
 import java.security.SecureRandom;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
 import java.util.logging.Level;
@@ -50,13 +58,27 @@ import org.vesalainen.util.logging.JavaLogging;
 import org.vesalainen.web.cache.Config;
 
 /**
- *
+ * KeyStoreManager mints host certificates signed by own CA.
+ * <p>
+ * Host key pairs are generated in background to a pool. Minted keys and
+ * chains are kept in memory and keystore is stored in background, so that
+ * handshakes don't wait for keystore lock. Minting can be started before
+ * handshake with prepare.
  * @author Timo Vesalainen <timo.vesalainen@iki.fi>
  */
 public class KeyStoreManager extends X509ExtendedKeyManager
 {
     private KeyStore keyStore;
     private KeyPairGenerator keyPairGenerator;
+    private final ThreadLocal<KeyPairGenerator> hostKeyPairGenerator = ThreadLocal.withInitial(this::createHostKeyPairGenerator);
+    private BlockingQueue<KeyPair> keyPairs;
+    private final ConcurrentHashMap<String,Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,Entry> unstored = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,FutureTask<Entry>> minting = new ConcurrentHashMap<>();
+    private final ExecutorService keyExecutor = Executors.newSingleThreadExecutor(KeyStoreManager::newThread);
+    private final ExecutorService mintExecutor = Executors.newSingleThreadExecutor(KeyStoreManager::newThread);
+    private final AtomicBoolean filling = new AtomicBoolean();
+    private final AtomicBoolean storing = new AtomicBoolean();
     private X509Generator generator;
     private X509Certificate caCert;
     private PrivateKey issuerPrivateKey;
@@ -65,12 +87,11 @@ public class KeyStoreManager extends X509ExtendedKeyManager
     private SecuredFile securedFile;
     private byte[] seed;
     private char[] password;
-    private ReentrantLock lock;
+    private final ReentrantLock lock = new ReentrantLock();
     
-    public KeyStoreManager(File keyStoreFile, ReentrantLock lock)
+    public KeyStoreManager(File keyStoreFile)
     {
         this.securedFile = new SecuredFile(keyStoreFile);
-        this.lock = lock;
         try
         {
             String pwd = keyStoreFile.getAbsolutePath()+Config.getKeyStorePassword();
@@ -117,6 +138,8 @@ public class KeyStoreManager extends X509ExtendedKeyManager
                 issuerPrivateKey = (PrivateKey) keyStore.getKey(caAlias, password());
                 log.config("loaded %s", caCert);
             }
+            keyPairs = new ArrayBlockingQueue<>(Math.max(1, Config.getKeyPairPoolSize()));
+            fill();
         }
         catch (IOException | GeneralSecurityException ex)
         {
@@ -161,42 +184,228 @@ public class KeyStoreManager extends X509ExtendedKeyManager
         }
         return compressed;
     }
+    /**
+     * Ensures that hostname has key and certificate. Minting which is not
+     * yet started is run in calling thread, so that handshake doesn't wait
+     * for other hosts queued by prepare.
+     * @param hostname 
+     */
     public void ensureAlias(String hostname)
     {
+        if (entries.containsKey(hostname))
+        {
+            return;
+        }
+        FutureTask<Entry> task = new FutureTask<>(()->mint(hostname));
+        FutureTask<Entry> running = minting.putIfAbsent(hostname, task);
+        if (running == null)
+        {
+            running = task;
+        }
+        running.run();
         try
         {
-            if (!keyStore.containsAlias(hostname))
+            running.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new IllegalArgumentException(ex);
+        }
+        catch (ExecutionException ex)
+        {
+            log.log(Level.SEVERE, ex.getCause(), "%s", ex.getCause().getMessage());
+            throw new IllegalArgumentException(ex.getCause());
+        }
+    }
+    /**
+     * Starts minting of hostname in background if it doesn't have key yet.
+     * @param hostname 
+     */
+    public void prepare(String hostname)
+    {
+        if (!entries.containsKey(hostname))
+        {
+            FutureTask<Entry> task = new FutureTask<>(()->mint(hostname));
+            if (minting.putIfAbsent(hostname, task) == null)
             {
-                KeyPair keyPair = keyPairGenerator.generateKeyPair();
-                X509Certificate cert = generator.generateCertificate("CN="+hostname, Config.getCaDN(), keyPair, issuerPrivateKey, Config.getValidDays(), Config.getSigningAlgorithm());
-                keyStore.setKeyEntry(hostname, keyPair.getPrivate(), password, new X509Certificate[]{cert, caCert});
-                store();
-                log.config("generated %s", cert);
+                mintExecutor.execute(task);
+            }
+        }
+    }
+    
+    private Entry mint(String hostname) throws GeneralSecurityException, IOException
+    {
+        try
+        {
+            Entry entry = entries.get(hostname);
+            if (entry == null)
+            {
+                entry = load(hostname);
+                if (entry == null)
+                {
+                    KeyPair keyPair = takeKeyPair();
+                    X509Certificate cert = generator.generateCertificate("CN="+hostname, Config.getCaDN(), keyPair, issuerPrivateKey, Config.getValidDays(), Config.getSigningAlgorithm());
+                    entry = new Entry(keyPair.getPrivate(), new X509Certificate[]{cert, caCert});
+                    unstored.put(hostname, entry);
+                    storeLater();
+                    log.config("generated %s", cert);
+                }
+                entries.put(hostname, entry);
+            }
+            return entry;
+        }
+        finally
+        {
+            minting.remove(hostname);
+        }
+    }
+    
+    private Entry load(String alias) throws GeneralSecurityException
+    {
+        lock.lock();
+        try
+        {
+            if (!keyStore.isKeyEntry(alias))
+            {
+                return null;
+            }
+            PrivateKey key = (PrivateKey) keyStore.getKey(alias, password);
+            Certificate[] chain = keyStore.getCertificateChain(alias);
+            X509Certificate[] x509Chain = new X509Certificate[chain.length];
+            for (int ii=0;ii<chain.length;ii++)
+            {
+                x509Chain[ii] = (X509Certificate) chain[ii];
+            }
+            return new Entry(key, x509Chain);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    private KeyPair takeKeyPair()
+    {
+        KeyPair keyPair = keyPairs.poll();
+        fill();
+        if (keyPair == null)
+        {
+            log.fine("key pair pool empty");
+            keyPair = generateKeyPair();
+        }
+        return keyPair;
+    }
+    
+    private KeyPair generateKeyPair()
+    {
+        return hostKeyPairGenerator.get().generateKeyPair();
+    }
+    /**
+     * KeyPairGenerator is not thread safe, so each thread has its own.
+     */
+    private KeyPairGenerator createHostKeyPairGenerator()
+    {
+        try
+        {
+            KeyPairGenerator kpg;
+            if (Config.isEcHostKeys())
+            {
+                kpg = KeyPairGenerator.getInstance("EC", "BC");
+                kpg.initialize(new ECGenParameterSpec("secp256r1"));
+            }
+            else
+            {
+                kpg = KeyPairGenerator.getInstance(Config.getKeyPairAlgorithm(), "BC");
+                kpg.initialize(Config.getKeySize());
             }
+            return kpg;
         }
-        catch (GeneralSecurityException | IOException ex)
+        catch (GeneralSecurityException ex)
         {
             log.log(Level.SEVERE, ex, "%s", ex.getMessage());
             throw new IllegalArgumentException(ex);
         }
     }
+    /**
+     * Fills key pair pool in background.
+     */
+    private void fill()
+    {
+        if (Config.getKeyPairPoolSize() > 0 && filling.compareAndSet(false, true))
+        {
+            keyExecutor.execute(()->
+            {
+                try
+                {
+                    while (keyPairs.remainingCapacity() > 0)
+                    {
+                        keyPairs.offer(generateKeyPair());
+                    }
+                    log.fine("key pair pool full");
+                }
+                finally
+                {
+                    filling.set(false);
+                }
+            });
+        }
+    }
     
+    private void storeLater()
+    {
+        if (storing.compareAndSet(false, true))
+        {
+            keyExecutor.execute(()->
+            {
+                storing.set(false);
+                try
+                {
+                    store();
+                }
+                catch (IOException ex)
+                {
+                    log.log(Level.SEVERE, ex, "%s", ex.getMessage());
+                }
+            });
+        }
+    }
+    /**
+     * Adds minted entries to keystore and stores it.
+     * @throws IOException 
+     */
     public void store() throws IOException
     {
         lock.lock();
         try
         {
+            for (String alias : unstored.keySet())
+            {
+                Entry entry = unstored.remove(alias);
+                keyStore.setKeyEntry(alias, entry.key, password, entry.chain);
+            }
             securedFile.save((os)->
             {
                 keyStore.store(os, password);
                 log.config("stored %s", securedFile);
             });
         }
+        catch (KeyStoreException ex)
+        {
+            throw new IOException(ex);
+        }
         finally
         {
             lock.unlock();
         }
     }
+    
+    private static Thread newThread(Runnable runnable)
+    {
+        Thread thread = new Thread(runnable, "KeyStoreManager");
+        thread.setDaemon(true);
+        return thread;
+    }
     public void setServerName(String serverName)
     {
         this.serverName.set(serverName);
@@ -246,35 +455,30 @@ public class KeyStoreManager extends X509ExtendedKeyManager
     @Override
     public X509Certificate[] getCertificateChain(String alias)
     {
-        try
-        {
-            Certificate[] chain = keyStore.getCertificateChain(alias);
-            X509Certificate[] x509Chain = new X509Certificate[chain.length];
-            for (int ii=0;ii<chain.length;ii++)
-            {
-                x509Chain[ii] = (X509Certificate) chain[ii];
-            }
-            return x509Chain;
-        }
-        catch (KeyStoreException ex)
-        {
-            log.log(Level.SEVERE, ex, "%s", ex.getMessage());
-            throw new IllegalArgumentException(ex);
-        }
+        Entry entry = getEntry(alias);
+        return entry != null ? entry.chain.clone() : null;
     }
 
     @Override
     public PrivateKey getPrivateKey(String alias)
     {
-        try
+        Entry entry = getEntry(alias);
+        return entry != null ? entry.key : null;
+    }
+    
+    private Entry getEntry(String alias)
+    {
+        if (alias == null)
         {
-            return (PrivateKey) keyStore.getKey(alias, password);
+            return null;
         }
-        catch (KeyStoreException | NoSuchAlgorithmException | UnrecoverableKeyException ex)
+        Entry entry = entries.get(alias);
+        if (entry == null)
         {
-            log.log(Level.SEVERE, ex, "%s", ex.getMessage());
-            throw new IllegalArgumentException(ex);
+            ensureAlias(alias);
+            entry = entries.get(alias);
         }
+        return entry;
     }
 
     public SNIConsumer getSNIConsumer()
@@ -310,4 +514,17 @@ public class KeyStoreManager extends X509ExtendedKeyManager
         }
         
     }
+    
+    private static class Entry
+    {
+        private final PrivateKey key;
+        private final X509Certificate[] chain;
+
+        public Entry(PrivateKey key, X509Certificate[] chain)
+        {
+            this.key = key;
+            this.chain = chain;
+        }
+        
+    }
 }
@@ -91,6 +91,7 @@ public abstract class HttpHeaderParser extends JavaLogging
     private int port;
     private String userinfo;
     private String requestTarget;
+    private boolean persistent;
 
     protected HttpHeaderParser(Scheme scheme, ByteBuffer bb)
     {
@@ -147,6 +148,12 @@ public abstract class HttpHeaderParser extends JavaLogging
         headerPart = extractHeader();
         parseReq(headerPart);
         isRequest = true;
+        persistent = 
+                CharSequences.equals("1.1", version) &&
+                !contains(Connection, "close") &&
+                !contains(ProxyConnection, "close") &&
+                !hasHeader(ContentLength) &&
+                !hasHeader(TransferEncoding);
         offset = 0;
         time = SimpleMutableDateTime.now(Cache.getClock());
         if (host == null)
@@ -165,6 +172,26 @@ public abstract class HttpHeaderParser extends JavaLogging
         }
     }
     
+    /**
+     * Returns copy of parsed request which uses given buffer instead of
+     * this parsers buffer.
+     * @param buffer
+     * @return
+     * @throws IOException 
+     */
+    public HttpHeaderParser copyRequest(ByteBuffer buffer) throws IOException
+    {
+        ByteBuffer src = bb.duplicate();
+        src.position(0);
+        buffer.clear();
+        buffer.put(src);
+        buffer.flip();
+        HttpHeaderParser copy = getInstance(scheme, buffer);
+        copy.parseRequest();
+        copy.time = time;
+        return copy;
+    }
+    
     public void parseResponse(long millis) throws IOException
     {
         host = null;
@@ -866,6 +893,21 @@ public abstract class HttpHeaderParser extends JavaLogging
         removeHeader(Connection);
     }
     
+    /**
+     * Returns true if user agent connection can be used for next request.
+     * This is set from request and cleared if response is not delimited.
+     * @return 
+     */
+    public boolean isPersistent()
+    {
+        return persistent;
+    }
+
+    public void setPersistent(boolean persistent)
+    {
+        this.persistent = persistent;
+    }
+    
     public boolean isRefreshAttempt()
     {
         return hasHeader(IfNoneMatch) || hasHeader(IfModifiedSince);
@@ -1024,6 +1066,35 @@ public abstract class HttpHeaderParser extends JavaLogging
         }
         bb.flip();
     }
+    /**
+     * Reads available bytes from non-blocking channel. Unlike readHeader, 
+     * buffer is not cleared, so this is called repeatedly with cleared 
+     * buffer until whole header is read.
+     * @param channel
+     * @return True when whole header was read and buffer is flipped.
+     * @throws IOException 
+     */
+    public boolean readHeaderPart(ByteChannel channel) throws IOException
+    {
+        while (!hasWholeHeader())
+        {
+            if (!bb.hasRemaining())
+            {
+                throw new IOException("ByteBuffer capacity reached "+bb);
+            }
+            int rc = channel.read(bb);
+            if (rc == -1)
+            {
+                throw new EOFException(channel+"\n["+peek+"]");
+            }
+            if (rc == 0)
+            {
+                return false;
+            }
+        }
+        bb.flip();
+        return true;
+    }
 
     public void checkContent(SocketChannel channel) throws IOException
     {
@@ -16,10 +16,14 @@
  */
 package org.vesalainen.web.cache;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import static java.nio.charset.StandardCharsets.US_ASCII;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Clock;
@@ -31,6 +35,7 @@ import java.util.stream.Stream;
 import org.junit.AfterClass;
 import org.junit.Before;
 import org.junit.BeforeClass;
+import static org.junit.Assert.*;
 import org.vesalainen.test.DebugHelper;
 import org.vesalainen.util.logging.JavaLogging;
 
@@ -168,5 +173,57 @@ public class Base extends JavaLogging
             throw new IllegalArgumentException(ex);
         }
     }
+    /**
+     * Reads one response. Buffer is in read mode and may contain part of 
+     * next response.
+     */
+    protected int readResponse(SocketChannel channel, ByteBuffer bb) throws IOException
+    {
+        int end;
+        while ((end = indexOf(bb, "\r\n\r\n")) == -1)
+        {
+            fill(channel, bb);
+        }
+        String header = new String(bb.array(), bb.position(), end - bb.position(), US_ASCII);
+        int status = Integer.parseInt(header.substring(9, 12));
+        int idx = header.indexOf("Content-Length: ");
+        assertTrue(header, idx != -1);
+        int eol = header.indexOf("\r\n", idx);
+        int length = Integer.parseInt(header.substring(idx+16, eol));
+        int size = end + 4 + length - bb.position();
+        while (bb.remaining() < size)
+        {
+            fill(channel, bb);
+        }
+        bb.position(bb.position() + size);
+        return status;
+    }
+    protected void fill(SocketChannel channel, ByteBuffer bb) throws IOException
+    {
+        bb.compact();
+        int rc = channel.read(bb);
+        bb.flip();
+        if (rc == -1)
+        {
+            throw new EOFException();
+        }
+    }
+    protected int indexOf(ByteBuffer bb, String str)
+    {
+        byte[] b = str.getBytes(US_ASCII);
+        for (int ii=bb.position();ii<=bb.limit()-b.length;ii++)
+        {
+            int jj=0;
+            while (jj<b.length && bb.get(ii+jj) == b[jj])
+            {
+                jj++;
+            }
+            if (jj == b.length)
+            {
+                return ii;
+            }
+        }
+        return -1;
+    }
     
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.nio.ByteBuffer;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class BufferPoolTest
+{
+    
+    public BufferPoolTest()
+    {
+    }
+
+    @Test
+    public void testGet()
+    {
+        BufferPool pool = new BufferPool(1024*1024);
+        ByteBuffer b1 = pool.get(100);
+        assertTrue(b1.isDirect());
+        assertEquals(4096, b1.capacity());
+        assertEquals(100, b1.limit());
+        ByteBuffer b2 = pool.get(16384);
+        assertEquals(16384, b2.capacity());
+        ByteBuffer b3 = pool.get(16385);
+        assertEquals(32768, b3.capacity());
+        ByteBuffer b4 = pool.get(1000000);
+        assertEquals(1000000, b4.capacity());
+        assertEquals(4, pool.getAllocations());
+        assertEquals(4096+16384+32768+1000000, pool.getOutstandingBytes());
+        pool.release(b1);
+        pool.release(b2);
+        pool.release(b3);
+        pool.release(b4);
+        assertEquals(0, pool.getOutstandingBytes());
+        assertSame(b2, pool.get(10000+6384));
+        assertSame(b1, pool.get(4096));
+        assertNotSame(b4, pool.get(1000000));
+        assertEquals(2, pool.getReuses());
+    }
+    @Test
+    public void testShared() throws InterruptedException
+    {
+        BufferPool pool = new BufferPool(1024*1024);
+        ByteBuffer[] arr = new ByteBuffer[10];
+        for (int ii=0;ii<arr.length;ii++)
+        {
+            arr[ii] = pool.get(4096);
+        }
+        for (ByteBuffer bb : arr)
+        {
+            pool.release(bb);
+        }
+        assertEquals(6*4096, pool.getPooledBytes());
+        Thread thread = new Thread(()->
+        {
+            for (int ii=0;ii<6;ii++)
+            {
+                pool.get(4096);
+            }
+        });
+        thread.start();
+        thread.join();
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(6, pool.getReuses());
+    }
+    @Test
+    public void testLease() throws InterruptedException
+    {
+        BufferPool pool = new BufferPool(1024*1024);
+        Object owner = new Object();
+        BufferPool.Lease lease = pool.lease(owner);
+        lease.get(4096);
+        lease.get(16384);
+        assertEquals(1, pool.getLeaseCount());
+        lease.release();
+        assertEquals(0, pool.getOutstandingBytes());
+        assertEquals(0, pool.getLeaseCount());
+        try
+        {
+            lease.get(4096);
+            fail("should throw");
+        }
+        catch (IllegalStateException ex)
+        {
+        }
+        leak(pool);
+        for (int ii=0;ii<100 && pool.getLeaks() == 0;ii++)
+        {
+            System.gc();
+            Thread.sleep(10);
+            pool.get(100);
+        }
+        assertEquals(1, pool.getLeaks());
+        assertEquals(0, pool.getLeaseCount());
+    }
+
+    private void leak(BufferPool pool)
+    {
+        BufferPool.Lease lease = pool.lease(new Object());
+        lease.get(4096);
+    }
+}
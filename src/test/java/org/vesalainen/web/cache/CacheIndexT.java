@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import org.junit.Test;
+import org.vesalainen.web.cache.CacheEntry.State;
+
+/**
+ * Measures hit path throughput of CacheIndex with increasing number of
+ * threads.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class CacheIndexT
+{
+    private static final int KEYS = 100000;
+    private static final long MILLIS = 2000;
+
+    @Test
+    public void contention() throws Exception
+    {
+        CacheIndex index = new CacheIndex();
+        byte[][] keys = new byte[KEYS][];
+        Path dir = Paths.get("cache");
+        long deadline = Long.MAX_VALUE;
+        for (int ii=0;ii<KEYS;ii++)
+        {
+            keys[ii] = Cache.digest("key"+ii).clone();
+            index.put(new IndexEntry(keys[ii], dir.resolve("key"+ii), 1000, State.Full, deadline, VaryMap.Empty));
+        }
+        int processors = Runtime.getRuntime().availableProcessors();
+        for (int threads=1;threads<=processors;threads*=2)
+        {
+            LongAdder hits = new LongAdder();
+            ExecutorService exec = Executors.newFixedThreadPool(threads);
+            long end = System.currentTimeMillis() + MILLIS;
+            Future<?>[] futures = new Future<?>[threads];
+            for (int tt=0;tt<threads;tt++)
+            {
+                int seed = tt;
+                futures[tt] = exec.submit(()->
+                {
+                    int ii = seed*7919;
+                    long count = 0;
+                    while (System.currentTimeMillis() < end)
+                    {
+                        byte[] key = keys[ii++ % KEYS];
+                        ReentrantLock lock = index.getLock(key);
+                        lock.lock();
+                        try
+                        {
+                            List<IndexEntry> list = index.get(key);
+                            if (!list.isEmpty() && !list.get(0).isStale(0))
+                            {
+                                count++;
+                            }
+                        }
+                        finally
+                        {
+                            lock.unlock();
+                        }
+                    }
+                    hits.add(count);
+                });
+            }
+            for (Future<?> f : futures)
+            {
+                f.get();
+            }
+            exec.shutdown();
+            exec.awaitTermination(1, TimeUnit.MINUTES);
+            System.err.printf("threads=%d hits/s=%d\n", threads, hits.sum()*1000/MILLIS);
+        }
+    }
+}
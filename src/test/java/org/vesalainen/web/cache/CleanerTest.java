@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class CleanerTest
+{
+    
+    public CleanerTest()
+    {
+    }
+
+    @Test
+    public void testClean()
+    {
+        Cleaner cleaner = new Cleaner("test cleaner");
+        AtomicInteger count = new AtomicInteger();
+        Object obj = new Object();
+        Cleaner.Cleanable cleanable = cleaner.register(obj, count::incrementAndGet);
+        assertEquals(1, cleaner.getCount());
+        cleanable.clean();
+        cleanable.clean();
+        assertEquals(1, count.get());
+        assertEquals(0, cleaner.getCount());
+        assertEquals(0, cleaner.getCollected());
+    }
+    @Test
+    public void testCollected() throws InterruptedException
+    {
+        Cleaner cleaner = new Cleaner("test cleaner");
+        AtomicInteger count = new AtomicInteger();
+        cleaner.register(new Object(), count::incrementAndGet);
+        for (int ii=0;ii<100 && count.get() == 0;ii++)
+        {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, count.get());
+        assertEquals(0, cleaner.getCount());
+        assertEquals(1, cleaner.getCollected());
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Compares thread pool and virtual threads with slow clients. Each client
+ * sends half of the request header, waits and then sends the rest. Handler
+ * reads header with blocking reads like ConnectionHandler does.
+ * <p>
+ * Virtual threads need java 21. Open file limit must be over 2*CLIENTS.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class ConnectionModeT
+{
+    private static final int CLIENTS = 10000;
+    private static final long DELAY = 1000;
+    private static final byte[] First = "GET /index.html HTTP/1.1\r\n".getBytes(US_ASCII);
+    private static final byte[] Second = "Host: localhost\r\n\r\n".getBytes(US_ASCII);
+    private static final byte[] Response = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(US_ASCII);
+
+    @Test
+    public void threads() throws Exception
+    {
+        run("threads", new ThreadPoolExecutor(10, Integer.MAX_VALUE, 1, TimeUnit.MINUTES, new SynchronousQueue<>()));
+    }
+    @Test
+    public void virtual() throws Exception
+    {
+        if (!VirtualThreadExecutor.isSupported())
+        {
+            System.err.println("virtual threads not supported in java "+System.getProperty("java.version"));
+            return;
+        }
+        run("virtual", VirtualThreadExecutor.create());
+    }
+    private void run(String mode, ExecutorService workers) throws Exception
+    {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        threadMXBean.resetPeakThreadCount();
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), CLIENTS);
+            Thread acceptor = new Thread(()->accept(server, workers), "acceptor");
+            acceptor.start();
+            long start = System.currentTimeMillis();
+            SocketChannel[] clients = new SocketChannel[CLIENTS];
+            for (int ii=0;ii<CLIENTS;ii++)
+            {
+                clients[ii] = SocketChannel.open(server.getLocalAddress());
+                clients[ii].write(ByteBuffer.wrap(First));
+            }
+            long connected = System.currentTimeMillis();
+            Thread.sleep(DELAY);
+            for (SocketChannel client : clients)
+            {
+                client.write(ByteBuffer.wrap(Second));
+            }
+            int ok = 0;
+            ByteBuffer bb = ByteBuffer.allocate(Response.length);
+            for (SocketChannel client : clients)
+            {
+                bb.clear();
+                while (bb.hasRemaining() && client.read(bb) != -1)
+                {
+                }
+                if (!bb.hasRemaining())
+                {
+                    ok++;
+                }
+                client.close();
+            }
+            long end = System.currentTimeMillis();
+            System.err.printf("%s clients=%d ok=%d connect=%d ms total=%d ms (delay %d ms) peak threads=%d\n", 
+                    mode, CLIENTS, ok, connected-start, end-start, DELAY, threadMXBean.getPeakThreadCount());
+            acceptor.interrupt();
+        }
+        finally
+        {
+            workers.shutdownNow();
+        }
+    }
+    private void accept(ServerSocketChannel server, ExecutorService workers)
+    {
+        while (true)
+        {
+            try
+            {
+                SocketChannel channel = server.accept();
+                workers.submit(()->handle(channel));
+            }
+            catch (IOException ex)
+            {
+                return;
+            }
+        }
+    }
+    private Void handle(SocketChannel channel) throws IOException
+    {
+        try
+        {
+            ByteBuffer bb = ByteBuffer.allocate(4096);
+            while (!hasWholeHeader(bb))
+            {
+                if (channel.read(bb) == -1)
+                {
+                    return null;
+                }
+            }
+            channel.write(ByteBuffer.wrap(Response));
+        }
+        finally
+        {
+            channel.close();
+        }
+        return null;
+    }
+    private static boolean hasWholeHeader(ByteBuffer bb)
+    {
+        int pos = bb.position();
+        return pos >= 4 && 
+                bb.get(pos-4) == '\r' && 
+                bb.get(pos-3) == '\n' && 
+                bb.get(pos-2) == '\r' && 
+                bb.get(pos-1) == '\n';
+    }
+}
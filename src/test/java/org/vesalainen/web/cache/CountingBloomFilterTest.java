@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class CountingBloomFilterTest
+{
+    
+    public CountingBloomFilterTest()
+    {
+    }
+
+    @Test
+    public void test1()
+    {
+        int count = 10000;
+        CountingBloomFilter filter = new CountingBloomFilter(count);
+        for (int ii=0;ii<count;ii++)
+        {
+            filter.add(Cache.digest("http://www.example.com/"+ii));
+        }
+        for (int ii=0;ii<count;ii++)
+        {
+            assertTrue(filter.mightContain(Cache.digest("http://www.example.com/"+ii)));
+        }
+        int falsePositives = 0;
+        for (int ii=count;ii<2*count;ii++)
+        {
+            if (filter.mightContain(Cache.digest("http://www.example.com/"+ii)))
+            {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives "+falsePositives, falsePositives < count/50);
+        for (int ii=0;ii<count;ii+=2)
+        {
+            filter.remove(Cache.digest("http://www.example.com/"+ii));
+        }
+        for (int ii=1;ii<count;ii+=2)
+        {
+            assertTrue(filter.mightContain(Cache.digest("http://www.example.com/"+ii)));
+        }
+        int removed = 0;
+        for (int ii=0;ii<count;ii+=2)
+        {
+            if (!filter.mightContain(Cache.digest("http://www.example.com/"+ii)))
+            {
+                removed++;
+            }
+        }
+        assertTrue("removed "+removed, removed > count/2*9/10);
+    }
+    @Test
+    public void testSaturation()
+    {
+        CountingBloomFilter filter = new CountingBloomFilter(1);
+        byte[] d1 = Cache.digest("a").clone();
+        for (int ii=0;ii<20;ii++)
+        {
+            filter.add(d1);
+        }
+        for (int ii=0;ii<40;ii++)
+        {
+            filter.remove(d1);
+        }
+        // saturated counters stay
+        assertTrue(filter.mightContain(d1));
+    }
+    
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class DedupStoreTest
+{
+    private Path dir;
+    
+    public DedupStoreTest()
+    {
+    }
+
+    @Before
+    public void before() throws IOException
+    {
+        dir = Files.createTempDirectory("test");
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        try (Stream<Path> stream = Files.walk(dir))
+        {
+            stream.sorted(Comparator.reverseOrder()).forEach((p)->p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test1() throws IOException
+    {
+        DedupStore ds = new DedupStore();
+        Path p1 = write("f1", "same content");
+        Path p2 = write("f2", "same content");
+        Path p3 = write("f3", "same content");
+        Path p4 = write("f4", "other content");
+        byte[] d1 = Cache.digest("same content").clone();
+        byte[] d4 = Cache.digest("other content").clone();
+        assertFalse(ds.link(p1, d1, 12));
+        assertTrue(ds.link(p2, d1, 12));
+        assertTrue(ds.link(p3, d1, 12));
+        assertFalse(ds.link(p4, d4, 13));
+        assertTrue(Files.isSameFile(p1, p2));
+        assertTrue(Files.isSameFile(p1, p3));
+        assertFalse(Files.exists(dir.resolve("f2.lnk")));
+        assertEquals(24, ds.getSavedBytes());
+        assertEquals(2, ds.getLinks());
+        assertEquals(49.0/25.0, ds.getRatio(), 1e-10);
+        
+        ds.remove(p1);
+        Files.delete(p1);
+        assertEquals(12, ds.getSavedBytes());
+        Path p5 = write("f5", "same content");
+        assertTrue(ds.link(p5, d1, 12));
+        assertTrue(Files.isSameFile(p2, p5));
+        assertEquals("same content", new String(Files.readAllBytes(p5), StandardCharsets.UTF_8));
+        ds.remove(p2);
+        ds.remove(p3);
+        ds.remove(p5);
+        ds.remove(p4);
+        assertEquals(0, ds.getSavedBytes());
+        assertEquals(1.0, ds.getRatio(), 1e-10);
+        
+        DedupStore ds2 = new DedupStore();
+        ds2.add(p2, d1, 12);
+        ds2.add(p5, d1, 12);
+        ds2.add(p4, d1, 12);
+        assertEquals(12, ds2.getSavedBytes());
+    }
+
+    private Path write(String name, String content) throws IOException
+    {
+        Path path = dir.resolve(name);
+        Files.write(path, content.getBytes(StandardCharsets.UTF_8));
+        return path;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class DigestTableTest
+{
+    
+    public DigestTableTest()
+    {
+    }
+
+    @Test
+    public void test1()
+    {
+        DigestTable<String> table = new DigestTable<>();
+        byte[] d1 = Cache.digest("http://www.example.com/").clone();
+        byte[] d2 = Cache.digest("http://www.example.com/index.html").clone();
+        assertNull(table.get(d1));
+        assertNull(table.put(d1, "1"));
+        assertEquals("1", table.get(d1));
+        assertNull(table.get(d2));
+        assertEquals("1", table.put(d1, "2"));
+        assertEquals("2", table.get(d1));
+        assertEquals(1, table.size());
+        assertEquals("2", table.remove(d1));
+        assertNull(table.remove(d1));
+        assertTrue(table.isEmpty());
+    }
+    @Test
+    public void testCollisions()
+    {
+        // same middle bytes -> same home slot
+        DigestTable<Integer> table = new DigestTable<>(4);
+        Map<ByteBuffer,Integer> map = new HashMap<>();
+        Random random = new Random(12345);
+        for (int round=0;round<10000;round++)
+        {
+            byte[] d = new byte[DigestTable.DigestLength];
+            d[0] = (byte) random.nextInt(8);
+            d[19] = (byte) random.nextInt(8);
+            int value = random.nextInt();
+            if (random.nextBoolean())
+            {
+                assertEquals(map.put(ByteBuffer.wrap(d), value), table.put(d, value));
+            }
+            else
+            {
+                assertEquals(map.remove(ByteBuffer.wrap(d)), table.remove(d));
+            }
+            assertEquals(map.size(), table.size());
+            for (Map.Entry<ByteBuffer,Integer> e : map.entrySet())
+            {
+                assertEquals(e.getValue(), table.get(e.getKey().array()));
+            }
+        }
+    }
+    @Test
+    public void testRandom()
+    {
+        DigestTable<Integer> table = new DigestTable<>();
+        Map<ByteBuffer,Integer> map = new HashMap<>();
+        Random random = new Random(54321);
+        for (int ii=0;ii<100000;ii++)
+        {
+            byte[] d = Cache.digest("key"+random.nextInt(50000)).clone();
+            if (random.nextInt(3) != 0)
+            {
+                assertEquals(map.put(ByteBuffer.wrap(d), ii), table.put(d, ii));
+            }
+            else
+            {
+                assertEquals(map.remove(ByteBuffer.wrap(d)), table.remove(d));
+            }
+        }
+        assertEquals(map.size(), table.size());
+        for (Map.Entry<ByteBuffer,Integer> e : map.entrySet())
+        {
+            assertEquals(e.getValue(), table.get(e.getKey().array()));
+        }
+    }
+    
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class DnsCacheTest
+{
+    private static final InetAddress[] Addresses = new InetAddress[]{InetAddress.getLoopbackAddress()};
+    
+    public DnsCacheTest()
+    {
+    }
+
+    @Test
+    public void testTtl() throws Exception
+    {
+        AtomicLong clock = new AtomicLong();
+        AtomicInteger count = new AtomicInteger();
+        DnsCache cache = new DnsCache((h)->
+        {
+            count.incrementAndGet();
+            if ("bad".equals(h))
+            {
+                throw new UnknownHostException(h);
+            }
+            return Addresses;
+        }, 2, ()->1000, ()->100, clock::get);
+        
+        assertArrayEquals(Addresses, cache.resolve("host"));
+        assertArrayEquals(Addresses, cache.resolve("HOST"));
+        assertEquals(1, count.get());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        
+        try
+        {
+            cache.resolve("bad");
+            fail();
+        }
+        catch (UnknownHostException ex)
+        {
+        }
+        try
+        {
+            cache.resolve("bad");
+            fail();
+        }
+        catch (UnknownHostException ex)
+        {
+        }
+        assertEquals(2, count.get());
+        assertEquals(1, cache.getNegativeHits());
+        
+        clock.set(100);
+        try
+        {
+            cache.resolve("bad");
+            fail();
+        }
+        catch (UnknownHostException ex)
+        {
+        }
+        assertEquals(3, count.get());
+        
+        clock.set(1000);
+        cache.evict();
+        assertEquals(0, cache.getSize());
+        assertArrayEquals(Addresses, cache.resolve("host"));
+        assertEquals(4, count.get());
+        assertEquals(4, cache.getLookups());
+    }
+    
+    @Test
+    public void testRefresh() throws Exception
+    {
+        AtomicLong clock = new AtomicLong();
+        AtomicInteger count = new AtomicInteger();
+        CountDownLatch block = new CountDownLatch(1);
+        DnsCache cache = new DnsCache((h)->
+        {
+            if (count.incrementAndGet() > 1)
+            {
+                try
+                {
+                    block.await();
+                }
+                catch (InterruptedException ex)
+                {
+                }
+                throw new UnknownHostException(h);
+            }
+            return Addresses;
+        }, 1, ()->1000, ()->100, clock::get);
+        
+        assertArrayEquals(Addresses, cache.resolve("host"));
+        clock.set(900);
+        // refresh is started but cached addresses are returned without waiting
+        assertArrayEquals(Addresses, cache.resolve("host"));
+        assertArrayEquals(Addresses, cache.resolve("host"));
+        assertEquals(1, cache.getRefreshes());
+        block.countDown();
+        while (cache.getLookups() < 2)
+        {
+            Thread.sleep(10);
+        }
+        // failed refresh keeps old addresses
+        assertArrayEquals(Addresses, cache.resolve("host"));
+        assertEquals(2, count.get());
+        assertEquals(3, cache.getHits());
+    }
+    
+    @Test
+    public void testCollapse() throws Exception
+    {
+        AtomicInteger count = new AtomicInteger();
+        DnsCache cache = new DnsCache((h)->
+        {
+            count.incrementAndGet();
+            try
+            {
+                Thread.sleep(100);
+            }
+            catch (InterruptedException ex)
+            {
+            }
+            return Addresses;
+        }, 4, ()->1000, ()->100, System::currentTimeMillis);
+        Thread[] threads = new Thread[4];
+        for (int ii=0;ii<threads.length;ii++)
+        {
+            threads[ii] = new Thread(()->
+            {
+                try
+                {
+                    cache.resolve("host");
+                }
+                catch (Exception ex)
+                {
+                    throw new IllegalArgumentException(ex);
+                }
+            });
+            threads[ii].start();
+        }
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+        assertEquals(1, count.get());
+        assertTrue(cache.getMaxLookupMillis() >= 100);
+    }
+    
+    @Test
+    public void testRuntimeException() throws Exception
+    {
+        AtomicInteger count = new AtomicInteger();
+        DnsCache cache = new DnsCache((h)->
+        {
+            if (count.incrementAndGet() == 1)
+            {
+                throw new IllegalStateException(h);
+            }
+            return Addresses;
+        }, 1, ()->1000, ()->100, System::currentTimeMillis);
+        try
+        {
+            cache.resolve("host");
+            fail();
+        }
+        catch (Exception ex)
+        {
+        }
+        // failed lookup is not reused
+        assertArrayEquals(Addresses, cache.resolve("host"));
+        assertEquals(2, count.get());
+    }
+    
+}
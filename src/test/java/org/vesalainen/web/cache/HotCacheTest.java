@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.*;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class HotCacheTest
+{
+    
+    public HotCacheTest()
+    {
+    }
+
+    @Test
+    public void test1() throws IOException
+    {
+        Path p1 = Files.createTempFile("hot", null);
+        Path p2 = Files.createTempFile("hot", null);
+        Files.write(p1, "0123456789".getBytes(StandardCharsets.US_ASCII));
+        Files.write(p2, "abcdefghij".getBytes(StandardCharsets.US_ASCII));
+        try (FileChannel fc1 = FileChannel.open(p1, READ);
+            FileChannel fc2 = FileChannel.open(p2, READ))
+        {
+            HotCache hc = new HotCache(30, 100);
+            ByteBuffer hdr = ByteBuffer.wrap("HDR\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            hdr.position(hdr.limit());
+            hc.offer(p1, "t1", hdr, fc1, 0, fc1.size());
+            assertNull(hc.get(p1, "t1"));
+            hc.offer(p1, "t1", hdr, fc1, 0, fc1.size());
+            HotCache.Hot hot = hc.get(p1, "t1");
+            assertNotNull(hot);
+            assertNull(hc.get(p1, "t2"));
+            assertEquals(17, hc.getSize());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            hot.send(Channels.newChannel(baos));
+            assertEquals("HDR\r\n\r\n0123456789", baos.toString("US-ASCII"));
+            assertEquals(1, hc.getHits());
+            assertEquals(17, hc.getBytes());
+            assertEquals(p1, hot.getPath());
+            assertTrue(hot.touch(1000, 500));
+            assertFalse(hot.touch(1400, 500));
+            assertTrue(hot.touch(1500, 500));
+            
+            hc.offer(p2, "t2", hdr, fc2, 0, fc2.size());
+            hc.offer(p2, "t2", hdr, fc2, 0, fc2.size());
+            assertNull(hc.get(p1, "t1"));
+            assertNotNull(hc.get(p2, "t2"));
+            assertEquals(1, hc.getEvictions());
+            assertEquals(1, hc.getCount());
+            hc.remove(p2);
+            assertNull(hc.get(p2, "t2"));
+            assertEquals(0, hc.getSize());
+            
+            hc = new HotCache(100, 10);
+            hc.offer(p1, "t1", hdr, fc1, 0, fc1.size());
+            hc.offer(p1, "t1", hdr, fc1, 0, fc1.size());
+            assertNull(hc.get(p1, "t1"));
+        }
+        finally
+        {
+            Files.delete(p1);
+            Files.delete(p2);
+        }
+    }
+    
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class InFlightRegistryTest
+{
+    
+    public InFlightRegistryTest()
+    {
+    }
+
+    @Test
+    public void testGetOrCreate()
+    {
+        InFlightRegistry<String> reg = new InFlightRegistry<>();
+        byte[] d1 = new byte[20];
+        d1[10] = 1;
+        byte[] d2 = new byte[20];
+        d2[19] = 2;
+        assertNull(reg.get(d1, "a"));
+        assertEquals("f1", reg.getOrCreate(d1, "a", ()->"f1"));
+        assertEquals("f1", reg.getOrCreate(d1, "a", ()->"f2"));
+        assertEquals("f1", reg.get(d1.clone(), "a"));
+        assertEquals("f3", reg.getOrCreate(d1, "b", ()->"f3"));
+        assertEquals("f4", reg.getOrCreate(d2, "a", ()->"f4"));
+        assertEquals(3, reg.size());
+        assertEquals(3, reg.getFetches());
+        assertEquals(2, reg.getAttaches());
+        reg.attached();
+        assertEquals(1.0, reg.getCollapseRatio(), 1e-9);
+        reg.remove(d1, "a", "f2");
+        assertEquals(3, reg.size());
+        reg.remove(d1, "a", "f1");
+        assertNull(reg.get(d1, "a"));
+        assertEquals(2, reg.size());
+    }
+    @Test
+    public void testFailedFetch()
+    {
+        List<String> failed = new ArrayList<>();
+        InFlightRegistry<String> reg = new InFlightRegistry<>((f)->!failed.contains(f));
+        byte[] d1 = new byte[20];
+        assertEquals("f1", reg.getOrCreate(d1, "a", ()->"f1"));
+        // fetch gave up without removing registration
+        failed.add("f1");
+        assertNull(reg.get(d1, "a"));
+        assertEquals("f2", reg.getOrCreate(d1, "a", ()->"f2"));
+        failed.add("f2");
+        // retry replaces dead fetch
+        assertEquals("f3", reg.getOrCreate(d1, "a", ()->"f3"));
+        assertEquals("f3", reg.getOrCreate(d1, "a", ()->"f4"));
+        assertEquals(1, reg.size());
+        reg.removeIf("f3"::equals);
+        assertEquals(0, reg.size());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.vesalainen.web.cache.CacheEntry.State;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class IndexStoreTest
+{
+    private Path dir;
+    
+    public IndexStoreTest()
+    {
+    }
+
+    @Before
+    public void before() throws IOException
+    {
+        dir = Files.createTempDirectory("test");
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir))
+        {
+            ds.forEach((p)->
+            {
+                try
+                {
+                    Files.delete(p);
+                }
+                catch (IOException ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            });
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void test1() throws IOException
+    {
+        Path file = dir.resolve("index");
+        IndexStore store = new IndexStore(dir, file);
+        assertNull(store.load());
+        CacheIndex index = new CacheIndex(4);
+        index.setStore(store);
+        index.build(dir);
+        assertEquals(0, index.size());
+        for (int ii=0;ii<100;ii++)
+        {
+            index.put(entry(ii));
+        }
+        index.snapshot();
+        IndexEntry e100 = entry(100);
+        index.put(e100);
+        index.stored(e100);
+        index.remove(dir.resolve("file5"));
+        store.close();
+        
+        Map<Path,IndexEntry> map = load(store);
+        assertEquals(100, map.size());
+        assertNull(map.get(dir.resolve("file5")));
+        IndexEntry e7 = map.get(dir.resolve("file7"));
+        assertArrayEquals(entry(7).getKey(), e7.getKey());
+        assertEquals(State.Full, e7.getState());
+        assertEquals(7000, e7.getSize());
+        assertEquals(1007, e7.getDeadline());
+        assertEquals(entry(7).getVaryMap(), e7.getVaryMap());
+        assertNotNull(map.get(dir.resolve("file100")));
+        // truncated journal
+        Path journal = dir.resolve("index.jnl");
+        try (FileChannel fc = FileChannel.open(journal, StandardOpenOption.WRITE))
+        {
+            fc.truncate(fc.size()-1);
+        }
+        map = load(store);
+        assertEquals(101, map.size());
+        assertNotNull(map.get(dir.resolve("file5")));
+        assertNotNull(map.get(dir.resolve("file100")));
+        // corrupted snapshot
+        try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE))
+        {
+            fc.truncate(fc.size()-1);
+        }
+        assertNull(store.load());
+    }
+    private Map<Path,IndexEntry> load(IndexStore store)
+    {
+        Collection<IndexEntry> entries = store.load();
+        assertNotNull(entries);
+        Map<Path,IndexEntry> map = new HashMap<>();
+        entries.forEach((e)->map.put(e.getPath(), e));
+        return map;
+    }
+    private IndexEntry entry(int ii)
+    {
+        VaryMap varyMap = VaryMap.Empty;
+        if ((ii % 2) == 0)
+        {
+            varyMap = new VaryMap();
+            varyMap.put(CacheConstants.Range, "bytes="+ii);
+        }
+        return new IndexEntry(Cache.digest("http://www.example.com/"+ii).clone(), dir.resolve("file"+ii), 1000*ii, State.Full, 1000+ii, varyMap);
+    }
+    
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static org.junit.Assert.*;
+import static org.vesalainen.web.cache.CacheConstants.*;
+import org.junit.Test;
+
+/**
+ * Compares cache hit throughput of new connection per request, persistent
+ * connection and pipelined requests.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class KeepAliveT extends Base
+{
+    private static final int REQUESTS = 10000;
+    private static final int DEPTH = 16;
+    private static final String Path = "/keepAlive";
+    private final InetSocketAddress proxy = new InetSocketAddress(proxyHost, proxyPort);
+
+    public KeepAliveT()
+    {
+        super(KeepAliveT.class);
+    }
+
+    @Test
+    public void benchmark() throws IOException
+    {
+        server.setContent(Path, createContent(4096));
+        assertEquals(200, createClient(Path).retrieve());
+        assertEquals(200, createClient(Path).retrieve());
+        byte[] request = request(false);
+        byte[] closing = request(true);
+        int requestCount = server.getRequestCount();
+        
+        long start = System.nanoTime();
+        for (int ii=0;ii<REQUESTS;ii++)
+        {
+            try (SocketChannel channel = SocketChannel.open(proxy))
+            {
+                channel.write(ByteBuffer.wrap(closing));
+                ByteBuffer bb = ByteBuffer.allocate(BufferSize);
+                bb.flip();
+                assertEquals(200, readResponse(channel, bb));
+            }
+        }
+        print("new connection", start);
+        
+        start = System.nanoTime();
+        try (SocketChannel channel = SocketChannel.open(proxy))
+        {
+            ByteBuffer bb = ByteBuffer.allocate(BufferSize);
+            bb.flip();
+            for (int ii=0;ii<REQUESTS;ii++)
+            {
+                channel.write(ByteBuffer.wrap(request));
+                assertEquals(200, readResponse(channel, bb));
+            }
+        }
+        print("persistent", start);
+        
+        start = System.nanoTime();
+        try (SocketChannel channel = SocketChannel.open(proxy))
+        {
+            ByteBuffer bb = ByteBuffer.allocate(BufferSize);
+            bb.flip();
+            ByteBuffer batch = ByteBuffer.allocate(DEPTH*request.length);
+            for (int ii=0;ii<DEPTH;ii++)
+            {
+                batch.put(request);
+            }
+            for (int ii=0;ii<REQUESTS;ii+=DEPTH)
+            {
+                batch.rewind();
+                while (batch.hasRemaining())
+                {
+                    channel.write(batch);
+                }
+                for (int jj=0;jj<DEPTH;jj++)
+                {
+                    assertEquals(200, readResponse(channel, bb));
+                }
+            }
+        }
+        print("pipelined depth="+DEPTH, start);
+        assertEquals(requestCount, server.getRequestCount());
+    }
+    private byte[] request(boolean close)
+    {
+        String req = "GET http://"+proxyHost+Path+" HTTP/1.1\r\nHost: "+proxyHost+"\r\n";
+        if (close)
+        {
+            req += "Connection: close\r\n";
+        }
+        return (req+"\r\n").getBytes(US_ASCII);
+    }
+    private void print(String mode, long start)
+    {
+        long nanos = System.nanoTime() - start;
+        System.err.printf("%s requests=%d %d ms %d req/s\n", mode, REQUESTS, nanos/1000000, REQUESTS*1000000000L/nanos);
+    }
+}
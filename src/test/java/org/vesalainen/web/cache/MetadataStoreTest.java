@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.vesalainen.nio.file.attribute.UserDefinedAttributes;
+import static org.vesalainen.web.cache.CacheConstants.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class MetadataStoreTest
+{
+    private Path dir;
+    
+    public MetadataStoreTest()
+    {
+    }
+
+    @Before
+    public void before() throws IOException
+    {
+        dir = Files.createTempDirectory("test");
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir))
+        {
+            ds.forEach((p)->
+            {
+                try
+                {
+                    Files.delete(p);
+                }
+                catch (IOException ex)
+                {
+                    throw new RuntimeException(ex);
+                }
+            });
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    public void test1() throws IOException
+    {
+        Path file = dir.resolve("metadata");
+        MetadataStore store = new MetadataStore(file, dir);
+        store.open();
+        assertTrue(store.isCreated());
+        Path p1 = dir.resolve("file1");
+        assertNull(store.get(p1));
+        UserDefinedAttributes a1 = store.create(p1);
+        assertFalse(a1.has(XOrigMillis));
+        a1.setLong(XOrigMillis, 123456789L);
+        a1.setInt(NotModifiedCount, 3);
+        a1.write(XOrigRequestTarget, ByteBuffer.wrap("http://www.example.com/".getBytes(StandardCharsets.US_ASCII)));
+        a1.setInt(NotModifiedCount, 4);
+        a1.set(SHA1, new byte[20]);
+        assertEquals(123456789L, a1.getLong(XOrigMillis));
+        assertEquals(4, a1.getInt(NotModifiedCount));
+        assertEquals(Arrays.asList(XOrigMillis, NotModifiedCount, XOrigRequestTarget, SHA1), a1.list());
+        a1.write(XOrigRequestTarget, ByteBuffer.wrap("http://www.example.com/index.html".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(Arrays.asList(XOrigMillis, NotModifiedCount, SHA1, XOrigRequestTarget), a1.list());
+        a1.delete(SHA1);
+        assertFalse(a1.has(SHA1));
+        assertNull(a1.get(SHA1));
+        assertEquals(4, a1.getInt(NotModifiedCount));
+        
+        Path p2 = dir.resolve("file2");
+        UserDefinedAttributes a2 = store.create(p2);
+        byte[] hdr = new byte[BufferSize];
+        Arrays.fill(hdr, (byte)'x');
+        a2.set(XOrigHdr, hdr);
+        store.force();
+        
+        store = new MetadataStore(file, dir);
+        store.open();
+        assertFalse(store.isCreated());
+        assertEquals(2, store.size());
+        a1 = store.get(p1);
+        assertEquals(123456789L, a1.getLong(XOrigMillis));
+        ByteBuffer bb = ByteBuffer.allocate(100);
+        int len = a1.read(XOrigRequestTarget, bb);
+        assertEquals("http://www.example.com/index.html".length(), len);
+        assertEquals(len, a1.size(XOrigRequestTarget));
+        a2 = store.get(p2);
+        assertArrayEquals(hdr, a2.get(XOrigHdr));
+        
+        store.remove(p1);
+        assertNull(store.get(p1));
+        assertFalse(a1.has(XOrigMillis));
+        Path p3 = dir.resolve("file3");
+        UserDefinedAttributes a3 = store.create(p3);
+        a1.setLong(XOrigMillis, 1);  // stale record doesn't overwrite
+        assertFalse(a3.has(XOrigMillis));
+    }
+    @Test
+    public void testSegments() throws IOException
+    {
+        Path file = dir.resolve("metadata");
+        MetadataStore store = new MetadataStore(file, dir);
+        store.open();
+        for (int ii=0;ii<1500;ii++)
+        {
+            store.create(dir.resolve("file"+ii)).setInt(NotModifiedCount, ii);
+        }
+        store.remove(dir.resolve("file3"));
+        store.force();
+        
+        store = new MetadataStore(file, dir);
+        store.open();
+        assertEquals(1499, store.size());
+        assertNull(store.get(dir.resolve("file3")));
+        assertEquals(1400, store.get(dir.resolve("file1400")).getInt(NotModifiedCount));
+        try
+        {
+            store.create(dir.resolve(new String(new char[MetadataStore.EntrySize]).replace('\0', 'x')));
+            fail("should throw");
+        }
+        catch (IOException ex)
+        {
+        }
+    }
+    @Test
+    public void testFull() throws IOException
+    {
+        MetadataStore store = new MetadataStore(dir.resolve("metadata"), dir);
+        store.open();
+        UserDefinedAttributes a1 = store.create(dir.resolve("file1"));
+        try
+        {
+            a1.set(XOrigHdr, new byte[MetadataStore.SlotSize]);
+            fail("should throw");
+        }
+        catch (IOException ex)
+        {
+        }
+    }
+    
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class OriginConnectorTest
+{
+    
+    public OriginConnectorTest()
+    {
+    }
+
+    @Test
+    public void testFallback() throws Exception
+    {
+        InetAddress good = InetAddress.getByName("127.0.0.1");
+        InetAddress bad = InetAddress.getByName("127.0.0.2");
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(good, 0));
+            int port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            AtomicLong clock = new AtomicLong(System.currentTimeMillis());
+            OriginConnector connector = new OriginConnector(()->250, ()->5000, ()->1000, clock::get);
+            InetAddress[] addresses = new InetAddress[]{bad, good};
+            
+            try (SocketChannel channel = connector.connect(addresses, port))
+            {
+                assertTrue(channel.isConnected());
+                assertTrue(channel.isBlocking());
+                assertEquals(good, ((InetSocketAddress)channel.getRemoteAddress()).getAddress());
+            }
+            assertEquals(2, connector.getAttempts());
+            assertEquals(1, connector.getFailed());
+            assertEquals(1, connector.getFallbacks());
+            assertEquals(1, connector.getFailedAddresses());
+            // failed address is tried last
+            assertEquals(good, connector.order(addresses).get(0));
+            try (SocketChannel channel = connector.connect(addresses, port))
+            {
+                assertEquals(good, ((InetSocketAddress)channel.getRemoteAddress()).getAddress());
+            }
+            assertEquals(3, connector.getAttempts());
+            clock.addAndGet(1000);
+            assertEquals(bad, connector.order(addresses).get(0));
+            assertEquals(0, connector.getFailedAddresses());
+        }
+    }
+    
+    @Test
+    public void testAllFail() throws Exception
+    {
+        InetAddress bad = InetAddress.getByName("127.0.0.2");
+        int port;
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            port = ((InetSocketAddress) server.getLocalAddress()).getPort();
+            OriginConnector connector = new OriginConnector(()->250, ()->5000, ()->1000, System::currentTimeMillis);
+            try
+            {
+                connector.connect(new InetAddress[]{bad}, port);
+                fail();
+            }
+            catch (ConnectException ex)
+            {
+            }
+            assertEquals(1, connector.getFailed());
+        }
+    }
+    
+}
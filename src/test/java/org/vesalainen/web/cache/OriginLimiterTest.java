@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class OriginLimiterTest
+{
+    
+    public OriginLimiterTest()
+    {
+    }
+
+    @Test
+    public void testLimit() throws Exception
+    {
+        OriginLimiter limiter = new OriginLimiter((h)->h.equals("slow.com") ? 1 : 0);
+        OriginLimiter.Permit p1 = limiter.acquire("slow.com");
+        OriginLimiter.Permit p2 = limiter.acquire("fast.com");
+        OriginLimiter.Permit p3 = limiter.acquire("fast.com");
+        ExecutorService exec = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        Future<OriginLimiter.Permit> future = exec.submit(()->
+        {
+            started.countDown();
+            return limiter.acquire("Slow.com");
+        });
+        started.await();
+        while (limiter.getQueued() == 0)
+        {
+            Thread.sleep(1);
+        }
+        assertFalse(future.isDone());
+        p1.release();
+        p1.release();
+        OriginLimiter.Permit p4 = future.get(10, TimeUnit.SECONDS);
+        assertEquals(0, limiter.getQueued());
+        String[] stats = limiter.getStatistics();
+        assertEquals(1, stats.length);
+        assertTrue(stats[0], stats[0].startsWith("slow.com limit=1 active=1 queued=0 acquires=2 waits=1"));
+        p2.release();
+        p3.release();
+        p4.release();
+        exec.shutdown();
+    }
+
+    @Test
+    public void testTimeout() throws Exception
+    {
+        OriginLimiter limiter = new OriginLimiter((h)->1);
+        OriginLimiter.Permit p1 = limiter.tryAcquire("slow.com", 10);
+        assertNotNull(p1);
+        assertNull(limiter.tryAcquire("slow.com", 10));
+        assertEquals(0, limiter.getQueued());
+        String[] stats = limiter.getStatistics();
+        assertEquals(1, stats.length);
+        assertTrue(stats[0], stats[0].contains("waits=0 timeouts=1"));
+        p1.release();
+        OriginLimiter.Permit p2 = limiter.tryAcquire("slow.com", 10);
+        assertNotNull(p2);
+        p2.release();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.vesalainen.web.Scheme;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class OriginPoolTest
+{
+    
+    public OriginPoolTest()
+    {
+    }
+
+    @Test
+    public void testPool() throws Exception
+    {
+        try (ServerSocketChannel server = ServerSocketChannel.open())
+        {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            InetSocketAddress address = (InetSocketAddress) server.getLocalAddress();
+            AtomicLong clock = new AtomicLong();
+            OriginPool pool = new OriginPool((s, h, p)->SocketChannel.open(address), ()->1, ()->1000, clock::get);
+            
+            OriginPool.Connection c1 = pool.get(Scheme.HTTP, "localhost", 80);
+            SocketChannel s1 = server.accept();
+            assertFalse(c1.isReused());
+            OriginPool.Connection c2 = pool.get(Scheme.HTTP, "LocalHost", 80);
+            SocketChannel s2 = server.accept();
+            pool.release(c1);
+            pool.release(c2);   // over limit
+            assertFalse(c2.getChannel().isOpen());
+            assertEquals(1, pool.getIdle());
+            
+            OriginPool.Connection c3 = pool.get(Scheme.HTTP, "localhost", 80);
+            assertSame(c1, c3);
+            assertTrue(c3.isReused());
+            assertEquals(0, pool.getIdle());
+            pool.release(c3);
+            
+            s1.close();     // origin closes idle connection
+            Thread.sleep(100);
+            OriginPool.Connection c4 = pool.get(Scheme.HTTP, "localhost", 80);
+            SocketChannel s4 = server.accept();
+            assertNotSame(c1, c4);
+            assertFalse(c1.getChannel().isOpen());
+            assertEquals(1, pool.getUnhealthy());
+            pool.release(c4);
+            
+            clock.set(500);
+            pool.evict();
+            assertEquals(1, pool.getIdle());
+            clock.set(1001);
+            pool.evict();
+            assertEquals(0, pool.getIdle());
+            assertEquals(1, pool.getEvicted());
+            assertFalse(c4.getChannel().isOpen());
+            
+            assertEquals(3, pool.getCreated());
+            assertEquals(1, pool.getReused());
+            s2.close();
+            s4.close();
+        }
+    }
+    
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import java.time.temporal.ChronoUnit;
+import static org.junit.Assert.*;
+import org.junit.Test;
+import static org.vesalainen.web.cache.CacheConstants.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class PipelineTest extends Base
+{
+
+    public PipelineTest()
+    {
+        super(PipelineTest.class);
+    }
+
+    @Test
+    public void testPipelined() throws IOException, InterruptedException
+    {
+        String path = "/testPipelined";
+        server.setContent(path, createContent(1000));
+        server.setLastModified(fromClock(-10, ChronoUnit.MINUTES));
+        assertEquals(200, createClient(path).retrieve());
+        assertEquals(200, createClient(path).retrieve());
+        int requestCount = server.getRequestCount();
+        
+        byte[] request = ("GET http://"+proxyHost+path+" HTTP/1.1\r\nHost: "+proxyHost+"\r\n\r\n").getBytes(US_ASCII);
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(proxyHost, proxyPort)))
+        {
+            ByteBuffer bb = ByteBuffer.allocate(BufferSize);
+            bb.flip();
+            // two requests and start of third in one write
+            ByteBuffer batch = ByteBuffer.allocate(3*request.length);
+            batch.put(request).put(request).put(request, 0, 10);
+            batch.flip();
+            while (batch.hasRemaining())
+            {
+                channel.write(batch);
+            }
+            assertEquals(200, readResponse(channel, bb));
+            assertEquals(200, readResponse(channel, bb));
+            Thread.sleep(100);
+            // rest of third header arrives later
+            channel.write(ByteBuffer.wrap(request, 10, request.length-10));
+            assertEquals(200, readResponse(channel, bb));
+        }
+        assertEquals(requestCount, server.getRequestCount());
+    }
+    
+}
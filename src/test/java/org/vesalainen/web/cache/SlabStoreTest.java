@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.*;
+import java.util.Comparator;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class SlabStoreTest
+{
+    private Path dir;
+    private Path slabDir;
+    
+    public SlabStoreTest()
+    {
+    }
+
+    @Before
+    public void before() throws IOException
+    {
+        dir = Files.createTempDirectory("test");
+        slabDir = dir.resolve("slab");
+    }
+
+    @After
+    public void after() throws IOException
+    {
+        try (Stream<Path> stream = Files.walk(dir))
+        {
+            stream.sorted(Comparator.reverseOrder()).forEach((p)->p.toFile().delete());
+        }
+    }
+
+    @Test
+    public void test1() throws IOException
+    {
+        SlabStore store = new SlabStore(slabDir, dir, 1000);
+        store.open();
+        for (int ii=0;ii<100;ii++)
+        {
+            put(store, "f"+ii, "content of file "+ii);
+        }
+        assertEquals(100, store.size());
+        assertTrue(store.getSegmentCount() > 1);
+        assertEquals("content of file 7", read(store, "f7"));
+        SlabStore.Slot slot = store.get(dir.resolve("f7"));
+        assertEquals(1234, slot.readAttributes().creationTime().toMillis());
+        for (int ii=0;ii<100;ii+=2)
+        {
+            store.remove(dir.resolve("f"+ii));
+        }
+        assertFalse(store.contains(dir.resolve("f8")));
+        put(store, "f8", "new content");
+        
+        store = new SlabStore(slabDir, dir, 1000);
+        store.open();
+        assertEquals(51, store.size());
+        assertEquals("content of file 7", read(store, "f7"));
+        assertEquals("new content", read(store, "f8"));
+        assertNull(store.get(dir.resolve("f10")));
+        long live = store.getLiveBytes();
+        int segments = store.getSegmentCount();
+        
+        store.compact();
+        assertTrue(store.getCompactions() > 0);
+        assertTrue(store.getSegmentCount() < segments);
+        assertEquals(live, store.getLiveBytes());
+        assertEquals("content of file 7", read(store, "f7"));
+        store.compact();
+        
+        store = new SlabStore(slabDir, dir, 1000);
+        store.open();
+        assertEquals(51, store.size());
+        assertEquals(live, store.getLiveBytes());
+        for (int ii=1;ii<100;ii+=2)
+        {
+            assertEquals("content of file "+ii, read(store, "f"+ii));
+        }
+        assertEquals("new content", read(store, "f8"));
+        assertNull(store.get(dir.resolve("f10")));
+    }
+    @Test
+    public void testTruncated() throws IOException
+    {
+        SlabStore store = new SlabStore(slabDir, dir, 1000000);
+        store.open();
+        put(store, "f1", "content1");
+        put(store, "f2", "content2");
+        Path seg = slabDir.resolve("00000001.seg");
+        try (FileChannel fc = FileChannel.open(seg, WRITE))
+        {
+            fc.truncate(fc.size()-3);
+        }
+        store = new SlabStore(slabDir, dir, 1000000);
+        store.open();
+        assertEquals(1, store.size());
+        assertEquals("content1", read(store, "f1"));
+        put(store, "f2", "content2");
+        assertEquals("content2", read(store, "f2"));
+    }
+
+    private void put(SlabStore store, String name, String content) throws IOException
+    {
+        Path file = dir.resolve(name);
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+        try (FileChannel fc = FileChannel.open(file, READ))
+        {
+            store.put(file, 1234, fc);
+        }
+        Files.delete(file);
+    }
+
+    private String read(SlabStore store, String name) throws IOException
+    {
+        SlabStore.Slot slot = store.get(dir.resolve(name));
+        ByteBuffer bb = ByteBuffer.allocate(slot.getLength());
+        slot.getChannel().read(bb, slot.getOffset());
+        return new String(bb.array(), StandardCharsets.UTF_8);
+    }
+}
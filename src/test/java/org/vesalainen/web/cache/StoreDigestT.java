@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import static java.nio.file.StandardOpenOption.*;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Compares storing a large download with a separate byte by byte digest
+ * pass to digesting the content while it is written.
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class StoreDigestT
+{
+    private static final long SIZE = 512L*1024*1024;
+    private static final int TRANSFER = 4096;
+    
+    @Test
+    public void compare() throws Exception
+    {
+        ByteBuffer data = ByteBuffer.allocateDirect(1024*1024);
+        Random random = new Random(1234);
+        while (data.hasRemaining())
+        {
+            data.put((byte) random.nextInt());
+        }
+        Path file = Files.createTempFile("digest", null);
+        try
+        {
+            for (int round=0;round<3;round++)
+            {
+                long start = System.nanoTime();
+                byte[] d1 = writeThenRead(file, data);
+                long t1 = System.nanoTime() - start;
+                start = System.nanoTime();
+                byte[] d2 = incremental(file, data);
+                long t2 = System.nanoTime() - start;
+                assertTrue(Arrays.equals(d1, d2));
+                System.err.printf("%dM separate pass %d ms incremental %d ms\n", SIZE>>20, t1/1000000, t2/1000000);
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    private byte[] writeThenRead(Path file, ByteBuffer data) throws Exception
+    {
+        try (FileChannel fc = FileChannel.open(file, READ, WRITE, TRUNCATE_EXISTING))
+        {
+            write(fc, data, null);
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            ByteBuffer bb = ByteBuffer.allocateDirect(CacheConstants.BufferSize);
+            long position = 0;
+            long size = fc.size();
+            while (position < size)
+            {
+                bb.clear();
+                int rc = fc.read(bb, position);
+                position += rc;
+                bb.flip();
+                int lim = bb.limit();
+                for (int ii=bb.position();ii<lim;ii++)
+                {
+                    sha1.update(bb.get());
+                }
+            }
+            return sha1.digest();
+        }
+    }
+
+    private byte[] incremental(Path file, ByteBuffer data) throws Exception
+    {
+        try (FileChannel fc = FileChannel.open(file, READ, WRITE, TRUNCATE_EXISTING))
+        {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            write(fc, data, sha1);
+            return sha1.digest();
+        }
+    }
+
+    private void write(FileChannel fc, ByteBuffer data, MessageDigest sha1) throws IOException
+    {
+        long position = 0;
+        while (position < SIZE)
+        {
+            int off = (int) (position % data.capacity());
+            ByteBuffer buffer = data.duplicate();
+            buffer.position(off);
+            buffer.limit(Math.min(data.capacity(), off+TRANSFER));
+            if (sha1 != null)
+            {
+                sha1.update(buffer.duplicate());
+            }
+            while (buffer.hasRemaining())
+            {
+                position += fc.write(buffer, position);
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class TimerWheelTest
+{
+    
+    public TimerWheelTest()
+    {
+    }
+
+    @Test
+    public void testAdvance()
+    {
+        AtomicLong clock = new AtomicLong(1000);
+        TimerWheel wheel = new TimerWheel(10, 8, clock::get);
+        List<Integer> list = new ArrayList<>();
+        wheel.schedule(25, ()->list.add(1));
+        wheel.schedule(5, ()->list.add(2));
+        wheel.schedule(200, ()->list.add(3));    // more than one round
+        TimerWheel.Timeout t4 = wheel.schedule(30, ()->list.add(4));
+        assertEquals(4, wheel.size());
+        clock.set(1004);
+        assertEquals(0, wheel.advance());
+        clock.set(1005);
+        assertEquals(1, wheel.advance());
+        assertTrue(t4.cancel());
+        assertFalse(t4.cancel());
+        clock.set(1100);
+        assertEquals(1, wheel.advance());
+        assertEquals(1, wheel.size());
+        clock.set(1199);
+        assertEquals(0, wheel.advance());
+        clock.set(1200);
+        assertEquals(1, wheel.advance());
+        assertEquals(0, wheel.size());
+        assertEquals("[2, 1, 3]", list.toString());
+    }
+    @Test
+    public void testLongPause()
+    {
+        AtomicLong clock = new AtomicLong(0);
+        TimerWheel wheel = new TimerWheel(10, 4, clock::get);
+        List<Integer> list = new ArrayList<>();
+        for (int ii=0;ii<10;ii++)
+        {
+            int jj = ii;
+            wheel.schedule(ii*15, ()->list.add(jj));
+        }
+        clock.set(1000);
+        assertEquals(10, wheel.advance());
+        assertEquals(0, wheel.size());
+        TimerWheel.Timeout t = wheel.schedule(-5, ()->list.add(10));
+        assertEquals(1, wheel.advance());
+        assertFalse(t.cancel());
+        assertEquals(11, list.size());
+    }
+}
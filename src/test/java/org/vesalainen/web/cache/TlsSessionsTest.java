@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 Timo Vesalainen <timo.vesalainen@iki.fi>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.vesalainen.web.cache;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ *
+ * @author Timo Vesalainen <timo.vesalainen@iki.fi>
+ */
+public class TlsSessionsTest
+{
+    
+    public TlsSessionsTest()
+    {
+    }
+
+    @Test
+    public void testWrap() throws Exception
+    {
+        TlsSessions sessions = new TlsSessions(()->100, ()->3600000);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, null, null);
+        SSLContext wrapped = sessions.wrap(ctx);
+        assertEquals(100, wrapped.getClientSessionContext().getSessionCacheSize());
+        assertEquals(3600, wrapped.getClientSessionContext().getSessionTimeout());
+        assertEquals(100, wrapped.getServerSessionContext().getSessionCacheSize());
+        assertEquals(ctx.getProtocol(), wrapped.getProtocol());
+        
+        SSLEngine engine = wrapped.createSSLEngine("example.com", 443);
+        assertEquals("example.com", engine.getPeerHost());
+        assertEquals(443, engine.getPeerPort());
+        engine.setUseClientMode(true);
+        assertTrue(engine.getUseClientMode());
+        engine.beginHandshake();
+        assertEquals(0, sessions.getOriginFullHandshakes());
+        assertEquals(0, sessions.getFullHandshakes());
+    }
+
+    @Test
+    public void testForPeer() throws Exception
+    {
+        TlsSessions sessions = new TlsSessions(()->100, ()->3600000);
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, null, null);
+        sessions.configure(ctx);
+        assertEquals(100, ctx.getClientSessionContext().getSessionCacheSize());
+        
+        SSLEngine engine = sessions.forPeer(ctx, "example.com", 443).createSSLEngine();
+        assertEquals("example.com", engine.getPeerHost());
+        assertEquals(443, engine.getPeerPort());
+        engine.setUseClientMode(false);
+        assertTrue(engine.getUseClientMode());
+    }
+    
+}
@@ -22,7 +22,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.Security;
-import java.util.concurrent.locks.ReentrantLock;
+import java.security.cert.X509Certificate;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.junit.After;
 import org.junit.Test;
@@ -67,9 +67,23 @@ public class KeyStoreManagerTest
     public void test1()
     {
         Path path = dir.resolve("keystore");
-        ReentrantLock lock = new ReentrantLock();
-        KeyStoreManager ksm = new KeyStoreManager(path.toFile(), lock);
-        ksm = new KeyStoreManager(path.toFile(), lock);
+        KeyStoreManager ksm = new KeyStoreManager(path.toFile());
+        ksm = new KeyStoreManager(path.toFile());
+    }
+    
+    @Test
+    public void testMint() throws IOException
+    {
+        Path path = dir.resolve("keystore");
+        KeyStoreManager ksm = new KeyStoreManager(path.toFile());
+        ksm.prepare("www.example.com");
+        ksm.ensureAlias("www.example.com");
+        X509Certificate[] chain = ksm.getCertificateChain("www.example.com");
+        assertEquals(2, chain.length);
+        assertNotNull(ksm.getPrivateKey("www.example.com"));
+        ksm.store();
+        ksm = new KeyStoreManager(path.toFile());
+        assertEquals(chain[0], ksm.getCertificateChain("www.example.com")[0]);
     }
     
 }